@@ -0,0 +1,91 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.api.CertificateValidationException;
+import no.idporten.validator.certificate.util.SimpleCrlCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the validator hot paths.  Certificates and CRLs are generated with the same test data as the unit
+ * tests.  The revoked certificate is listed in a CRL in the validator's CRL cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SEID2CertificateValidatorBenchmark {
+
+    private SEID2CertificateValidator validator;
+    private X509Certificate validCertificate;
+    private String validCertificatePem;
+    private X509Certificate expiredCertificate;
+    private X509Certificate selfSignedCertificate;
+    private X509Certificate revokedCertificate;
+
+    @Setup
+    public void setUp() throws Exception {
+        TestData testData = new TestData();
+        validCertificate = testData.createCertificate();
+        validCertificatePem = X509CertificateUtils.pemEncodedCert(validCertificate);
+        expiredCertificate = testData.expiredCertificate();
+        selfSignedCertificate = testData.selfSignedCertificate();
+        revokedCertificate = testData.createCertificate();
+        SimpleCrlCache crlCache = new SimpleCrlCache();
+        crlCache.set(testData.distributionPointUrl(), testData.crl(revokedCertificate.getSerialNumber()));
+        validator = new SEID2CertificateValidatorBuilder(Environment.TEST)
+                .withProperties(testData.props())
+                .withCrlCache(crlCache)
+                .build();
+    }
+
+    @Benchmark
+    public X509Certificate validateValidCertificate() throws CertificateValidationException {
+        validator.validate(validCertificate);
+        return validCertificate;
+    }
+
+    @Benchmark
+    public String validateValidPemCertificate() throws CertificateValidationException {
+        validator.validate(validCertificatePem);
+        return validCertificatePem;
+    }
+
+    @Benchmark
+    public boolean isValidValidCertificate() {
+        return validator.isValid(validCertificate);
+    }
+
+    @Benchmark
+    public boolean isValidExpiredCertificate() {
+        return validator.isValid(expiredCertificate);
+    }
+
+    @Benchmark
+    public boolean isValidSelfSignedCertificate() {
+        return validator.isValid(selfSignedCertificate);
+    }
+
+    @Benchmark
+    public boolean isValidRevokedCertificate() {
+        return validator.isValid(revokedCertificate);
+    }
+
+    @Benchmark
+    public ValidationResult validateToResultSelfSignedCertificate() {
+        return validator.validateToResult(selfSignedCertificate);
+    }
+
+}
@@ -0,0 +1,55 @@
+package no.idporten.seid2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.cert.X509CRL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for setting up validators: building a validator with its own pre-loaded CRL cache, and loading the
+ * largest pre-loaded CRL (Buypass Class 3 CA 3 in PROD).  Each build gets a new CRL cache and is closed, so the
+ * CRLs of the JVM-wide shared cache do not make later builds warm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SEID2CertificateValidatorSetupBenchmark {
+
+    private static final String BUYPASS_PROD_CRL = "http://crl.buypass.no/crl/BPClass3CA3.crl";
+
+    @Benchmark
+    public SEID2CertificateValidator buildTestValidator() throws Exception {
+        return build(Environment.TEST);
+    }
+
+    @Benchmark
+    public SEID2CertificateValidator buildProdValidator() throws Exception {
+        return build(Environment.PROD);
+    }
+
+    private static SEID2CertificateValidator build(Environment environment) throws Exception {
+        try (SEID2CertificateValidator validator = new SEID2CertificateValidatorBuilder(environment)
+                .withScheduledCrlRefresh()
+                .withPreloadedCrlCache()
+                .build()) {
+            return validator;
+        }
+    }
+
+    @Benchmark
+    public X509CRL loadBuypassProdCrlFromClasspath() {
+        return X509CRLUtils.loadCRLFromClasspath(BUYPASS_PROD_CRL, Environment.PROD);
+    }
+
+}
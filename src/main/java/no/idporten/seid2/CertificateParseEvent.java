@@ -0,0 +1,50 @@
+package no.idporten.seid2;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.security.cert.X509Certificate;
+
+/**
+ * Flight recorder event for reading a certificate.
+ */
+@Name("no.idporten.seid2.CertificateParse")
+@Label("Certificate Parse")
+@Description("Reading a DER, base64 or PEM encoded certificate")
+@Category({"SEID2", "Certificate Validation"})
+@StackTrace(false)
+final class CertificateParseEvent extends jdk.jfr.Event {
+
+    @Label("Encoded Size")
+    @DataAmount
+    long encodedSize;
+
+    @Label("Subject")
+    String subject;
+
+    @Label("Issuer")
+    String issuer;
+
+    /**
+     * Ends and commits the event if it is enabled.
+     *
+     * @param certificate the certificate read, or null if reading failed
+     * @param encodedSize size of the encoded certificate
+     */
+    void commit(X509Certificate certificate, long encodedSize) {
+        end();
+        if (shouldCommit()) {
+            this.encodedSize = encodedSize;
+            if (certificate != null) {
+                this.subject = certificate.getSubjectX500Principal().getName();
+                this.issuer = certificate.getIssuerX500Principal().getName();
+            }
+            commit();
+        }
+    }
+
+}
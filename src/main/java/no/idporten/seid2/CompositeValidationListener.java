@@ -0,0 +1,65 @@
+package no.idporten.seid2;
+
+import java.security.cert.X509CRL;
+import java.util.List;
+
+/**
+ * Listener forwarding to several listeners.
+ */
+final class CompositeValidationListener implements ValidationListener {
+
+    private final List<ValidationListener> listeners;
+
+    private CompositeValidationListener(List<ValidationListener> listeners) {
+        this.listeners = List.copyOf(listeners);
+    }
+
+    /**
+     * Combines two listeners.  Ignores {@link ValidationListener#NONE}.
+     */
+    static ValidationListener of(ValidationListener first, ValidationListener second) {
+        if (first == ValidationListener.NONE) {
+            return second;
+        }
+        if (second == ValidationListener.NONE) {
+            return first;
+        }
+        return new CompositeValidationListener(List.of(first, second));
+    }
+
+    @Override
+    public void ruleCompleted(String rule, boolean passed, long durationNanos) {
+        for (ValidationListener listener : listeners) {
+            listener.ruleCompleted(rule, passed, durationNanos);
+        }
+    }
+
+    @Override
+    public void crlCacheHit(String distributionPoint) {
+        for (ValidationListener listener : listeners) {
+            listener.crlCacheHit(distributionPoint);
+        }
+    }
+
+    @Override
+    public void crlCacheMiss(String distributionPoint) {
+        for (ValidationListener listener : listeners) {
+            listener.crlCacheMiss(distributionPoint);
+        }
+    }
+
+    @Override
+    public void crlRefreshed(String distributionPoint, X509CRL crl, long durationNanos) {
+        for (ValidationListener listener : listeners) {
+            listener.crlRefreshed(distributionPoint, crl, durationNanos);
+        }
+    }
+
+    @Override
+    public void crlInUse(String distributionPoint, long thisUpdate, int revokedCertificates) {
+        for (ValidationListener listener : listeners) {
+            listener.crlInUse(distributionPoint, thisUpdate, revokedCertificates);
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.util.SimpleCrlCache;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reference counts for refreshing CRL caches used by validators, and the CRL caches shared by all validators in the
+ * JVM.  A refreshing CRL cache is started when its first validator is built, and its refresh threads are stopped when
+ * its last validator is closed.  The cached CRLs are kept, so a cache used again later is started with the CRLs it had.
+ * A shared cache for other settings than the defaults is forgotten when its last validator is closed, so validators
+ * built with short-lived HTTP clients do not accumulate caches.
+ * <p>
+ * A refreshing CRL cache downloads with the HTTP client, timeout and maximum CRL size of the validator that started it.
+ * Validators with other download settings get their own shared cache, and cannot use a cache that is in use with other
+ * settings.
+ */
+final class CrlCacheRegistry {
+
+    private static final HttpSettings DEFAULT_SETTINGS = new HttpSettings(null, HttpCrlFetcher.DEFAULT_TIMEOUT, HttpCrlFetcher.DEFAULT_MAXIMUM_SIZE);
+
+    private static final RefreshingCrlCache SHARED = new RefreshingCrlCache(new SimpleCrlCache());
+
+    private static final Map<HttpSettings, RefreshingCrlCache> sharedBySettings = new HashMap<>(Map.of(DEFAULT_SETTINGS, SHARED));
+
+    private static final Map<RefreshingCrlCache, Use> uses = new IdentityHashMap<>();
+
+    private CrlCacheRegistry() {
+    }
+
+    /**
+     * The CRL cache shared by all validators in the JVM using the default HTTP client and timeout, holding one set of
+     * CRLs for all environments and refreshing them with one scheduler.
+     */
+    static RefreshingCrlCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * The CRL cache shared by all validators in the JVM using an HTTP client, timeout and maximum CRL size.
+     *
+     * @param httpClient     HTTP client, or null for the shared default client
+     * @param timeout        CRL download timeout
+     * @param maximumCrlSize maximum size in bytes of a downloaded CRL
+     */
+    static RefreshingCrlCache shared(HttpClient httpClient, Duration timeout, int maximumCrlSize) {
+        synchronized (sharedBySettings) {
+            return sharedBySettings.computeIfAbsent(new HttpSettings(httpClient, timeout, maximumCrlSize), settings -> new RefreshingCrlCache(new SimpleCrlCache()));
+        }
+    }
+
+    /**
+     * Takes a reference to a CRL cache, starting it with the download settings if it is not in use.
+     *
+     * @param httpClient     HTTP client, or null for the shared default client
+     * @param timeout        CRL download timeout
+     * @param maximumCrlSize maximum size in bytes of a downloaded CRL
+     * @return action releasing the reference, doing nothing after the first run
+     * @throws IllegalStateException if the cache is in use with other download settings
+     */
+    static Runnable acquire(RefreshingCrlCache crlCache, HttpClient httpClient, Duration timeout, int maximumCrlSize) {
+        HttpSettings settings = new HttpSettings(httpClient, timeout, maximumCrlSize);
+        synchronized (uses) {
+            Use use = uses.get(crlCache);
+            if (use == null) {
+                crlCache.useHttpClient(httpClient == null ? HttpCrlFetcher.sharedHttpClient() : httpClient, timeout, maximumCrlSize);
+                crlCache.start();
+                uses.put(crlCache, new Use(settings));
+            } else if (use.settings.equals(settings)) {
+                use.references++;
+            } else {
+                throw new IllegalStateException("The CRL cache is in use by validators with another HTTP client, CRL download timeout or maximum CRL size");
+            }
+        }
+        AtomicBoolean released = new AtomicBoolean();
+        return () -> {
+            if (released.compareAndSet(false, true)) {
+                release(crlCache);
+            }
+        };
+    }
+
+    private static void release(RefreshingCrlCache crlCache) {
+        synchronized (uses) {
+            Use use = uses.get(crlCache);
+            if (use != null && --use.references == 0) {
+                uses.remove(crlCache);
+                crlCache.close();
+                if (!use.settings.equals(DEFAULT_SETTINGS)) {
+                    synchronized (sharedBySettings) {
+                        sharedBySettings.remove(use.settings, crlCache);
+                    }
+                }
+            }
+        }
+    }
+
+    static int sharedCaches() {
+        synchronized (sharedBySettings) {
+            return sharedBySettings.size();
+        }
+    }
+
+    static int references(RefreshingCrlCache crlCache) {
+        synchronized (uses) {
+            Use use = uses.get(crlCache);
+            return use == null ? 0 : use.references;
+        }
+    }
+
+    private static final class Use {
+
+        private final HttpSettings settings;
+        private int references = 1;
+
+        private Use(HttpSettings settings) {
+            this.settings = settings;
+        }
+
+    }
+
+    /**
+     * HTTP client, timeout and maximum CRL size, with clients compared by identity.
+     */
+    private static final class HttpSettings {
+
+        private final HttpClient httpClient;
+        private final Duration timeout;
+        private final int maximumCrlSize;
+
+        private HttpSettings(HttpClient httpClient, Duration timeout, int maximumCrlSize) {
+            this.httpClient = httpClient;
+            this.timeout = Objects.requireNonNull(timeout);
+            this.maximumCrlSize = maximumCrlSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof HttpSettings)) {
+                return false;
+            }
+            HttpSettings other = (HttpSettings) o;
+            return httpClient == other.httpClient && timeout.equals(other.timeout) && maximumCrlSize == other.maximumCrlSize;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * System.identityHashCode(httpClient) + timeout.hashCode()) + maximumCrlSize;
+        }
+
+    }
+
+}
@@ -0,0 +1,75 @@
+package no.idporten.seid2;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.security.cert.CRLException;
+import java.security.cert.X509CRL;
+import java.util.function.LongSupplier;
+
+/**
+ * Flight recorder event for loading a CRL from the classpath or a directory, or downloading it.
+ */
+@Name("no.idporten.seid2.CrlLoad")
+@Label("CRL Load")
+@Description("Loading or downloading a CRL")
+@Category({"SEID2", "CRL"})
+@StackTrace(false)
+final class CrlLoadEvent extends jdk.jfr.Event {
+
+    static final String CLASSPATH = "classpath";
+    static final String DIRECTORY = "directory";
+    static final String DOWNLOAD = "download";
+
+    @Label("Distribution Point")
+    String distributionPoint;
+
+    @Label("Source")
+    String source;
+
+    @Label("Issuer")
+    String issuer;
+
+    @Label("Encoded Size")
+    @DataAmount
+    long encodedSize;
+
+    @Label("Revoked Certificates")
+    int revokedCertificates;
+
+    /**
+     * Ends and commits the event if it is enabled.
+     *
+     * @param crl         the CRL loaded, or null if loading failed
+     * @param encodedSize size of the encoded CRL, only computed if the event is committed
+     */
+    void commit(String distributionPoint, String source, X509CRL crl, LongSupplier encodedSize) {
+        end();
+        if (shouldCommit()) {
+            this.distributionPoint = distributionPoint;
+            this.source = source;
+            if (crl != null) {
+                this.issuer = crl.getIssuerX500Principal().getName();
+                this.encodedSize = encodedSize.getAsLong();
+                this.revokedCertificates = crl.getRevokedCertificates() == null ? 0 : crl.getRevokedCertificates().size();
+            }
+            commit();
+        }
+    }
+
+    /**
+     * Size of an encoded CRL, or -1 if it cannot be encoded.
+     */
+    static long encodedSize(X509CRL crl) {
+        try {
+            return crl.getEncoded().length;
+        } catch (CRLException e) {
+            return -1;
+        }
+    }
+
+}
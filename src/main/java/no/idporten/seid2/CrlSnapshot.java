@@ -0,0 +1,309 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.util.CrlUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.security.auth.x500.X500Principal;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Pre-compiled form of a bundled CRL: its issuer, thisUpdate, nextUpdate and a {@link RevokedSerialIndex}.  Snapshots
+ * are written by a build step after the CRL signature is verified against the certificates configured for the
+ * environment, and are read at startup with bulk copies of the index arrays instead of decoding the CRL.  Startup
+ * time and heap use therefore do not grow with the size of the CRL entries.
+ * <p>
+ * The build step runs in the process-classes phase and writes a snapshot for each CRL under src/main/resources/crl
+ * to the crl-snapshot directory of the classes, using the same environment directories and file names.  A CRL
+ * bundled for several mirrored distribution points with identical bytes gets one snapshot, and the other file names
+ * are listed in the mirrors file of the environment directory, so mirrors share one snapshot and index when loaded.
+ */
+final class CrlSnapshot {
+
+    private static final Logger log = LoggerFactory.getLogger(CrlSnapshot.class);
+
+    static final String RESOURCE_DIRECTORY = "crl-snapshot";
+    static final String MIRRORS = "mirrors.properties";
+
+    private static final int MAGIC = 0x53454944;
+    private static final int VERSION = 1;
+    private static final long NO_NEXT_UPDATE = Long.MIN_VALUE;
+
+    private final X500Principal issuer;
+    private final long thisUpdate;
+    private final long nextUpdate;
+    private final RevokedSerialIndex index;
+
+    private CrlSnapshot(X500Principal issuer, long thisUpdate, long nextUpdate, RevokedSerialIndex index) {
+        this.issuer = issuer;
+        this.thisUpdate = thisUpdate;
+        this.nextUpdate = nextUpdate;
+        this.index = index;
+    }
+
+    static CrlSnapshot of(X509CRL crl) {
+        return new CrlSnapshot(
+                crl.getIssuerX500Principal(),
+                crl.getThisUpdate().getTime(),
+                crl.getNextUpdate() == null ? NO_NEXT_UPDATE : crl.getNextUpdate().getTime(),
+                RevokedSerialIndex.of(crl));
+    }
+
+    X500Principal getIssuer() {
+        return issuer;
+    }
+
+    long getThisUpdate() {
+        return thisUpdate;
+    }
+
+    long getNextUpdate() {
+        return nextUpdate;
+    }
+
+    boolean hasNextUpdate() {
+        return nextUpdate != NO_NEXT_UPDATE;
+    }
+
+    RevokedSerialIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * A snapshot is current until the nextUpdate of its CRL.
+     */
+    boolean isCurrent(long now) {
+        return !hasNextUpdate() || nextUpdate > now;
+    }
+
+    byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            byte[] encodedIssuer = issuer.getEncoded();
+            out.writeInt(encodedIssuer.length);
+            out.write(encodedIssuer);
+            out.writeLong(thisUpdate);
+            out.writeLong(nextUpdate);
+            index.writeTo(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    static CrlSnapshot decode(byte[] encoded) throws IOException {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(encoded);
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                throw new IOException("Not a CRL snapshot of version " + VERSION);
+            }
+            byte[] encodedIssuer = new byte[in.getInt()];
+            in.get(encodedIssuer);
+            return new CrlSnapshot(new X500Principal(encodedIssuer), in.getLong(), in.getLong(), RevokedSerialIndex.readFrom(in));
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed CRL snapshot", e);
+        }
+    }
+
+    /**
+     * Loads the snapshot of a pre-loaded CRL from classpath.
+     *
+     * @param distributionPointUrl url to distribution point.  The encoded url is the file name.
+     * @param environment          environment for CRL
+     * @return snapshot, or null if there is no snapshot for the distribution point
+     */
+    static CrlSnapshot loadFromClasspath(String distributionPointUrl, Environment environment) {
+        return loadFromClasspath(List.of(distributionPointUrl), environment).get(distributionPointUrl);
+    }
+
+    /**
+     * Loads the snapshots of pre-loaded CRLs from classpath.  Mirrored distribution points get the same snapshot.
+     *
+     * @param distributionPointUrls urls to distribution points.  The encoded url is the file name.
+     * @param environment           environment for CRLs
+     * @return snapshots by distribution point, without the distribution points that have no snapshot
+     */
+    static Map<String, CrlSnapshot> loadFromClasspath(Collection<String> distributionPointUrls, Environment environment) {
+        String directory = RESOURCE_DIRECTORY + "/" + environment.name() + "/";
+        Properties mirrors = new Properties();
+        try (InputStream inputStream = CrlSnapshot.class.getClassLoader().getResourceAsStream(directory + MIRRORS)) {
+            if (inputStream != null) {
+                mirrors.load(inputStream);
+            }
+        } catch (IOException e) {
+            throw new SEID2CertificateValidatorInitException("Failed to load CRL snapshot mirrors from classpath", e);
+        }
+        Map<String, CrlSnapshot> snapshotsByFilename = new HashMap<>();
+        Map<String, CrlSnapshot> snapshots = new HashMap<>();
+        for (String url : distributionPointUrls) {
+            String filename = X509CRLUtils.toFilename(url);
+            String snapshotFilename = mirrors.getProperty(filename, filename);
+            CrlSnapshot snapshot = snapshotsByFilename.get(snapshotFilename);
+            if (snapshot == null) {
+                try (InputStream inputStream = CrlSnapshot.class.getClassLoader().getResourceAsStream(directory + snapshotFilename)) {
+                    snapshot = inputStream == null ? null : decode(inputStream.readAllBytes());
+                } catch (IOException e) {
+                    throw new SEID2CertificateValidatorInitException(String.format("Failed to load CRL snapshot %s from classpath", url), e);
+                }
+            }
+            if (snapshot != null) {
+                snapshotsByFilename.put(snapshotFilename, snapshot);
+                snapshots.put(url, snapshot);
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * Build step writing snapshots of the bundled CRLs.
+     *
+     * @param args CRL directory with a directory per environment, and output directory
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            throw new IllegalArgumentException("Usage: CrlSnapshot <crl directory> <snapshot directory>");
+        }
+        int written = compile(Paths.get(args[0]), Paths.get(args[1]));
+        log.info("Wrote {} CRL snapshots to {}", written, args[1]);
+    }
+
+    /**
+     * Verifies each CRL in the environment directories against the certificates configured for the environment, and
+     * writes its snapshot.  CRLs from issuers that are not configured get no snapshot, and are parsed when loaded.
+     * Files with the same bytes as a file already compiled are written to the mirrors file instead.
+     *
+     * @return number of snapshots written
+     * @throws SEID2CertificateValidatorInitException if a CRL cannot be read or its signature does not verify with the
+     *                                                configured certificate of its issuer
+     */
+    static int compile(Path crlDirectory, Path snapshotDirectory) throws IOException {
+        int written = 0;
+        for (Environment environment : Environment.values()) {
+            Path directory = crlDirectory.resolve(environment.name());
+            if (!Files.isDirectory(directory)) {
+                continue;
+            }
+            List<X509Certificate> issuers = configuredCertificates(environment);
+            Path output = Files.createDirectories(snapshotDirectory.resolve(environment.name()));
+            List<Path> files;
+            try (Stream<Path> list = Files.list(directory)) {
+                files = list.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+            Map<String, String> snapshotByDigest = new HashMap<>();
+            Map<String, String> mirrors = new TreeMap<>();
+            for (Path file : files) {
+                String filename = file.getFileName().toString();
+                byte[] encoded = Files.readAllBytes(file);
+                String digest = digest(encoded);
+                if (snapshotByDigest.containsKey(digest)) {
+                    String snapshotFilename = snapshotByDigest.get(digest);
+                    if (snapshotFilename != null) {
+                        mirrors.put(filename, snapshotFilename);
+                    }
+                    continue;
+                }
+                X509CRL crl;
+                try {
+                    crl = CrlUtils.load(new ByteArrayInputStream(encoded));
+                } catch (Exception e) {
+                    throw new SEID2CertificateValidatorInitException("Failed to read CRL " + file, e);
+                }
+                if (!verify(crl, issuers, file)) {
+                    log.info("Skipped CRL {}: issuer {} is not configured", file, crl.getIssuerX500Principal());
+                    snapshotByDigest.put(digest, null);
+                    continue;
+                }
+                Files.write(output.resolve(filename), of(crl).encode());
+                snapshotByDigest.put(digest, filename);
+                written++;
+            }
+            if (!mirrors.isEmpty()) {
+                List<String> lines = mirrors.entrySet().stream()
+                        .map(mirror -> mirror.getKey() + "=" + mirror.getValue())
+                        .collect(Collectors.toList());
+                Files.write(output.resolve(MIRRORS), lines, StandardCharsets.ISO_8859_1);
+                log.info("Compiled {} mirrored CRLs for {} to the snapshots of their first distribution point", mirrors.size(), environment);
+            }
+        }
+        return written;
+    }
+
+    private static String digest(byte[] encoded) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(encoded));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<X509Certificate> configuredCertificates(Environment environment) {
+        CertificateAuthoritiesProperties properties = CertificateAuthoritiesProperties.defaultProperties(environment);
+        List<X509Certificate> certificates = new ArrayList<>();
+        for (Set<String> encoded : List.of(properties.getIntermediateCertificates(), properties.getRootCertificates())) {
+            for (String certificate : encoded) {
+                try {
+                    certificates.add(X509CertificateUtils.readX509Certificate(certificate));
+                } catch (Exception e) {
+                    throw new SEID2CertificateValidatorInitException("Failed to read configured certificate for " + environment, e);
+                }
+            }
+        }
+        return certificates;
+    }
+
+    /**
+     * @return true if the CRL is signed by a configured certificate, false if its issuer is not configured
+     */
+    private static boolean verify(X509CRL crl, List<X509Certificate> issuers, Path file) {
+        boolean issuerConfigured = false;
+        for (X509Certificate issuer : issuers) {
+            if (!issuer.getSubjectX500Principal().equals(crl.getIssuerX500Principal())) {
+                continue;
+            }
+            issuerConfigured = true;
+            try {
+                crl.verify(issuer.getPublicKey());
+                return true;
+            } catch (Exception e) {
+                // try the next certificate with the same subject
+            }
+        }
+        if (issuerConfigured) {
+            throw new SEID2CertificateValidatorInitException(String.format("Signature of CRL %s does not verify with the configured certificates of %s", file, crl.getIssuerX500Principal()), null);
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CrlSnapshot[issuer=%s, thisUpdate=%s, nextUpdate=%s, entries=%d]", issuer, new Date(thisUpdate),
+                hasNextUpdate() ? new Date(nextUpdate) : null, index.size());
+    }
+
+}
@@ -0,0 +1,152 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.api.CrlCache;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.cert.X509CRL;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CRL cache sharing one CRL instance between distribution points serving identical CRLs, like the same CRL over http
+ * and https or from mirrored hosts.  CRLs set in the cache are identified by a digest of their encoding, and a CRL
+ * identical to one already cached is replaced by the cached instance.  Distribution points that have held the same
+ * instance are mirrors: a newer CRL set for one of them is set for all of them, and an expired CRL is replaced by a
+ * current CRL from a mirror instead of being downloaded again.
+ * <p>
+ * A {@link RefreshingCrlCache} holds one of these for all validators sharing it, and uses its mirror groups to refresh
+ * each group once.  Validators with other CRL caches get their own.
+ */
+final class DeduplicatingCrlCache extends ForwardingCrlCache {
+
+    private final Map<String, X509CRL> crlByUrl = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> mirrorsByUrl = new ConcurrentHashMap<>();
+    private final Map<ByteBuffer, X509CRL> crlByDigest = new HashMap<>();
+
+    /**
+     * Creates a deduplicating CRL cache.
+     *
+     * @param delegate              CRL cache holding the CRLs
+     * @param distributionPointUrls known distribution points, checked for mirrors among the CRLs already cached
+     */
+    DeduplicatingCrlCache(CrlCache delegate, Collection<String> distributionPointUrls) {
+        super(delegate);
+        for (String url : distributionPointUrls) {
+            X509CRL crl = peek(delegate, url);
+            if (crl != null) {
+                learn(url, crl);
+            }
+        }
+    }
+
+    @Override
+    public X509CRL get(String url) {
+        X509CRL crl = super.get(url);
+        if (crl == null) {
+            return null;
+        }
+        if (crl != crlByUrl.get(url)) {
+            learn(url, crl);
+        }
+        return isExpired(crl) ? replaceFromMirror(url) : crl;
+    }
+
+    /**
+     * Replaces an expired CRL by the newest current CRL of its mirrors, under the same lock as {@link #set}.
+     */
+    private synchronized X509CRL replaceFromMirror(String url) {
+        X509CRL crl = super.get(url);
+        if (crl == null || !isExpired(crl)) {
+            return crl;
+        }
+        X509CRL mirrored = newestMirror(url, crl);
+        if (mirrored != crl) {
+            super.set(url, mirrored);
+            learn(url, mirrored);
+        }
+        return mirrored;
+    }
+
+    @Override
+    public synchronized void set(String url, X509CRL crl) {
+        if (crl == null) {
+            super.set(url, null);
+            return;
+        }
+        X509CRL canonical = canonical(crl);
+        super.set(url, canonical);
+        learn(url, canonical);
+        for (String mirror : mirrorsByUrl.getOrDefault(url, Set.of())) {
+            X509CRL current = super.get(mirror);
+            if (current != canonical && X509CRLUtils.newest(current, canonical) == canonical) {
+                super.set(mirror, canonical);
+                crlByUrl.put(mirror, canonical);
+            }
+        }
+        Set<X509CRL> cached = Collections.newSetFromMap(new IdentityHashMap<>());
+        cached.addAll(crlByUrl.values());
+        crlByDigest.values().retainAll(cached);
+    }
+
+    /**
+     * Mirrored distribution points of a distribution point.
+     */
+    Set<String> mirrors(String url) {
+        return mirrorsByUrl.getOrDefault(url, Set.of());
+    }
+
+    private X509CRL canonical(X509CRL crl) {
+        try {
+            ByteBuffer digest = ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(crl.getEncoded()));
+            return crlByDigest.computeIfAbsent(digest, key -> crl);
+        } catch (Exception e) {
+            return crl;
+        }
+    }
+
+    private synchronized void learn(String url, X509CRL crl) {
+        crlByUrl.put(url, crl);
+        crlByUrl.forEach((other, otherCrl) -> {
+            if (otherCrl == crl && !other.equals(url)) {
+                link(url, other);
+            }
+        });
+    }
+
+    private void link(String url, String other) {
+        Set<String> group = new HashSet<>(mirrors(url));
+        group.addAll(mirrors(other));
+        group.add(url);
+        group.add(other);
+        for (String member : group) {
+            Set<String> mirrors = new HashSet<>(group);
+            mirrors.remove(member);
+            mirrorsByUrl.put(member, Set.copyOf(mirrors));
+        }
+    }
+
+    private X509CRL newestMirror(String url, X509CRL crl) {
+        X509CRL newest = crl;
+        Collection<String> mirrors = mirrors(url);
+        for (String mirror : mirrors) {
+            X509CRL mirrored = crlByUrl.get(mirror);
+            if (mirrored != null && mirrored.getIssuerX500Principal().equals(crl.getIssuerX500Principal())) {
+                newest = X509CRLUtils.newest(newest, mirrored);
+            }
+        }
+        return isExpired(newest) ? crl : newest;
+    }
+
+    private static boolean isExpired(X509CRL crl) {
+        return crl.getNextUpdate() != null && crl.getNextUpdate().before(new Date());
+    }
+
+}
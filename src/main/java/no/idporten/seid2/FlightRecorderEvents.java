@@ -0,0 +1,60 @@
+package no.idporten.seid2;
+
+/**
+ * Begins flight recorder events only when the jdk.jfr module is available, so that the library also runs on runtime
+ * images without it.  The event classes extend jdk.jfr.Event and are never loaded when the module is missing, so each
+ * method returns null instead of an event, and callers commit only events that were begun.
+ */
+final class FlightRecorderEvents {
+
+    static final boolean AVAILABLE = isAvailable();
+
+    private FlightRecorderEvents() {
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, FlightRecorderEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return begun event, or null if the flight recorder is not available
+     */
+    static CertificateParseEvent beginCertificateParse() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        CertificateParseEvent event = new CertificateParseEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @return begun event, or null if the flight recorder is not available
+     */
+    static RuleEvaluationEvent beginRuleEvaluation() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        RuleEvaluationEvent event = new RuleEvaluationEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @return begun event, or null if the flight recorder is not available
+     */
+    static CrlLoadEvent beginCrlLoad() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        CrlLoadEvent event = new CrlLoadEvent();
+        event.begin();
+        return event;
+    }
+
+}
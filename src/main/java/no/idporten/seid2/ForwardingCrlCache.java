@@ -0,0 +1,60 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.api.AsyncCrlCache;
+import no.idporten.validator.certificate.api.CrlCache;
+
+import java.security.cert.X509CRL;
+import java.util.Objects;
+
+/**
+ * Base class for CRL caches adding behaviour to another CRL cache.  Forwards all calls to the delegate.
+ */
+abstract class ForwardingCrlCache implements CrlCache {
+
+    private final CrlCache delegate;
+
+    ForwardingCrlCache(CrlCache delegate) {
+        this.delegate = Objects.requireNonNull(delegate);
+    }
+
+    CrlCache getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public X509CRL get(String url) {
+        return delegate.get(url);
+    }
+
+    @Override
+    public void set(String url, X509CRL crl) {
+        delegate.set(url, crl);
+    }
+
+    /**
+     * Gets a CRL already held in a chain of forwarding caches, without loading it.
+     *
+     * @return cached CRL, or null
+     */
+    static X509CRL peek(CrlCache crlCache, String url) {
+        CrlCache cache = crlCache;
+        while (cache instanceof ForwardingCrlCache) {
+            cache = ((ForwardingCrlCache) cache).getDelegate();
+        }
+        return cache.get(url);
+    }
+
+    /**
+     * Finds the async CRL cache in a chain of forwarding caches.
+     *
+     * @return async CRL cache, or null if there is none
+     */
+    static AsyncCrlCache findAsyncCrlCache(CrlCache crlCache) {
+        CrlCache cache = crlCache;
+        while (!(cache instanceof AsyncCrlCache) && cache instanceof ForwardingCrlCache) {
+            cache = ((ForwardingCrlCache) cache).getDelegate();
+        }
+        return cache instanceof AsyncCrlCache ? (AsyncCrlCache) cache : null;
+    }
+
+}
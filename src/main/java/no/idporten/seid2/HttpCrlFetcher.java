@@ -0,0 +1,322 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.api.CrlCache;
+import no.idporten.validator.certificate.api.CrlFetcher;
+import no.idporten.validator.certificate.util.CrlUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.cert.X509CRL;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * CRL fetcher downloading CRLs with a shared HTTP client, replacing the certvalidator CachingCrlFetcher.  Like the
+ * caching CRL fetcher, a cached CRL is used until its nextUpdate.  After that the CRL is downloaded with the ETag and
+ * Last-Modified of the previous download, so an unchanged CRL costs a 304 response and no parsing.  Downloads accept
+ * gzip compressed transfers, and the default HTTP client prefers HTTP/2 and reuses connections.  A download larger
+ * than the maximum CRL size, before or after decompression, is aborted.
+ * <p>
+ * Concurrent requests for the same distribution point share one download, so a CRL expiring during a burst of
+ * validations is downloaded and parsed once.  With a stale grace period, an expired CRL is served until its nextUpdate
+ * plus the grace period while it is downloaded in the background.  At most one background download runs per
+ * distribution point, and after a failed background download the expired CRL is served for a minute before the next
+ * attempt.  Likewise, when the server answers that an expired CRL is not modified, the expired CRL is served for a
+ * minute before it is requested again, rather than costing a request on every validation.
+ */
+public final class HttpCrlFetcher implements CrlFetcher {
+
+    private static final Logger log = LoggerFactory.getLogger(HttpCrlFetcher.class);
+
+    /**
+     * Default connect and request timeout.
+     */
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(10);
+
+    /**
+     * Default maximum size in bytes of a downloaded CRL.
+     */
+    public static final int DEFAULT_MAXIMUM_SIZE = 64 * 1024 * 1024;
+
+    static final long BACKGROUND_RETRY_BACKOFF_MILLIS = 60 * 1000;
+    static final long NOT_MODIFIED_BACKOFF_MILLIS = 60 * 1000;
+
+    private final CrlCache crlCache;
+    private final HttpClient httpClient;
+    private final Duration timeout;
+    private final long staleGraceMillis;
+    private final Executor executor;
+    private final int maximumSize;
+    private final Map<String, Validators> validatorsByUrl = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<X509CRL>> downloadsByUrl = new ConcurrentHashMap<>();
+    private final Map<String, Long> failedBackgroundDownloads = new ConcurrentHashMap<>();
+    private final Map<String, Long> notModifiedUntil = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a fetcher with the shared default HTTP client and timeout.
+     *
+     * @param crlCache CRL cache
+     */
+    public HttpCrlFetcher(CrlCache crlCache) {
+        this(crlCache, sharedHttpClient(), DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Creates a fetcher with an application provided HTTP client.
+     *
+     * @param crlCache   CRL cache
+     * @param httpClient HTTP client
+     * @param timeout    request timeout
+     */
+    public HttpCrlFetcher(CrlCache crlCache, HttpClient httpClient, Duration timeout) {
+        this(crlCache, httpClient, timeout, Duration.ZERO, ValidatorOptions.sharedExecutor());
+    }
+
+    /**
+     * Creates a fetcher serving expired CRLs while they are downloaded in the background.
+     *
+     * @param crlCache   CRL cache
+     * @param httpClient HTTP client
+     * @param timeout    request timeout
+     * @param staleGrace time after nextUpdate an expired CRL is served while a new CRL is downloaded, zero to wait
+     *                   for the download
+     * @param executor   executor for background downloads
+     */
+    public HttpCrlFetcher(CrlCache crlCache, HttpClient httpClient, Duration timeout, Duration staleGrace, Executor executor) {
+        this(crlCache, httpClient, timeout, staleGrace, executor, DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * Creates a fetcher serving expired CRLs while they are downloaded in the background, with a maximum CRL size.
+     *
+     * @param crlCache    CRL cache
+     * @param httpClient  HTTP client
+     * @param timeout     request timeout
+     * @param staleGrace  time after nextUpdate an expired CRL is served while a new CRL is downloaded, zero to wait
+     *                    for the download
+     * @param executor    executor for background downloads
+     * @param maximumSize maximum size in bytes of a downloaded CRL, after decompression
+     */
+    public HttpCrlFetcher(CrlCache crlCache, HttpClient httpClient, Duration timeout, Duration staleGrace, Executor executor, int maximumSize) {
+        if (staleGrace.isNegative()) {
+            throw new IllegalArgumentException("Stale grace period must not be negative");
+        }
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Maximum CRL size must be positive");
+        }
+        this.crlCache = Objects.requireNonNull(crlCache);
+        this.httpClient = Objects.requireNonNull(httpClient);
+        this.timeout = Objects.requireNonNull(timeout);
+        this.staleGraceMillis = staleGrace.toMillis();
+        this.executor = Objects.requireNonNull(executor);
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Creates an HTTP client preferring HTTP/2 and following redirects, with a connect timeout.
+     *
+     * @param connectTimeout connect timeout
+     * @return HTTP client
+     */
+    public static HttpClient defaultHttpClient(Duration connectTimeout) {
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(connectTimeout)
+                .build();
+    }
+
+    /**
+     * The default HTTP client shared by validators not given an HTTP client, so that connections are reused across
+     * validators and reloads.
+     */
+    static HttpClient sharedHttpClient() {
+        return SharedHttpClient.INSTANCE;
+    }
+
+    private static final class SharedHttpClient {
+        private static final HttpClient INSTANCE = defaultHttpClient(DEFAULT_TIMEOUT);
+    }
+
+    @Override
+    public X509CRL get(String url) {
+        X509CRL cached = crlCache.get(url);
+        if (isCurrent(cached, 0)) {
+            return cached;
+        }
+        if (cached != null && isNotModified(url)) {
+            return cached;
+        }
+        if (staleGraceMillis > 0 && isCurrent(cached, staleGraceMillis)) {
+            revalidate(url);
+            return cached;
+        }
+        return fetch(url);
+    }
+
+    /**
+     * Tells whether the server recently answered that the expired cached CRL is not modified.
+     */
+    private boolean isNotModified(String url) {
+        Long until = notModifiedUntil.get(url);
+        if (until == null) {
+            return false;
+        }
+        if (until > System.currentTimeMillis()) {
+            return true;
+        }
+        notModifiedUntil.remove(url, until);
+        return false;
+    }
+
+    /**
+     * Starts a background download unless one is in progress for the distribution point, or the last one failed
+     * recently.
+     */
+    private void revalidate(String url) {
+        Long until = failedBackgroundDownloads.get(url);
+        if (until != null && until > System.currentTimeMillis()) {
+            return;
+        }
+        CompletableFuture<X509CRL> download = new CompletableFuture<>();
+        if (downloadsByUrl.putIfAbsent(url, download) != null) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                if (complete(url, download) == null) {
+                    failedBackgroundDownloads.put(url, System.currentTimeMillis() + BACKGROUND_RETRY_BACKOFF_MILLIS);
+                } else {
+                    failedBackgroundDownloads.remove(url);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            downloadsByUrl.remove(url, download);
+            download.complete(null);
+        }
+    }
+
+    /**
+     * Downloads a CRL and caches it, or waits for the download already in progress for the distribution point.
+     *
+     * @return the CRL, or null if the download failed
+     */
+    private X509CRL fetch(String url) {
+        CompletableFuture<X509CRL> download = new CompletableFuture<>();
+        CompletableFuture<X509CRL> inProgress = downloadsByUrl.putIfAbsent(url, download);
+        if (inProgress != null) {
+            try {
+                return inProgress.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                return null;
+            }
+        }
+        return complete(url, download);
+    }
+
+    /**
+     * Runs a download registered for the distribution point, and completes it.
+     *
+     * @return the CRL, or null if the download failed
+     */
+    private X509CRL complete(String url, CompletableFuture<X509CRL> download) {
+        X509CRL crl = null;
+        try {
+            X509CRL cached = crlCache.get(url);
+            crl = isCurrent(cached, 0) ? cached : download(url, cached);
+            if (crl != cached) {
+                crlCache.set(url, crl);
+            }
+            return crl;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            log.warn("Failed to download CRL {}: {}", url, e.getMessage());
+            return null;
+        } finally {
+            downloadsByUrl.remove(url, download);
+            download.complete(crl);
+        }
+    }
+
+    private static boolean isCurrent(X509CRL crl, long graceMillis) {
+        return crl != null && (crl.getNextUpdate() == null || crl.getNextUpdate().getTime() + graceMillis > System.currentTimeMillis());
+    }
+
+    /**
+     * Downloads a CRL, conditionally if a CRL is cached.
+     *
+     * @param url    CRL distribution point
+     * @param cached the cached CRL, or null
+     * @return the downloaded CRL, or the cached CRL if it is unchanged on the server
+     */
+    X509CRL download(String url, X509CRL cached) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url))
+                .timeout(timeout)
+                .header("Accept-Encoding", "gzip")
+                .GET();
+        Validators validators = validatorsByUrl.get(url);
+        if (cached != null && validators != null) {
+            validators.etag.ifPresent(etag -> request.header("If-None-Match", etag));
+            validators.lastModified.ifPresent(lastModified -> request.header("If-Modified-Since", lastModified));
+        }
+        HttpResponse<InputStream> response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream body = response.body()) {
+            if (response.statusCode() == 304 && cached != null) {
+                log.debug("CRL {} is not modified", url);
+                if (!isCurrent(cached, 0)) {
+                    notModifiedUntil.put(url, System.currentTimeMillis() + NOT_MODIFIED_BACKOFF_MILLIS);
+                }
+                return cached;
+            }
+            if (response.statusCode() != 200) {
+                throw new IOException("HTTP status " + response.statusCode());
+            }
+            boolean gzip = response.headers().firstValue("Content-Encoding").map("gzip"::equalsIgnoreCase).orElse(false);
+            byte[] encoded = (gzip ? new GZIPInputStream(body) : body).readNBytes((int) Math.min(maximumSize + 1L, Integer.MAX_VALUE - 8));
+            if (encoded.length > maximumSize) {
+                throw new IOException(String.format("CRL is larger than %d bytes", maximumSize));
+            }
+            X509CRL crl = CrlUtils.load(new ByteArrayInputStream(encoded));
+            validatorsByUrl.put(url, new Validators(response.headers().firstValue("ETag"), response.headers().firstValue("Last-Modified")));
+            notModifiedUntil.remove(url);
+            return crl;
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to parse CRL", e);
+        }
+    }
+
+    private static final class Validators {
+
+        private final Optional<String> etag;
+        private final Optional<String> lastModified;
+
+        private Validators(Optional<String> etag, Optional<String> lastModified) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+    }
+
+}
@@ -0,0 +1,148 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.api.CertificateValidationException;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Guard against hostile certificate inputs, checked before any parsing.  Inputs larger than the maximum size are
+ * rejected without being read, and inputs that failed to parse are remembered by a hash of their raw characters or
+ * bytes, so the same garbage sent again is rejected with one table lookup.  The hash is seeded randomly per instance,
+ * so colliding inputs cannot be prepared in advance.  The table of rejected inputs is direct-mapped: a new rejection
+ * replaces the one in its slot, which bounds the memory and keeps lookups lock-free.
+ */
+final class InputGuard {
+
+    private static final long NO_HASH = 0;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int maximumSize;
+    private final AtomicLongArray rejected;
+    private final int mask;
+    private final long seed = new SecureRandom().nextLong();
+    private final CertificateValidationException tooLarge;
+    private final CertificateValidationException rejectedBefore;
+
+    /**
+     * Creates an input guard.
+     *
+     * @param maximumSize            maximum input size in characters or bytes
+     * @param rejectedInputCacheSize number of rejected inputs remembered, rounded up to a power of two, zero to
+     *                               remember none
+     */
+    InputGuard(int maximumSize, int rejectedInputCacheSize) {
+        if (maximumSize < 1 || rejectedInputCacheSize < 0) {
+            throw new IllegalArgumentException("Maximum size must be positive and rejected input cache size not negative");
+        }
+        this.maximumSize = maximumSize;
+        int capacity = rejectedInputCacheSize == 0 ? 0 : Integer.highestOneBit(Math.max(1, rejectedInputCacheSize - 1)) << 1;
+        this.rejected = capacity == 0 ? null : new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        this.tooLarge = withoutStackTrace(new CertificateValidationException("Certificate input exceeds " + maximumSize + " characters or bytes"));
+        this.rejectedBefore = withoutStackTrace(new CertificateValidationException("Certificate input was rejected before"));
+    }
+
+    private static CertificateValidationException withoutStackTrace(CertificateValidationException e) {
+        e.setStackTrace(new StackTraceElement[0]);
+        return e;
+    }
+
+    /**
+     * Checks an input before it is parsed.
+     *
+     * @param size size of the input in characters or bytes
+     * @param hash hash of the input, or {@link #NO_HASH} when rejected inputs are not remembered
+     * @return the reason to reject the input, or null if it should be parsed
+     */
+    CertificateValidationException check(int size, long hash) {
+        if (size > maximumSize) {
+            return tooLarge;
+        }
+        if (hash != NO_HASH && rejected.get(slot(hash)) == hash) {
+            return rejectedBefore;
+        }
+        return null;
+    }
+
+    /**
+     * Remembers an input that failed to parse.
+     */
+    void reject(long hash) {
+        if (hash != NO_HASH) {
+            rejected.set(slot(hash), hash);
+        }
+    }
+
+    boolean isRemembering() {
+        return rejected != null;
+    }
+
+    int maximumSize() {
+        return maximumSize;
+    }
+
+    private int slot(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    long hash(CharSequence input) {
+        if (rejected == null || input == null) {
+            return NO_HASH;
+        }
+        long hash = seed;
+        for (int i = 0; i < input.length(); i++) {
+            hash = (hash ^ input.charAt(i)) * FNV_PRIME;
+        }
+        return finish(hash, input.length());
+    }
+
+    long hash(byte[] input) {
+        if (rejected == null || input == null) {
+            return NO_HASH;
+        }
+        long hash = seed;
+        for (byte b : input) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return finish(hash, input.length);
+    }
+
+    long hash(ByteBuffer input) {
+        if (rejected == null || input == null) {
+            return NO_HASH;
+        }
+        long hash = seed;
+        for (int i = input.position(); i < input.limit(); i++) {
+            hash = (hash ^ (input.get(i) & 0xff)) * FNV_PRIME;
+        }
+        return finish(hash, input.remaining());
+    }
+
+    long hash(List<String> input) {
+        if (rejected == null || input == null) {
+            return NO_HASH;
+        }
+        long hash = seed;
+        for (String element : input) {
+            hash = hash * 31 + hash(element);
+        }
+        return finish(hash, input.size());
+    }
+
+    /**
+     * Mixes in the length and spreads the bits, as the murmur3 finalizer does.
+     */
+    private static long finish(long hash, int length) {
+        hash ^= length;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == NO_HASH ? 1 : hash;
+    }
+
+}
@@ -0,0 +1,53 @@
+package no.idporten.seid2;
+
+import java.security.GeneralSecurityException;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Small pool of security service instances that are not guaranteed to be thread-safe, like certificate factories and
+ * certification path validators.  Each use borrows an instance, creating one if the pool is empty, so instances are
+ * reused across threads, also virtual threads, without being looked up again.
+ */
+final class InstancePool<T> {
+
+    /**
+     * Creates an instance.
+     */
+    @FunctionalInterface
+    interface Factory<T> {
+        T create() throws GeneralSecurityException;
+    }
+
+    /**
+     * Work done with a borrowed instance.
+     */
+    @FunctionalInterface
+    interface Use<T, R> {
+        R apply(T instance) throws GeneralSecurityException;
+    }
+
+    private final Factory<T> factory;
+    private final BlockingQueue<T> instances = new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors());
+
+    InstancePool(Factory<T> factory) {
+        this.factory = Objects.requireNonNull(factory);
+    }
+
+    /**
+     * Runs work with an instance borrowed from the pool, and returns the instance to the pool unless it is full.
+     */
+    <R> R use(Use<T, R> use) throws GeneralSecurityException {
+        T instance = instances.poll();
+        if (instance == null) {
+            instance = factory.create();
+        }
+        try {
+            return use.apply(instance);
+        } finally {
+            instances.offer(instance);
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.api.CertificateValidationException;
+import no.idporten.validator.certificate.api.CrlCache;
+import no.idporten.validator.certificate.api.CrlFetcher;
+
+import java.security.cert.X509CRL;
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * CRL fetcher reporting CRL cache hits, misses and downloads to a listener, and downloads as flight recorder events.
+ * A cached CRL past its nextUpdate is a miss, like in the caching CRL fetcher.  A hit returns the cached CRL without
+ * going through the delegate.
+ */
+final class InstrumentedCrlFetcher implements CrlFetcher {
+
+    private final CrlFetcher delegate;
+    private final CrlCache crlCache;
+    private final ValidationListener listener;
+
+    InstrumentedCrlFetcher(CrlFetcher delegate, CrlCache crlCache, ValidationListener listener) {
+        this.delegate = Objects.requireNonNull(delegate);
+        this.crlCache = Objects.requireNonNull(crlCache);
+        this.listener = Objects.requireNonNull(listener);
+    }
+
+    @Override
+    public X509CRL get(String url) throws CertificateValidationException {
+        X509CRL cached = crlCache.get(url);
+        if (cached != null && (cached.getNextUpdate() == null || cached.getNextUpdate().after(new Date()))) {
+            listener.crlCacheHit(url);
+            return cached;
+        }
+        listener.crlCacheMiss(url);
+        CrlLoadEvent event = FlightRecorderEvents.beginCrlLoad();
+        long start = System.nanoTime();
+        X509CRL crl = delegate.get(url);
+        if (crl != null && crl != cached) {
+            listener.crlRefreshed(url, crl, System.nanoTime() - start);
+            if (event != null) {
+                event.commit(url, CrlLoadEvent.DOWNLOAD, crl, () -> CrlLoadEvent.encodedSize(crl));
+            }
+        }
+        return crl;
+    }
+
+}
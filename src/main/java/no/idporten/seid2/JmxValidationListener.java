@@ -0,0 +1,118 @@
+package no.idporten.seid2;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.security.cert.X509CRL;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Listener collecting validation statistics and publishing them as an MXBean.  Uses no dependencies beyond the JDK.
+ *
+ * @see ValidationStatisticsMXBean
+ */
+public class JmxValidationListener implements ValidationListener, ValidationStatisticsMXBean {
+
+    private final ConcurrentMap<String, LongAdder> rulePassCounts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> ruleFailCounts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> ruleTotalNanos = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> crlCacheHits = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> crlCacheMisses = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> crlThisUpdates = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> crlSizes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> crlLastRefreshNanos = new ConcurrentHashMap<>();
+
+    /**
+     * Registers the listener in the platform MBean server.
+     *
+     * @param name value of the name key in the object name {@code no.idporten.seid2:type=ValidationStatistics,name=...}
+     * @return the registered object name
+     * @throws JMException if registration fails
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("no.idporten.seid2:type=ValidationStatistics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    @Override
+    public void ruleCompleted(String rule, boolean passed, long durationNanos) {
+        (passed ? rulePassCounts : ruleFailCounts).computeIfAbsent(rule, key -> new LongAdder()).increment();
+        ruleTotalNanos.computeIfAbsent(rule, key -> new LongAdder()).add(durationNanos);
+    }
+
+    @Override
+    public void crlCacheHit(String distributionPoint) {
+        crlCacheHits.computeIfAbsent(distributionPoint, key -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void crlCacheMiss(String distributionPoint) {
+        crlCacheMisses.computeIfAbsent(distributionPoint, key -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void crlRefreshed(String distributionPoint, X509CRL crl, long durationNanos) {
+        crlLastRefreshNanos.put(distributionPoint, durationNanos);
+    }
+
+    @Override
+    public void crlInUse(String distributionPoint, long thisUpdate, int revokedCertificates) {
+        crlThisUpdates.put(distributionPoint, thisUpdate);
+        crlSizes.put(distributionPoint, (long) revokedCertificates);
+    }
+
+    @Override
+    public Map<String, Long> getRulePassCounts() {
+        return snapshot(rulePassCounts, LongAdder::sum);
+    }
+
+    @Override
+    public Map<String, Long> getRuleFailCounts() {
+        return snapshot(ruleFailCounts, LongAdder::sum);
+    }
+
+    @Override
+    public Map<String, Long> getRuleTotalMicros() {
+        return snapshot(ruleTotalNanos, adder -> TimeUnit.NANOSECONDS.toMicros(adder.sum()));
+    }
+
+    @Override
+    public Map<String, Long> getCrlCacheHits() {
+        return snapshot(crlCacheHits, LongAdder::sum);
+    }
+
+    @Override
+    public Map<String, Long> getCrlCacheMisses() {
+        return snapshot(crlCacheMisses, LongAdder::sum);
+    }
+
+    @Override
+    public Map<String, Long> getCrlAgeSeconds() {
+        long now = System.currentTimeMillis();
+        return snapshot(crlThisUpdates, thisUpdate -> TimeUnit.MILLISECONDS.toSeconds(now - thisUpdate));
+    }
+
+    @Override
+    public Map<String, Long> getCrlSizes() {
+        return snapshot(crlSizes, Function.identity());
+    }
+
+    @Override
+    public Map<String, Long> getCrlLastRefreshMillis() {
+        return snapshot(crlLastRefreshNanos, TimeUnit.NANOSECONDS::toMillis);
+    }
+
+    private static <T> Map<String, Long> snapshot(Map<String, T> values, Function<T, Long> value) {
+        Map<String, Long> snapshot = new TreeMap<>();
+        values.forEach((key, v) -> snapshot.put(key, value.apply(v)));
+        return snapshot;
+    }
+
+}
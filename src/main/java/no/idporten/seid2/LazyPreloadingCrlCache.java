@@ -0,0 +1,53 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.api.CrlCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.cert.X509CRL;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * CRL cache loading pre-loaded CRLs on first use.  A pre-loaded CRL is parsed when a certificate from its issuer is
+ * first validated and the delegate has no CRL for the distribution point.  Concurrent first uses parse the CRL once.
+ */
+final class LazyPreloadingCrlCache extends ForwardingCrlCache {
+
+    private final Logger log = LoggerFactory.getLogger(LazyPreloadingCrlCache.class);
+
+    private final Set<String> distributionPointUrls;
+    private final Function<String, X509CRL> preloaded;
+    private final Map<String, X509CRL> loading = new ConcurrentHashMap<>();
+
+    LazyPreloadingCrlCache(CrlCache delegate, Set<String> distributionPointUrls, Function<String, X509CRL> preloaded) {
+        super(delegate);
+        this.distributionPointUrls = Set.copyOf(distributionPointUrls);
+        this.preloaded = Objects.requireNonNull(preloaded);
+    }
+
+    @Override
+    public X509CRL get(String url) {
+        X509CRL crl = super.get(url);
+        if (crl != null || !distributionPointUrls.contains(url)) {
+            return crl;
+        }
+        try {
+            crl = loading.computeIfAbsent(url, key -> {
+                X509CRL cached = LazyPreloadingCrlCache.super.get(key);
+                return cached != null ? cached : preloaded.apply(key);
+            });
+            super.set(url, crl);
+            return crl;
+        } catch (SEID2CertificateValidatorInitException e) {
+            log.warn("Failed to load pre-loaded CRL for {}", url, e);
+            return null;
+        } finally {
+            loading.remove(url);
+        }
+    }
+
+}
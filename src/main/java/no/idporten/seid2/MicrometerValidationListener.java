@@ -0,0 +1,113 @@
+package no.idporten.seid2;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.security.cert.X509CRL;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listener publishing validation metrics to a Micrometer meter registry.  Requires micrometer-core on the classpath.
+ * <ul>
+ *     <li>{@code seid2.validator.rule} timer, tagged with rule and result (pass or fail)</li>
+ *     <li>{@code seid2.validator.crl.cache} counter, tagged with distribution point and result (hit or miss)</li>
+ *     <li>{@code seid2.validator.crl.refresh} timer, tagged with distribution point</li>
+ *     <li>{@code seid2.validator.crl.age} gauge in seconds since thisUpdate of the CRL in use, tagged with distribution point</li>
+ *     <li>{@code seid2.validator.crl.size} gauge of revoked certificates in the CRL in use, tagged with distribution point</li>
+ * </ul>
+ */
+public class MicrometerValidationListener implements ValidationListener {
+
+    private final MeterRegistry registry;
+    private final Map<String, Timer> ruleTimers = new ConcurrentHashMap<>();
+    private final Map<String, Counter> crlCacheCounters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> crlRefreshTimers = new ConcurrentHashMap<>();
+    private final Map<String, CrlState> crlStates = new ConcurrentHashMap<>();
+
+    public MicrometerValidationListener(MeterRegistry registry) {
+        this.registry = Objects.requireNonNull(registry);
+    }
+
+    @Override
+    public void ruleCompleted(String rule, boolean passed, long durationNanos) {
+        String result = passed ? "pass" : "fail";
+        ruleTimers.computeIfAbsent(rule + '/' + result, key -> Timer.builder("seid2.validator.rule")
+                        .description("Time spent by validation rules")
+                        .tag("rule", rule)
+                        .tag("result", result)
+                        .register(registry))
+                .record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void crlCacheHit(String distributionPoint) {
+        crlCacheCounter(distributionPoint, "hit").increment();
+    }
+
+    @Override
+    public void crlCacheMiss(String distributionPoint) {
+        crlCacheCounter(distributionPoint, "miss").increment();
+    }
+
+    @Override
+    public void crlRefreshed(String distributionPoint, X509CRL crl, long durationNanos) {
+        crlRefreshTimers.computeIfAbsent(distributionPoint, key -> Timer.builder("seid2.validator.crl.refresh")
+                        .description("Time spent downloading CRLs")
+                        .tag("distribution.point", distributionPoint)
+                        .register(registry))
+                .record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void crlInUse(String distributionPoint, long thisUpdate, int revokedCertificates) {
+        crlStates.computeIfAbsent(distributionPoint, this::registerCrlGauges).update(thisUpdate, revokedCertificates);
+    }
+
+    private Counter crlCacheCounter(String distributionPoint, String result) {
+        return crlCacheCounters.computeIfAbsent(distributionPoint + '/' + result, key -> Counter.builder("seid2.validator.crl.cache")
+                .description("CRL cache lookups")
+                .tag("distribution.point", distributionPoint)
+                .tag("result", result)
+                .register(registry));
+    }
+
+    private CrlState registerCrlGauges(String distributionPoint) {
+        CrlState state = new CrlState();
+        Gauge.builder("seid2.validator.crl.age", state, CrlState::ageSeconds)
+                .description("Seconds since thisUpdate of the CRL in use")
+                .tag("distribution.point", distributionPoint)
+                .baseUnit("seconds")
+                .register(registry);
+        Gauge.builder("seid2.validator.crl.size", state, CrlState::size)
+                .description("Revoked certificates in the CRL in use")
+                .tag("distribution.point", distributionPoint)
+                .register(registry);
+        return state;
+    }
+
+    private static final class CrlState {
+
+        private volatile long thisUpdate;
+        private volatile int size;
+
+        void update(long thisUpdate, int size) {
+            this.thisUpdate = thisUpdate;
+            this.size = size;
+        }
+
+        double ageSeconds() {
+            return (System.currentTimeMillis() - thisUpdate) / 1000.0;
+        }
+
+        double size() {
+            return size;
+        }
+
+    }
+
+}
@@ -0,0 +1,80 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.api.CertificateValidationException;
+
+import java.security.cert.X509Certificate;
+import java.util.Objects;
+
+/**
+ * A validation rule with a name reported in validation results.  Rules checking the certificate alone are created
+ * with the constructor, and rules sharing lookups with other rules of the same validation with
+ * {@link #withContext(String, Cost, ContextCheck)}.
+ */
+final class NamedRule {
+
+    /**
+     * Validation performed by a rule.
+     */
+    @FunctionalInterface
+    interface Check {
+        void validate(X509Certificate certificate) throws CertificateValidationException;
+    }
+
+    /**
+     * Validation performed by a rule using the context of the validation.
+     */
+    @FunctionalInterface
+    interface ContextCheck {
+        void validate(ValidationContext context) throws CertificateValidationException;
+    }
+
+    /**
+     * Cost of running a rule.  Cheaper rules run first.
+     */
+    enum Cost {
+        /**
+         * Checks of certificate fields and lookups.
+         */
+        STRUCTURAL,
+        /**
+         * Signature verifications.
+         */
+        CRYPTOGRAPHIC,
+        /**
+         * Revocation checks, possibly downloading a CRL.
+         */
+        REVOCATION
+    }
+
+    private final String name;
+    private final Cost cost;
+    private final ContextCheck check;
+
+    NamedRule(String name, Cost cost, Check check) {
+        this(name, cost, (ContextCheck) context -> check.validate(context.getCertificate()));
+        Objects.requireNonNull(check);
+    }
+
+    private NamedRule(String name, Cost cost, ContextCheck check) {
+        this.name = Objects.requireNonNull(name);
+        this.cost = Objects.requireNonNull(cost);
+        this.check = Objects.requireNonNull(check);
+    }
+
+    static NamedRule withContext(String name, Cost cost, ContextCheck check) {
+        return new NamedRule(name, cost, check);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Cost getCost() {
+        return cost;
+    }
+
+    void validate(ValidationContext context) throws CertificateValidationException {
+        check.validate(context);
+    }
+
+}
@@ -0,0 +1,375 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.api.CertificateValidationException;
+import no.idporten.validator.certificate.api.FailedValidationException;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.cert.ocsp.jcajce.JcaCertificateID;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Revocation check with OCSP.  The responders in the certificate's authority information access extension are asked
+ * in turn, and a response is only used if it is signed by the certificate's issuer from the trust store, or by a
+ * responder certificate the issuer has issued for OCSP signing.  A response to a request with a nonce must carry the
+ * same nonce.  Good and revoked answers are cached until the nextUpdate of the response, and answers without a
+ * nextUpdate are only accepted, and cached, up to a maximum age after their thisUpdate.  A cached answer is only replaced by an answer with a later thisUpdate, and a revoked
+ * answer is never replaced by a good one.  Responders that failed are not asked again for a back-off period.
+ * Certificates without OCSP responders, and certificates no responder gave a verified answer for, are checked by the
+ * fallback rule, typically against CRLs.
+ */
+final class OcspRule {
+
+    private static final Logger log = LoggerFactory.getLogger(OcspRule.class);
+
+    private static final long CLOCK_SKEW_MILLIS = 5 * 60 * 1000;
+    private static final int MAXIMUM_RESPONSE_SIZE = 1024 * 1024;
+    static final long RESPONDER_BACKOFF_MILLIS = 60 * 1000;
+
+    /**
+     * Sends an encoded OCSP request to a responder and returns the encoded response.
+     */
+    @FunctionalInterface
+    interface Transport {
+        byte[] post(String url, byte[] request) throws IOException;
+    }
+
+    private final TrustStore trustStore;
+    private final NamedRule.Check fallback;
+    private final Transport transport;
+    private final boolean nonce;
+    private final long maximumAgeMillis;
+    private final Map<CertificateID, Status> cache;
+    private final Map<String, Long> failedResponders = new ConcurrentHashMap<>();
+    private final DigestCalculatorProvider digestCalculatorProvider;
+    private final SecureRandom random = new SecureRandom();
+
+    OcspRule(TrustStore trustStore, NamedRule.Check fallback, Transport transport, boolean nonce, Duration maximumAge, int cacheMaximumSize) {
+        this.trustStore = Objects.requireNonNull(trustStore);
+        this.fallback = Objects.requireNonNull(fallback);
+        this.transport = Objects.requireNonNull(transport);
+        this.nonce = nonce;
+        this.maximumAgeMillis = maximumAge.toMillis();
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CertificateID, Status> eldest) {
+                return size() > cacheMaximumSize;
+            }
+        };
+        try {
+            this.digestCalculatorProvider = new JcaDigestCalculatorProviderBuilder().build();
+        } catch (Exception e) {
+            throw new IllegalStateException("Digest calculators not available", e);
+        }
+    }
+
+    /**
+     * Transport posting requests over HTTP.
+     *
+     * @param httpClient HTTP client
+     * @param timeout    request timeout
+     */
+    static Transport http(HttpClient httpClient, Duration timeout) {
+        return (url, request) -> {
+            HttpRequest httpRequest = HttpRequest.newBuilder(URI.create(url))
+                    .timeout(timeout)
+                    .header("Content-Type", "application/ocsp-request")
+                    .header("Accept", "application/ocsp-response")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(request))
+                    .build();
+            HttpResponse<InputStream> response;
+            try {
+                response = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofInputStream());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+            try (InputStream in = response.body()) {
+                if (response.statusCode() != 200) {
+                    throw new IOException(String.format("OCSP responder %s returned HTTP status %d", url, response.statusCode()));
+                }
+                byte[] body = in.readNBytes(MAXIMUM_RESPONSE_SIZE + 1);
+                if (body.length > MAXIMUM_RESPONSE_SIZE) {
+                    throw new IOException(String.format("OCSP response from %s is too large", url));
+                }
+                return body;
+            }
+        };
+    }
+
+    void validate(ValidationContext context) throws CertificateValidationException {
+        X509Certificate certificate = context.getCertificate();
+        List<String> urls = X509CertificateUtils.ocspUrls(certificate);
+        if (urls.isEmpty()) {
+            fallback.validate(certificate);
+            return;
+        }
+        List<X509Certificate> issuers = context.issuers(trustStore);
+        for (X509Certificate issuer : issuers) {
+            Status status = cached(certificateId(certificate, issuer));
+            if (status != null) {
+                status.check();
+                return;
+            }
+        }
+        for (X509Certificate issuer : issuers) {
+            for (String url : urls) {
+                if (isBackingOff(url)) {
+                    continue;
+                }
+                try {
+                    Status status = fetch(url, certificate, issuer);
+                    if (status != null) {
+                        status.check();
+                        return;
+                    }
+                } catch (IOException | OCSPException e) {
+                    log.debug("No OCSP answer from {} for certificate {}: {}", url, certificate.getSerialNumber(), e.getMessage());
+                    failedResponders.put(url, System.currentTimeMillis() + RESPONDER_BACKOFF_MILLIS);
+                }
+            }
+        }
+        fallback.validate(certificate);
+    }
+
+    private boolean isBackingOff(String url) {
+        Long until = failedResponders.get(url);
+        if (until == null) {
+            return false;
+        }
+        if (until > System.currentTimeMillis()) {
+            return true;
+        }
+        failedResponders.remove(url, until);
+        return false;
+    }
+
+    /**
+     * Accepts a stapled or pre-fetched OCSP response for a certificate.  A verified good or revoked answer is cached
+     * until its nextUpdate, and is used by the next validations of the certificate instead of asking a responder.
+     *
+     * @return true if the response was verified
+     */
+    boolean accept(ValidationContext context, byte[] response) {
+        X509Certificate certificate = context.getCertificate();
+        for (X509Certificate issuer : context.issuers(trustStore)) {
+            try {
+                if (verify(certificateId(certificate, issuer), issuer, response, null) != null) {
+                    return true;
+                }
+            } catch (IOException | OCSPException | CertificateValidationException e) {
+                log.debug("Ignoring OCSP response for certificate {}: {}", certificate.getSerialNumber(), e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    private Status fetch(String url, X509Certificate certificate, X509Certificate issuer) throws IOException, OCSPException, CertificateValidationException {
+        CertificateID id = certificateId(certificate, issuer);
+        OCSPReqBuilder request = new OCSPReqBuilder().addRequest(id);
+        byte[] nonceValue = null;
+        if (nonce) {
+            nonceValue = new byte[16];
+            random.nextBytes(nonceValue);
+            request.setRequestExtensions(new Extensions(new Extension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce, false, new DEROctetString(nonceValue).getEncoded())));
+        }
+        return verify(id, issuer, transport.post(url, request.build().getEncoded()), nonceValue);
+    }
+
+    /**
+     * Verifies a response and caches its answer for the certificate.
+     *
+     * @return the answer, or the cached answer if it is revoked or newer, or null if the response has no good or
+     * revoked answer for the certificate
+     */
+    private Status verify(CertificateID id, X509Certificate issuer, byte[] encoded, byte[] nonceValue) throws IOException, OCSPException {
+        OCSPResp response = new OCSPResp(encoded);
+        if (response.getStatus() != OCSPResp.SUCCESSFUL) {
+            throw new OCSPException("OCSP response status " + response.getStatus());
+        }
+        BasicOCSPResp basicResponse = (BasicOCSPResp) response.getResponseObject();
+        verifySignature(basicResponse, issuer);
+        Extension responseNonce = basicResponse.getExtension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce);
+        if (nonceValue != null && responseNonce == null) {
+            throw new OCSPException("OCSP response has no nonce");
+        }
+        if (nonceValue != null && !Arrays.equals(responseNonce.getExtnValue().getOctets(), new DEROctetString(nonceValue).getEncoded())) {
+            throw new OCSPException("OCSP response nonce does not match request");
+        }
+        long now = System.currentTimeMillis();
+        for (SingleResp singleResponse : basicResponse.getResponses()) {
+            if (!singleResponse.getCertID().equals(id)) {
+                continue;
+            }
+            long thisUpdate = singleResponse.getThisUpdate().getTime();
+            Date nextUpdate = singleResponse.getNextUpdate();
+            if (nextUpdate == null) {
+                nextUpdate = new Date(thisUpdate + maximumAgeMillis);
+            }
+            if (thisUpdate > now + CLOCK_SKEW_MILLIS || nextUpdate.getTime() < now - CLOCK_SKEW_MILLIS) {
+                throw new OCSPException("OCSP response is not current");
+            }
+            CertificateStatus certificateStatus = singleResponse.getCertStatus();
+            Status status;
+            if (certificateStatus == CertificateStatus.GOOD) {
+                status = new Status(RevokedSerialIndex.NOT_REVOKED, thisUpdate, nextUpdate);
+            } else if (certificateStatus instanceof RevokedStatus) {
+                status = new Status(((RevokedStatus) certificateStatus).getRevocationTime().getTime(), thisUpdate, nextUpdate);
+            } else {
+                return null;
+            }
+            return remember(id, status);
+        }
+        return null;
+    }
+
+    private void verifySignature(BasicOCSPResp response, X509Certificate issuer) throws OCSPException {
+        try {
+            PublicKey key = issuer.getPublicKey();
+            for (X509CertificateHolder holder : response.getCerts()) {
+                X509Certificate responder = new JcaX509CertificateConverter().getCertificate(holder);
+                List<String> extendedKeyUsage = responder.getExtendedKeyUsage();
+                if (!responder.equals(issuer) && responder.getIssuerX500Principal().equals(issuer.getSubjectX500Principal())
+                        && extendedKeyUsage != null && extendedKeyUsage.contains(KeyPurposeId.id_kp_OCSPSigning.getId())) {
+                    responder.verify(issuer.getPublicKey());
+                    responder.checkValidity();
+                    key = responder.getPublicKey();
+                    break;
+                }
+            }
+            if (!response.isSignatureValid(new JcaContentVerifierProviderBuilder().build(key))) {
+                throw new OCSPException("OCSP response signature is not valid");
+            }
+        } catch (OCSPException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new OCSPException("Failed to verify OCSP response signature", e);
+        }
+    }
+
+    private CertificateID certificateId(X509Certificate certificate, X509Certificate issuer) throws CertificateValidationException {
+        try {
+            return new JcaCertificateID(digestCalculatorProvider.get(CertificateID.HASH_SHA1), issuer, certificate.getSerialNumber());
+        } catch (Exception e) {
+            throw new CertificateValidationException("Failed to create OCSP certificate id", e);
+        }
+    }
+
+    /**
+     * Caches an answer unless the cached answer is revoked or newer.
+     *
+     * @return the answer now cached
+     */
+    private Status remember(CertificateID id, Status status) {
+        synchronized (cache) {
+            Status cached = cache.get(id);
+            if (cached != null && (cached.isRevoked() && !status.isRevoked() || cached.thisUpdate > status.thisUpdate)) {
+                return cached;
+            }
+            cache.put(id, status);
+            return status;
+        }
+    }
+
+    private Status cached(CertificateID id) {
+        synchronized (cache) {
+            Status status = cache.get(id);
+            if (status != null && status.nextUpdate.getTime() <= System.currentTimeMillis()) {
+                cache.remove(id);
+                return null;
+            }
+            return status;
+        }
+    }
+
+    /**
+     * Gets the time the cached answer for a certificate expires, so that results depending on the answer are not kept
+     * longer.
+     *
+     * @return nextUpdate of the cached answer, {@link Long#MAX_VALUE} if the certificate has no OCSP responders and is
+     * checked by the fallback rule, or 0 if no answer is cached
+     */
+    long nextUpdate(ValidationContext context) {
+        X509Certificate certificate = context.getCertificate();
+        if (X509CertificateUtils.ocspUrls(certificate).isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        for (X509Certificate issuer : context.issuers(trustStore)) {
+            try {
+                Status status = cached(certificateId(certificate, issuer));
+                if (status != null) {
+                    return status.nextUpdate.getTime();
+                }
+            } catch (CertificateValidationException e) {
+                // no answer cached for this issuer
+            }
+        }
+        return 0;
+    }
+
+    int cacheSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private static final class Status {
+
+        private final long revocationDate;
+        private final long thisUpdate;
+        private final Date nextUpdate;
+
+        private Status(long revocationDate, long thisUpdate, Date nextUpdate) {
+            this.revocationDate = revocationDate;
+            this.thisUpdate = thisUpdate;
+            this.nextUpdate = nextUpdate;
+        }
+
+        private boolean isRevoked() {
+            return revocationDate != RevokedSerialIndex.NOT_REVOKED;
+        }
+
+        private void check() throws FailedValidationException {
+            if (isRevoked()) {
+                throw new FailedValidationException("Certificate is revoked since " + Instant.ofEpochMilli(revocationDate) + ".");
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,198 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.api.CrlCache;
+import no.idporten.validator.certificate.util.CrlUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.cert.X509CRL;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * CRL cache persisting CRLs to a local directory, so that restarts use the freshest CRLs seen instead of the
+ * pre-loaded CRLs or a burst of downloads.  CRLs are held in memory by the delegate cache.  Every new CRL set in the
+ * cache is written atomically to the directory, with the encoded distribution point url as file name.  CRLs missing in
+ * the delegate are read back from the directory, optionally through memory-mapped files.
+ */
+public final class PersistentCrlCache extends ForwardingCrlCache {
+
+    private final Logger log = LoggerFactory.getLogger(PersistentCrlCache.class);
+
+    private final Path directory;
+    private final boolean memoryMapped;
+    private final Map<String, Date> persistedThisUpdate = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a persistent CRL cache.
+     *
+     * @param delegate     in-memory CRL cache
+     * @param directory    directory for CRL files, created if missing
+     * @param memoryMapped read CRL files through memory-mapped files
+     */
+    public PersistentCrlCache(CrlCache delegate, Path directory, boolean memoryMapped) {
+        super(delegate);
+        this.directory = Objects.requireNonNull(directory);
+        this.memoryMapped = memoryMapped;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new SEID2CertificateValidatorInitException(String.format("Failed to create CRL cache directory %s", directory), e);
+        }
+    }
+
+    @Override
+    public X509CRL get(String url) {
+        X509CRL crl = super.get(url);
+        if (crl == null) {
+            crl = loadFromDirectory(url);
+            if (crl != null) {
+                super.set(url, crl);
+            }
+        }
+        return crl;
+    }
+
+    @Override
+    public void set(String url, X509CRL crl) {
+        super.set(url, crl);
+        if (crl != null && !Objects.equals(crl.getThisUpdate(), persistedThisUpdate.get(url))) {
+            save(url, crl);
+        }
+    }
+
+    /**
+     * Loads CRLs from the directory into the delegate cache at startup.  Falls back to the pre-loaded CRLs, typically
+     * from the classpath.  The CRL with the latest thisUpdate of the cached and persisted copies is used.
+     *
+     * @param distributionPointUrls urls of CRLs to load
+     * @param preloaded             pre-loaded CRLs by url
+     */
+    void load(Collection<String> distributionPointUrls, Function<String, X509CRL> preloaded) {
+        for (String url : distributionPointUrls) {
+            X509CRL crl = X509CRLUtils.newest(super.get(url), loadFromDirectory(url));
+            if (crl == null) {
+                crl = loadPreloaded(url, preloaded);
+            }
+            if (crl != null) {
+                super.set(url, crl);
+            }
+        }
+    }
+
+    Path path(String url) {
+        return directory.resolve(X509CRLUtils.toFilename(url));
+    }
+
+    private X509CRL loadFromDirectory(String url) {
+        Path path = path(url);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        CrlLoadEvent event = FlightRecorderEvents.beginCrlLoad();
+        X509CRL crl = null;
+        try {
+            if (memoryMapped) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    crl = CrlUtils.load(new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())));
+                }
+            } else {
+                crl = CrlUtils.load(Files.newInputStream(path));
+            }
+            persistedThisUpdate.put(url, crl.getThisUpdate());
+            return crl;
+        } catch (Exception e) {
+            log.warn("Failed to load CRL {} from {}", url, path, e);
+            return null;
+        } finally {
+            if (event != null) {
+                event.commit(url, CrlLoadEvent.DIRECTORY, crl, () -> size(path));
+            }
+        }
+    }
+
+    private static long size(Path path) {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private X509CRL loadPreloaded(String url, Function<String, X509CRL> preloaded) {
+        try {
+            return preloaded.apply(url);
+        } catch (SEID2CertificateValidatorInitException e) {
+            log.warn("No persisted or pre-loaded CRL for {}", url);
+            return null;
+        }
+    }
+
+    private void save(String url, X509CRL crl) {
+        Path path = path(url);
+        Path temporary = null;
+        try {
+            temporary = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+            CrlUtils.save(Files.newOutputStream(temporary), crl);
+            try {
+                Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            persistedThisUpdate.put(url, crl.getThisUpdate());
+        } catch (Exception e) {
+            log.warn("Failed to save CRL {} to {}", url, path, e);
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException ignored) {
+                    // best effort
+                }
+            }
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+    }
+
+}
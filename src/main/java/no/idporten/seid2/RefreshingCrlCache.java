@@ -0,0 +1,331 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.api.AsyncCrlCache;
+import no.idporten.validator.certificate.api.CrlCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.security.cert.X509CRL;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CRL cache refreshing each distribution point on its own schedule, replacing the fixed interval of the certvalidator
+ * SimpleAsyncCrlCache.  A CRL is refreshed halfway between its thisUpdate and nextUpdate, but at most the maximum
+ * interval and at least the minimum interval after it was cached.  Every refresh gets a random delay of up to a tenth
+ * of its interval, so instances started together spread their downloads.  Failed refreshes are retried with
+ * exponential backoff, and at most a fixed number of downloads run against the same host at a time.  Refreshes are
+ * conditional downloads, so an unchanged CRL costs a 304 response.  Refresh threads run between {@link #start()} and
+ * {@link #close()}, and the cache can be started again after it is closed.
+ * <p>
+ * Identical CRLs share one instance, and distribution points serving identical CRLs or sharing a CRL snapshot form a
+ * mirror group, see {@link DeduplicatingCrlCache}.  Each mirror group is refreshed once, from the first of its
+ * distribution points that answers, and the refreshed CRL is set for every distribution point in the group.
+ * <p>
+ * Refreshed CRLs are set through the caches wrapping this one that are registered with {@link #refreshThrough}, so a
+ * wrapper such as {@link PersistentCrlCache} sees them as well.  Wrappers that only read through this cache pick up
+ * refreshed CRLs on their next get.
+ */
+public final class RefreshingCrlCache extends ForwardingCrlCache implements AsyncCrlCache, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(RefreshingCrlCache.class);
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    private final Duration minimumInterval;
+    private final Duration maximumInterval;
+    private final int maximumDownloadsPerHost;
+    private final Map<String, Refresh> refreshes = new ConcurrentHashMap<>();
+    private final Map<String, Semaphore> downloadsByHost = new ConcurrentHashMap<>();
+    private final List<CrlCache> refreshTargets = new CopyOnWriteArrayList<>();
+    private final Map<String, CrlSnapshot> snapshots = new ConcurrentHashMap<>();
+    private final DeduplicatingCrlCache mirrors;
+    private volatile ScheduledThreadPoolExecutor scheduler;
+    private volatile HttpCrlFetcher downloader;
+
+    /**
+     * Creates a refreshing CRL cache with a minimum interval of 5 minutes, a maximum interval of 1 hour and 2
+     * concurrent downloads per host.
+     *
+     * @param delegate CRL cache holding the CRLs
+     */
+    public RefreshingCrlCache(CrlCache delegate) {
+        this(delegate, Duration.ofMinutes(5), Duration.ofHours(1), 2);
+    }
+
+    /**
+     * Creates a refreshing CRL cache.
+     *
+     * @param delegate                CRL cache holding the CRLs
+     * @param minimumInterval         minimum time between refreshes of a distribution point, and first retry delay
+     * @param maximumInterval         maximum time between refreshes of a distribution point, and maximum retry delay
+     * @param maximumDownloadsPerHost maximum concurrent downloads from one host
+     */
+    public RefreshingCrlCache(CrlCache delegate, Duration minimumInterval, Duration maximumInterval, int maximumDownloadsPerHost) {
+        this(new DeduplicatingCrlCache(delegate, List.of()), minimumInterval, maximumInterval, maximumDownloadsPerHost);
+    }
+
+    private RefreshingCrlCache(DeduplicatingCrlCache mirrors, Duration minimumInterval, Duration maximumInterval, int maximumDownloadsPerHost) {
+        super(mirrors);
+        if (minimumInterval.isNegative() || minimumInterval.isZero() || maximumInterval.compareTo(minimumInterval) < 0) {
+            throw new IllegalArgumentException("Intervals must be positive, and the maximum interval at least the minimum interval");
+        }
+        if (maximumDownloadsPerHost < 1) {
+            throw new IllegalArgumentException("Maximum downloads per host must be positive");
+        }
+        this.minimumInterval = minimumInterval;
+        this.maximumInterval = maximumInterval;
+        this.maximumDownloadsPerHost = maximumDownloadsPerHost;
+        this.mirrors = mirrors;
+        this.downloader = new HttpCrlFetcher(mirrors);
+    }
+
+    /**
+     * Sets the HTTP client used for refreshes.
+     */
+    void useHttpClient(HttpClient httpClient, Duration timeout, int maximumCrlSize) {
+        this.downloader = new HttpCrlFetcher(getDelegate(), httpClient, timeout, Duration.ZERO, ValidatorOptions.sharedExecutor(), maximumCrlSize);
+    }
+
+    /**
+     * Sets refreshed CRLs through a cache wrapping this one, until the returned action is run.  The cache must forward
+     * set to this cache.  Without registered caches refreshed CRLs are set on this cache only.
+     *
+     * @param outermost outermost cache wrapping this cache
+     * @return action removing the cache again
+     */
+    Runnable refreshThrough(CrlCache outermost) {
+        if (outermost == this) {
+            return () -> {
+            };
+        }
+        refreshTargets.add(outermost);
+        AtomicBoolean removed = new AtomicBoolean();
+        return () -> {
+            if (removed.compareAndSet(false, true)) {
+                refreshTargets.remove(outermost);
+            }
+        };
+    }
+
+    /**
+     * Starts refreshing.  Distribution points already cached are scheduled from their CRLs.
+     */
+    @Override
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2, runnable -> {
+            Thread thread = new Thread(runnable, "seid2-crl-refresh-" + THREADS.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        scheduler = executor;
+        refreshes.keySet().forEach(url -> schedule(url, delayFor(super.get(url))));
+    }
+
+    @Override
+    public void set(String url, X509CRL crl) {
+        super.set(url, crl);
+        Refresh refresh = refreshes.computeIfAbsent(url, key -> new Refresh());
+        refresh.failures = 0;
+        if (isStarted()) {
+            schedule(url, delayFor(crl));
+        }
+    }
+
+    /**
+     * Refreshes a distribution point served from a CRL snapshot rather than from this cache, scheduled from the
+     * snapshot.  Distribution points already refreshed keep their schedule.
+     */
+    void watch(String url, CrlSnapshot snapshot) {
+        snapshots.putIfAbsent(url, snapshot);
+        if (refreshes.putIfAbsent(url, new Refresh()) == null && isStarted()) {
+            schedule(url, snapshot.hasNextUpdate() ? delayFor(snapshot.getThisUpdate(), snapshot.getNextUpdate()) : maximumInterval.toMillis());
+        }
+    }
+
+    /**
+     * Stops refreshing and its threads.  Downloads in progress are abandoned.  Cached CRLs are kept.
+     */
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    boolean isStarted() {
+        return scheduler != null;
+    }
+
+    /**
+     * Time until the next refresh of a distribution point, before jitter.
+     */
+    long delayFor(X509CRL crl) {
+        if (crl == null || crl.getNextUpdate() == null) {
+            return maximumInterval.toMillis();
+        }
+        return delayFor(crl.getThisUpdate().getTime(), crl.getNextUpdate().getTime());
+    }
+
+    private long delayFor(long thisUpdate, long nextUpdate) {
+        long minimum = minimumInterval.toMillis();
+        long maximum = maximumInterval.toMillis();
+        long now = System.currentTimeMillis();
+        long halfway = thisUpdate + (nextUpdate - thisUpdate) / 2;
+        return Math.max(minimum, Math.min(maximum, halfway - now));
+    }
+
+    /**
+     * Time until retrying a distribution point after a number of failed refreshes, before jitter.
+     */
+    long backoff(int failures) {
+        long delay = minimumInterval.toMillis() << Math.min(failures - 1, 20);
+        return Math.min(delay, maximumInterval.toMillis());
+    }
+
+    /**
+     * Distribution points refreshed together with a distribution point, including the distribution point itself, in
+     * the order they are tried.  The first distribution point schedules the refreshes of the group.
+     */
+    Set<String> mirrorGroup(String url) {
+        Set<String> group = new TreeSet<>(mirrors.mirrors(url));
+        group.add(url);
+        CrlSnapshot snapshot = snapshots.get(url);
+        if (snapshot != null) {
+            snapshots.forEach((other, otherSnapshot) -> {
+                if (otherSnapshot == snapshot) {
+                    group.add(other);
+                }
+            });
+        }
+        return group;
+    }
+
+    private boolean isScheduledByMirror(String url, Set<String> group) {
+        return !group.iterator().next().equals(url);
+    }
+
+    private void schedule(String url, long delayMillis) {
+        ScheduledThreadPoolExecutor executor = scheduler;
+        if (executor == null) {
+            return;
+        }
+        long jitter = ThreadLocalRandom.current().nextLong(delayMillis / 10 + 1);
+        Refresh refresh = refreshes.computeIfAbsent(url, key -> new Refresh());
+        boolean scheduledByMirror = isScheduledByMirror(url, mirrorGroup(url));
+        synchronized (refresh) {
+            if (refresh.future != null) {
+                refresh.future.cancel(false);
+                refresh.future = null;
+            }
+            if (scheduledByMirror) {
+                return;
+            }
+            try {
+                refresh.future = executor.schedule(() -> refresh(url), delayMillis + jitter, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                refresh.future = null;
+            }
+        }
+    }
+
+    /**
+     * Refreshes a mirror group from the first of its distribution points that answers.
+     */
+    private void refresh(String url) {
+        Set<String> group = mirrorGroup(url);
+        if (isScheduledByMirror(url, group)) {
+            return;
+        }
+        Refresh refresh = refreshes.get(url);
+        X509CRL cached = super.get(url);
+        boolean attempted = false;
+        Exception failure = null;
+        for (String source : group) {
+            Semaphore downloads = downloadsByHost.computeIfAbsent(host(source), host -> new Semaphore(maximumDownloadsPerHost));
+            if (!downloads.tryAcquire()) {
+                continue;
+            }
+            attempted = true;
+            CrlLoadEvent event = FlightRecorderEvents.beginCrlLoad();
+            X509CRL crl = null;
+            try {
+                crl = downloader.download(source, cached);
+                if (crl != cached) {
+                    publish(group, crl);
+                } else {
+                    refresh.failures = 0;
+                    schedule(url, delayFor(crl));
+                }
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                failure = e;
+                log.debug("Failed to refresh CRL {} from {}: {}", url, source, e.getMessage());
+            } finally {
+                downloads.release();
+                if (event != null && crl != null && crl != cached) {
+                    X509CRL downloaded = crl;
+                    event.commit(source, CrlLoadEvent.DOWNLOAD, downloaded, () -> CrlLoadEvent.encodedSize(downloaded));
+                }
+            }
+        }
+        if (!attempted) {
+            schedule(url, 1000);
+            return;
+        }
+        int failures = ++refresh.failures;
+        log.warn("Failed to refresh CRL {} ({} failures in a row): {}", url, failures, failure.getMessage());
+        schedule(url, backoff(failures));
+    }
+
+    private void publish(Set<String> group, X509CRL crl) {
+        for (String url : group) {
+            for (CrlCache target : refreshTargets) {
+                target.set(url, crl);
+            }
+            if (super.get(url) != crl) {
+                set(url, crl);
+            }
+        }
+    }
+
+    private static String host(String url) {
+        try {
+            String host = URI.create(url).getHost();
+            return host == null ? url : host;
+        } catch (IllegalArgumentException e) {
+            return url;
+        }
+    }
+
+    private static final class Refresh {
+
+        private volatile int failures;
+        private ScheduledFuture<?> future;
+
+    }
+
+}
@@ -0,0 +1,241 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.api.CertificateValidationException;
+import no.idporten.validator.certificate.api.CrlCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Handle to a certificate validator whose certificates, policies and CRL distribution points can be replaced while
+ * the application runs.  A reload builds the new validator in the background on the validator's executor, sharing
+ * the CRL cache of the current validator, and swaps it in atomically.  Validations in flight finish on the validator
+ * they started on, and no new CRL cache or refresh thread is started.  CRLs for distribution points added by a reload
+ * are pre-loaded or fetched before the new validator is swapped in.  Closing the handle releases the CRL cache.
+ *
+ * @see SEID2CertificateValidatorBuilder#buildReloadable()
+ */
+public final class ReloadableSEID2CertificateValidator implements AutoCloseable {
+
+    private final Logger log = LoggerFactory.getLogger(ReloadableSEID2CertificateValidator.class);
+
+    private final Environment environment;
+    private final CrlCache crlCache;
+    private final ValidatorOptions options;
+    private final Function<String, X509CRL> bundledCrls;
+    private final AtomicLong reloads = new AtomicLong();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final Runnable release;
+    private volatile SEID2CertificateValidator current;
+    private long currentGeneration;
+
+    /**
+     * @param bundledCrls bundled CRL for a distribution point, or null if the builder does not pre-load CRLs or has no
+     *                    CRL for the distribution point
+     */
+    ReloadableSEID2CertificateValidator(Environment environment, CrlCache crlCache, ValidatorOptions options, Function<String, X509CRL> bundledCrls,
+                                        SEID2CertificateValidator validator, Runnable release) {
+        this.environment = Objects.requireNonNull(environment);
+        this.crlCache = Objects.requireNonNull(crlCache);
+        this.options = Objects.requireNonNull(options);
+        this.bundledCrls = Objects.requireNonNull(bundledCrls);
+        this.current = Objects.requireNonNull(validator);
+        this.release = Objects.requireNonNull(release);
+    }
+
+    /**
+     * The current validator.  Callers doing several validations that must use the same configuration should hold on
+     * to the returned validator instead of calling this method for each validation.
+     *
+     * @return the current validator
+     */
+    public SEID2CertificateValidator current() {
+        return current;
+    }
+
+    /**
+     * Builds a validator for new properties in the background and swaps it in when it is ready.  Distribution points
+     * without a cached CRL get the bundled CRL when the builder pre-loads CRLs, and are otherwise downloaded, before the
+     * swap.  The current validator is used until then, and is kept if the build fails.  When reloads overlap, the validator from the last reload
+     * requested wins.
+     *
+     * @param certificateAuthoritiesProperties new properties (certificates, policies and CRL distribution points)
+     * @return stage completing with the new validator, or exceptionally if the build failed
+     */
+    public CompletionStage<SEID2CertificateValidator> reload(CertificateAuthoritiesProperties certificateAuthoritiesProperties) {
+        Objects.requireNonNull(certificateAuthoritiesProperties);
+        long generation = reloads.incrementAndGet();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                preload(certificateAuthoritiesProperties.getCrlDistributionPoints());
+                SEID2CertificateValidator validator = new SEID2CertificateValidatorFactory().createValidator(environment, certificateAuthoritiesProperties, crlCache, options);
+                if (options.isWarmUp()) {
+                    validator.warmUp();
+                } else {
+                    validator.loadCrls();
+                }
+                swap(generation, validator);
+                return validator;
+            } catch (Exception e) {
+                log.warn("Failed to reload certificate validator, keeping the current validator", e);
+                throw new CompletionException(e);
+            }
+        }, options.getExecutor());
+    }
+
+    private void preload(Set<String> distributionPoints) {
+        for (String url : distributionPoints) {
+            if (crlCache.get(url) == null) {
+                X509CRL crl = bundledCrls.apply(url);
+                if (crl != null) {
+                    crlCache.set(url, crl);
+                }
+            }
+        }
+    }
+
+    private synchronized void swap(long generation, SEID2CertificateValidator validator) {
+        if (generation > currentGeneration) {
+            currentGeneration = generation;
+            current = validator;
+        }
+    }
+
+    /**
+     * Releases the CRL cache shared by the current and reloaded validators.
+     *
+     * @see SEID2CertificateValidator#close()
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            release.run();
+        }
+    }
+
+    /**
+     * @see SEID2CertificateValidator#validate(X509Certificate)
+     */
+    public void validate(X509Certificate certificate) throws CertificateValidationException {
+        current.validate(certificate);
+    }
+
+    /**
+     * @see SEID2CertificateValidator#validate(String)
+     */
+    public void validate(String certificate) throws CertificateValidationException {
+        current.validate(certificate);
+    }
+
+    /**
+     * @see SEID2CertificateValidator#validate(byte[])
+     */
+    public void validate(byte[] certificate) throws CertificateValidationException {
+        current.validate(certificate);
+    }
+
+    /**
+     * @see SEID2CertificateValidator#validate(ByteBuffer)
+     */
+    public void validate(ByteBuffer certificate) throws CertificateValidationException {
+        current.validate(certificate);
+    }
+
+    /**
+     * @see SEID2CertificateValidator#validateX5c(List)
+     */
+    public void validateX5c(List<String> x5c) throws CertificateValidationException {
+        current.validateX5c(x5c);
+    }
+
+    /**
+     * @see SEID2CertificateValidator#isValid(X509Certificate)
+     */
+    public boolean isValid(X509Certificate certificate) {
+        return current.isValid(certificate);
+    }
+
+    /**
+     * @see SEID2CertificateValidator#isValid(String)
+     */
+    public boolean isValid(String certificate) {
+        return current.isValid(certificate);
+    }
+
+    /**
+     * @see SEID2CertificateValidator#validateToResult(X509Certificate)
+     */
+    public ValidationResult validateToResult(X509Certificate certificate) {
+        return current.validateToResult(certificate);
+    }
+
+    /**
+     * @see SEID2CertificateValidator#validateToResult(String)
+     */
+    public ValidationResult validateToResult(String certificate) {
+        return current.validateToResult(certificate);
+    }
+
+    /**
+     * @see SEID2CertificateValidator#validateToResult(byte[])
+     */
+    public ValidationResult validateToResult(byte[] certificate) {
+        return current.validateToResult(certificate);
+    }
+
+    /**
+     * @see SEID2CertificateValidator#validateToResult(ByteBuffer)
+     */
+    public ValidationResult validateToResult(ByteBuffer certificate) {
+        return current.validateToResult(certificate);
+    }
+
+    /**
+     * @see SEID2CertificateValidator#validateX5cToResult(List)
+     */
+    public ValidationResult validateX5cToResult(List<String> x5c) {
+        return current.validateX5cToResult(x5c);
+    }
+
+    /**
+     * @see SEID2CertificateValidator#validateAsync(X509Certificate)
+     */
+    public CompletionStage<ValidationResult> validateAsync(X509Certificate certificate) {
+        return current.validateAsync(certificate);
+    }
+
+    /**
+     * @see SEID2CertificateValidator#validateAsync(String)
+     */
+    public CompletionStage<ValidationResult> validateAsync(String certificate) {
+        return current.validateAsync(certificate);
+    }
+
+    /**
+     * @see SEID2CertificateValidator#validateAll(Collection)
+     */
+    public List<ValidationResult> validateAll(Collection<X509Certificate> certificates) {
+        return current.validateAll(certificates);
+    }
+
+    /**
+     * @see SEID2CertificateValidator#validateAllEncoded(Collection)
+     */
+    public List<ValidationResult> validateAllEncoded(Collection<String> certificates) {
+        return current.validateAllEncoded(certificates);
+    }
+
+}
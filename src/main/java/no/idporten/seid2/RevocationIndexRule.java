@@ -0,0 +1,154 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.api.CertificateValidationException;
+import no.idporten.validator.certificate.api.CrlCache;
+import no.idporten.validator.certificate.api.CrlFetcher;
+import no.idporten.validator.certificate.api.FailedValidationException;
+
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Revocation check replacing the certvalidator CRLRule.  CRLs for the certificate's distribution points are fetched
+ * the same way, through a CRL fetcher and its cache, and each CRL is indexed once into a
+ * {@link RevokedSerialIndex}.  The index is rebuilt when the fetcher returns a new CRL for a distribution point, and
+ * shared between distribution points returning the same CRL instance.
+ * <p>
+ * Distribution points with a {@link CrlSnapshot} are checked against the snapshot's index while it is current and the
+ * CRL cache holds no newer CRL, so bundled CRLs are never parsed.
+ * <p>
+ * The listener is told the thisUpdate and size of the CRL in use for each distribution point: for snapshots when the
+ * rule is created, and for other CRLs when first used and when a new CRL replaces them.
+ */
+final class RevocationIndexRule {
+
+    private final CrlFetcher crlFetcher;
+    private final CrlCache crlCache;
+    private final Map<String, CrlSnapshot> snapshots;
+    private final ValidationListener listener;
+    private final Map<String, IndexedCrl> indexByUrl = new ConcurrentHashMap<>();
+    private final Map<String, RevokedSerialIndex> reportedByUrl = new ConcurrentHashMap<>();
+
+    RevocationIndexRule(CrlFetcher crlFetcher) {
+        this(crlFetcher, null, Map.of(), ValidationListener.NONE);
+    }
+
+    /**
+     * @param crlFetcher fetcher for CRLs
+     * @param crlCache   cache of the fetcher, checked for CRLs newer than the snapshots
+     * @param snapshots  CRL snapshots by distribution point
+     * @param listener   listener told about the CRLs in use
+     */
+    RevocationIndexRule(CrlFetcher crlFetcher, CrlCache crlCache, Map<String, CrlSnapshot> snapshots, ValidationListener listener) {
+        this.crlFetcher = Objects.requireNonNull(crlFetcher);
+        this.crlCache = crlCache;
+        this.snapshots = Objects.requireNonNull(snapshots);
+        this.listener = Objects.requireNonNull(listener);
+        long now = System.currentTimeMillis();
+        snapshots.forEach((url, snapshot) -> {
+            if (snapshot.isCurrent(now)) {
+                inUse(url, snapshot.getIndex(), snapshot.getThisUpdate());
+            }
+        });
+    }
+
+    void validate(X509Certificate certificate) throws CertificateValidationException {
+        for (String url : X509CertificateUtils.crlDistributionPoints(certificate)) {
+            RevokedSerialIndex index = snapshotIndex(url);
+            if (index == null) {
+                X509CRL crl = crlFetcher.get(url);
+                if (crl == null) {
+                    continue;
+                }
+                index = index(url, crl);
+                inUse(url, index, crl.getThisUpdate().getTime());
+            } else {
+                inUse(url, index, snapshots.get(url).getThisUpdate());
+            }
+            long revocationDate = index.revocationDate(certificate.getIssuerX500Principal(), certificate.getSerialNumber());
+            if (revocationDate != RevokedSerialIndex.NOT_REVOKED) {
+                throw new FailedValidationException("Certificate is revoked since " + Instant.ofEpochMilli(revocationDate) + ".");
+            }
+        }
+    }
+
+    /**
+     * Fetches and indexes the CRLs of distribution points without a current snapshot, as a validation would.
+     *
+     * @param distributionPoints urls of distribution points
+     * @return distribution points whose CRL could not be fetched
+     */
+    Set<String> load(Collection<String> distributionPoints) {
+        Set<String> unavailable = new TreeSet<>();
+        for (String url : distributionPoints) {
+            if (snapshotIndex(url) != null) {
+                continue;
+            }
+            try {
+                X509CRL crl = crlFetcher.get(url);
+                if (crl == null) {
+                    unavailable.add(url);
+                } else {
+                    inUse(url, index(url, crl), crl.getThisUpdate().getTime());
+                }
+            } catch (CertificateValidationException e) {
+                unavailable.add(url);
+            }
+        }
+        return unavailable;
+    }
+
+    /**
+     * The index of the distribution point's snapshot, or null if it has none, it is out of date, or the cache holds a
+     * newer CRL.
+     */
+    private RevokedSerialIndex snapshotIndex(String url) {
+        CrlSnapshot snapshot = snapshots.get(url);
+        if (snapshot == null || !snapshot.isCurrent(System.currentTimeMillis())) {
+            return null;
+        }
+        X509CRL cached = crlCache == null ? null : crlCache.get(url);
+        if (cached != null && cached.getThisUpdate().getTime() > snapshot.getThisUpdate()) {
+            return null;
+        }
+        return snapshot.getIndex();
+    }
+
+    private void inUse(String url, RevokedSerialIndex index, long thisUpdate) {
+        if (listener != ValidationListener.NONE && reportedByUrl.get(url) != index && reportedByUrl.put(url, index) != index) {
+            listener.crlInUse(url, thisUpdate, index.size());
+        }
+    }
+
+    RevokedSerialIndex index(String url, X509CRL crl) {
+        IndexedCrl indexed = indexByUrl.get(url);
+        if (indexed == null || indexed.crl != crl) {
+            indexed = indexByUrl.values().stream()
+                    .filter(candidate -> candidate.crl == crl)
+                    .findAny()
+                    .orElseGet(() -> new IndexedCrl(crl, RevokedSerialIndex.of(crl)));
+            indexByUrl.put(url, indexed);
+        }
+        return indexed.index;
+    }
+
+    private static final class IndexedCrl {
+
+        private final X509CRL crl;
+        private final RevokedSerialIndex index;
+
+        private IndexedCrl(X509CRL crl, RevokedSerialIndex index) {
+            this.crl = crl;
+            this.index = index;
+        }
+
+    }
+
+}
@@ -0,0 +1,201 @@
+package no.idporten.seid2;
+
+import javax.security.auth.x500.X500Principal;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact index of the revoked serial numbers in a CRL, per certificate issuer.  Serial numbers fitting in a long are
+ * kept in a sorted primitive array, larger serial numbers in a sorted array of BigIntegers.  Revocation dates are kept
+ * as epoch milliseconds in parallel arrays.  Lookups are binary searches that do not allocate.
+ */
+final class RevokedSerialIndex {
+
+    /**
+     * Returned by {@link #revocationDate(X500Principal, BigInteger)} for serial numbers that are not revoked.
+     */
+    static final long NOT_REVOKED = Long.MIN_VALUE;
+
+    private static final RevokedSerialIndex EMPTY = new RevokedSerialIndex(Map.of(), 0);
+
+    private final Map<X500Principal, Serials> serialsByIssuer;
+    private final int size;
+
+    private RevokedSerialIndex(Map<X500Principal, Serials> serialsByIssuer, int size) {
+        this.serialsByIssuer = serialsByIssuer;
+        this.size = size;
+    }
+
+    /**
+     * Builds an index of the revoked certificates in a CRL.  Entries of indirect CRLs are indexed by their certificate
+     * issuer.
+     */
+    static RevokedSerialIndex of(X509CRL crl) {
+        Set<? extends X509CRLEntry> entries = crl.getRevokedCertificates();
+        if (entries == null || entries.isEmpty()) {
+            return EMPTY;
+        }
+        Map<X500Principal, List<X509CRLEntry>> entriesByIssuer = new HashMap<>();
+        for (X509CRLEntry entry : entries) {
+            X500Principal issuer = entry.getCertificateIssuer() == null ? crl.getIssuerX500Principal() : entry.getCertificateIssuer();
+            entriesByIssuer.computeIfAbsent(issuer, key -> new ArrayList<>()).add(entry);
+        }
+        Map<X500Principal, Serials> serialsByIssuer = new HashMap<>(entriesByIssuer.size() * 2);
+        entriesByIssuer.forEach((key, value) -> serialsByIssuer.put(key, Serials.of(value)));
+        return new RevokedSerialIndex(Map.copyOf(serialsByIssuer), entries.size());
+    }
+
+    /**
+     * Finds the revocation date of a certificate.
+     *
+     * @return revocation date in epoch milliseconds, or {@link #NOT_REVOKED}
+     */
+    long revocationDate(X500Principal issuer, BigInteger serialNumber) {
+        Serials serials = serialsByIssuer.get(issuer);
+        return serials == null ? NOT_REVOKED : serials.revocationDate(serialNumber);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Writes the index in the binary form read by {@link #readFrom(ByteBuffer)}: per issuer its DER encoded name, then
+     * the sorted serial numbers and revocation dates as arrays of longs.
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        out.writeInt(serialsByIssuer.size());
+        for (Map.Entry<X500Principal, Serials> entry : serialsByIssuer.entrySet()) {
+            writeBytes(out, entry.getKey().getEncoded());
+            entry.getValue().writeTo(out);
+        }
+    }
+
+    /**
+     * Reads an index written by {@link #writeTo(DataOutputStream)}.  The arrays are copied in bulk from the buffer.
+     */
+    static RevokedSerialIndex readFrom(ByteBuffer in) {
+        int size = in.getInt();
+        int issuers = in.getInt();
+        if (issuers == 0) {
+            return EMPTY;
+        }
+        Map<X500Principal, Serials> serialsByIssuer = new HashMap<>(issuers * 2);
+        for (int i = 0; i < issuers; i++) {
+            serialsByIssuer.put(new X500Principal(readBytes(in)), Serials.readFrom(in));
+        }
+        return new RevokedSerialIndex(Map.copyOf(serialsByIssuer), size);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+        for (long value : values) {
+            out.writeLong(value);
+        }
+    }
+
+    private static long[] readLongs(ByteBuffer in, int length) {
+        long[] values = new long[length];
+        in.asLongBuffer().get(values);
+        in.position(in.position() + length * Long.BYTES);
+        return values;
+    }
+
+    private static final class Serials {
+
+        private final long[] smallSerials;
+        private final long[] smallDates;
+        private final BigInteger[] largeSerials;
+        private final long[] largeDates;
+
+        private Serials(long[] smallSerials, long[] smallDates, BigInteger[] largeSerials, long[] largeDates) {
+            this.smallSerials = smallSerials;
+            this.smallDates = smallDates;
+            this.largeSerials = largeSerials;
+            this.largeDates = largeDates;
+        }
+
+        static Serials of(List<X509CRLEntry> entries) {
+            entries.sort((a, b) -> a.getSerialNumber().compareTo(b.getSerialNumber()));
+            int small = 0;
+            for (X509CRLEntry entry : entries) {
+                if (entry.getSerialNumber().bitLength() < Long.SIZE) {
+                    small++;
+                }
+            }
+            long[] smallSerials = new long[small];
+            long[] smallDates = new long[small];
+            BigInteger[] largeSerials = new BigInteger[entries.size() - small];
+            long[] largeDates = new long[entries.size() - small];
+            int s = 0;
+            int l = 0;
+            for (X509CRLEntry entry : entries) {
+                BigInteger serialNumber = entry.getSerialNumber();
+                long date = entry.getRevocationDate() == null ? 0 : entry.getRevocationDate().getTime();
+                if (serialNumber.bitLength() < Long.SIZE) {
+                    smallSerials[s] = serialNumber.longValue();
+                    smallDates[s++] = date;
+                } else {
+                    largeSerials[l] = serialNumber;
+                    largeDates[l++] = date;
+                }
+            }
+            return new Serials(smallSerials, smallDates, largeSerials, largeDates);
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(smallSerials.length);
+            writeLongs(out, smallSerials);
+            writeLongs(out, smallDates);
+            out.writeInt(largeSerials.length);
+            for (BigInteger serialNumber : largeSerials) {
+                writeBytes(out, serialNumber.toByteArray());
+            }
+            writeLongs(out, largeDates);
+        }
+
+        static Serials readFrom(ByteBuffer in) {
+            int small = in.getInt();
+            long[] smallSerials = readLongs(in, small);
+            long[] smallDates = readLongs(in, small);
+            int large = in.getInt();
+            BigInteger[] largeSerials = new BigInteger[large];
+            for (int i = 0; i < large; i++) {
+                largeSerials[i] = new BigInteger(readBytes(in));
+            }
+            return new Serials(smallSerials, smallDates, largeSerials, readLongs(in, large));
+        }
+
+        long revocationDate(BigInteger serialNumber) {
+            if (serialNumber.bitLength() < Long.SIZE) {
+                int index = Arrays.binarySearch(smallSerials, serialNumber.longValue());
+                return index < 0 ? NOT_REVOKED : smallDates[index];
+            }
+            int index = Arrays.binarySearch(largeSerials, serialNumber);
+            return index < 0 ? NOT_REVOKED : largeDates[index];
+        }
+
+    }
+
+}
@@ -0,0 +1,47 @@
+package no.idporten.seid2;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.security.cert.X509Certificate;
+
+/**
+ * Flight recorder event for a validation rule validating a certificate.
+ */
+@Name("no.idporten.seid2.RuleEvaluation")
+@Label("Rule Evaluation")
+@Description("A validation rule validating a certificate")
+@Category({"SEID2", "Certificate Validation"})
+@StackTrace(false)
+final class RuleEvaluationEvent extends jdk.jfr.Event {
+
+    @Label("Rule")
+    String rule;
+
+    @Label("Passed")
+    boolean passed;
+
+    @Label("Subject")
+    String subject;
+
+    @Label("Issuer")
+    String issuer;
+
+    /**
+     * Ends and commits the event if it is enabled.
+     */
+    void commit(String rule, X509Certificate certificate, boolean passed) {
+        end();
+        if (shouldCommit()) {
+            this.rule = rule;
+            this.passed = passed;
+            this.subject = certificate.getSubjectX500Principal().getName();
+            this.issuer = certificate.getIssuerX500Principal().getName();
+            commit();
+        }
+    }
+
+}
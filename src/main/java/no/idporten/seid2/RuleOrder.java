@@ -0,0 +1,23 @@
+package no.idporten.seid2;
+
+/**
+ * Order in which a validator runs its rules.  In both orders cheap structural rules run before rules verifying
+ * signatures, and revocation checks run last, so most bad certificates are rejected without any cryptography.
+ *
+ * @see SEID2CertificateValidatorBuilder#withRuleOrder(RuleOrder)
+ */
+public enum RuleOrder {
+
+    /**
+     * Rules run in a fixed order by cost: expiration, policies, critical extensions and trusted issuer, then signing
+     * and chain signatures, then revocation.
+     */
+    COST,
+
+    /**
+     * Rules run by cost like {@link #COST}, but rules of the same cost are reordered periodically so that the rules
+     * rejecting the most certificates run first.
+     */
+    ADAPTIVE
+
+}
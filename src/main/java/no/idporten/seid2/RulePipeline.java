@@ -0,0 +1,88 @@
+package no.idporten.seid2;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * The rules of a validator in the order they are run.  An adaptive pipeline counts evaluations and rejections per
+ * rule, and every {@value #REORDER_INTERVAL} validations sorts rules of the same cost by decaying rejection rate.
+ * Rules never move past rules of another cost.
+ */
+final class RulePipeline {
+
+    static final int REORDER_INTERVAL = 1024;
+
+    private final NamedRule[] rules;
+    private final boolean adaptive;
+    private final LongAdder[] evaluations;
+    private final LongAdder[] rejections;
+    private final double[] decayedEvaluations;
+    private final double[] decayedRejections;
+    private final AtomicLong validations = new AtomicLong();
+    private volatile int[] order;
+
+    RulePipeline(List<NamedRule> rules, RuleOrder ruleOrder) {
+        this.rules = rules.stream()
+                .sorted(Comparator.comparing(NamedRule::getCost))
+                .toArray(NamedRule[]::new);
+        this.adaptive = ruleOrder == RuleOrder.ADAPTIVE;
+        this.evaluations = adders(this.rules.length);
+        this.rejections = adders(this.rules.length);
+        this.decayedEvaluations = new double[this.rules.length];
+        this.decayedRejections = new double[this.rules.length];
+        this.order = IntStream.range(0, this.rules.length).toArray();
+    }
+
+    private static LongAdder[] adders(int length) {
+        return IntStream.range(0, length).mapToObj(i -> new LongAdder()).toArray(LongAdder[]::new);
+    }
+
+    /**
+     * Indexes of the rules in the order to run them.  Callers must not modify the array.
+     */
+    int[] order() {
+        if (adaptive && (validations.incrementAndGet() & (REORDER_INTERVAL - 1)) == 0) {
+            reorder();
+        }
+        return order;
+    }
+
+    int size() {
+        return rules.length;
+    }
+
+    NamedRule rule(int index) {
+        return rules[index];
+    }
+
+    /**
+     * Records the outcome of running a rule.  Does nothing unless the pipeline is adaptive.
+     */
+    void record(int index, boolean passed) {
+        if (adaptive) {
+            evaluations[index].increment();
+            if (!passed) {
+                rejections[index].increment();
+            }
+        }
+    }
+
+    synchronized void reorder() {
+        double[] rate = new double[rules.length];
+        for (int i = 0; i < rules.length; i++) {
+            decayedEvaluations[i] = decayedEvaluations[i] / 2 + evaluations[i].sumThenReset();
+            decayedRejections[i] = decayedRejections[i] / 2 + rejections[i].sumThenReset();
+            rate[i] = decayedEvaluations[i] == 0 ? 0 : decayedRejections[i] / decayedEvaluations[i];
+        }
+        order = IntStream.range(0, rules.length)
+                .boxed()
+                .sorted(Comparator.<Integer, NamedRule.Cost>comparing(i -> rules[i].getCost())
+                        .thenComparing(i -> -rate[i]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+}
@@ -4,47 +4,519 @@ import no.idporten.validator.certificate.Validator;
 import no.idporten.validator.certificate.api.CertificateValidationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.event.Level;
 
+import javax.security.auth.x500.X500Principal;
+import java.nio.ByteBuffer;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
 
 /**
- * SEID2 certificate validator for X509 certificates.
+ * SEID2 certificate validator for X509 certificates.  Closing a validator built by the builder releases its CRL cache,
+ * whose refreshes stop when the last validator using it is closed.
  */
-public class SEID2CertificateValidator {
+public class SEID2CertificateValidator implements AutoCloseable {
+
+    private static final Runnable NO_RELEASE = () -> {
+    };
+
+    private static final String ENCODING_RULE = "encoding";
+    private static final String ERROR_RULE = "error";
 
     private final Logger log = LoggerFactory.getLogger(SEID2CertificateValidator.class);
 
-    private final Validator validator;
+    private final RulePipeline rules;
+    private final ValidationResultCache resultCache;
+    private final OcspRule ocspRule;
+    private final InputGuard inputGuard;
+    private final WarmUp warmUp;
+    private final Executor executor;
+    private final Level rejectionLogLevel;
+    private final int rejectionLogSampleRate;
+    private final ValidationListener listener;
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicReference<Runnable> release = new AtomicReference<>(NO_RELEASE);
 
     public SEID2CertificateValidator(Validator validator) {
-        this.validator = Objects.requireNonNull(validator);
+        this(List.of(new NamedRule(validator.getClass().getSimpleName(), NamedRule.Cost.CRYPTOGRAPHIC, validator::validate)), null, new ValidatorOptions());
+    }
+
+    SEID2CertificateValidator(List<NamedRule> rules, ValidationResultCache resultCache, ValidatorOptions options) {
+        this(rules, resultCache, null, options);
+    }
+
+    SEID2CertificateValidator(List<NamedRule> rules, ValidationResultCache resultCache, OcspRule ocspRule, ValidatorOptions options) {
+        this(rules, resultCache, ocspRule, null, options);
+    }
+
+    SEID2CertificateValidator(List<NamedRule> rules, ValidationResultCache resultCache, OcspRule ocspRule, WarmUp warmUp, ValidatorOptions options) {
+        this.rules = new RulePipeline(rules, options.getRuleOrder());
+        this.resultCache = resultCache;
+        this.ocspRule = ocspRule;
+        this.warmUp = warmUp;
+        this.inputGuard = new InputGuard(options.getMaximumInputSize(), options.getRejectedInputCacheSize());
+        this.executor = Objects.requireNonNull(options.getExecutor());
+        this.rejectionLogLevel = options.getRejectionLogLevel();
+        this.rejectionLogSampleRate = options.getRejectionLogSampleRate();
+        this.listener = Objects.requireNonNull(options.getListener());
+    }
+
+    /**
+     * Sets the action releasing the resources held for this validator, run once when the validator is closed.
+     */
+    void releaseOnClose(Runnable action) {
+        release.set(Objects.requireNonNull(action));
+    }
+
+    /**
+     * Releases the CRL cache of this validator.  CRLs are no longer refreshed in the background once all validators
+     * sharing the CRL cache are closed, but the validator can still be used, downloading CRLs when they expire.
+     * Closing a validator more than once has no effect.
+     */
+    @Override
+    public void close() {
+        release.getAndSet(NO_RELEASE).run();
+    }
+
+    /**
+     * Warms up the validator before it serves traffic, so the first validations are not slowed down by class loading,
+     * provider initialisation, CRL parsing and interpreted code.  Runs every rule against the configured certificates
+     * and a synthetic leaf certificate listing all configured CRL distribution points, which loads and indexes every
+     * CRL.  Warm-up validations are not reported to listeners, but the CRLs they load are.  Failures are logged and
+     * reported in the result, so a warm-up never throws.
+     *
+     * @return time spent warming up and the CRLs that could not be loaded
+     * @see SEID2CertificateValidatorBuilder#withWarmUp()
+     */
+    public WarmUpResult warmUp() {
+        return warmUp(WarmUp.DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * Warms up the validator with a number of iterations over the warm-up certificates.  CRLs are loaded before the
+     * first iteration.
+     *
+     * @param iterations number of iterations, at least 1
+     * @return time spent warming up and the CRLs that could not be loaded
+     * @see #warmUp()
+     */
+    public WarmUpResult warmUp(int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Iterations must be positive");
+        }
+        long start = System.nanoTime();
+        Set<String> unavailableCrls = Set.of();
+        Exception failure = null;
+        if (warmUp != null) {
+            try {
+                unavailableCrls = warmUp.run(rules, iterations);
+            } catch (Exception e) {
+                log.warn("Certificate validator warm-up failed", e);
+                failure = e;
+            }
+        }
+        WarmUpResult result = new WarmUpResult(since(start), unavailableCrls, failure);
+        if (unavailableCrls.isEmpty()) {
+            log.info("Certificate validator warmed up in {} ms", result.getDuration().toMillis());
+        } else {
+            log.warn("Certificate validator warmed up in {} ms without CRLs for {}", result.getDuration().toMillis(), unavailableCrls);
+        }
+        return result;
+    }
+
+    /**
+     * Fetches and indexes the CRLs of every configured distribution point, without warming up the rules.
+     *
+     * @return distribution points whose CRL could not be loaded
+     */
+    Set<String> loadCrls() {
+        Set<String> unavailableCrls = warmUp == null ? Set.of() : warmUp.loadCrls();
+        if (!unavailableCrls.isEmpty()) {
+            log.warn("Failed to load CRLs for {}", unavailableCrls);
+        }
+        return unavailableCrls;
     }
 
     public void validate(X509Certificate certificate) throws CertificateValidationException {
-        validator.validate(certificate);
+        ValidationResult result = validateToResult(certificate);
+        if (!result.isValid()) {
+            throw result.getException();
+        }
     }
 
+    /**
+     * Validates a base64 or PEM encoded certificate.  Inputs are read with the input limits of the validator.
+     *
+     * @param certificate encoded certificate to validate
+     * @throws CertificateValidationException if the certificate cannot be read or is not valid
+     */
     public void validate(String certificate) throws CertificateValidationException {
-        this.validate(X509CertificateUtils.readX509Certificate(certificate));
+        throwIfInvalid(validateToResult(certificate));
+    }
+
+    /**
+     * Validates a DER encoded certificate, parsed directly from the bytes.  ASCII bytes of a base64 or PEM encoded
+     * certificate are accepted too.
+     *
+     * @param certificate encoded certificate to validate
+     * @throws CertificateValidationException if the certificate cannot be read or is not valid
+     */
+    public void validate(byte[] certificate) throws CertificateValidationException {
+        throwIfInvalid(validateToResult(certificate));
+    }
+
+    /**
+     * Validates a DER encoded certificate in the remaining bytes of a buffer, parsed directly from the buffer.  The
+     * buffer's position is not changed.
+     *
+     * @param certificate encoded certificate to validate
+     * @throws CertificateValidationException if the certificate cannot be read or is not valid
+     */
+    public void validate(ByteBuffer certificate) throws CertificateValidationException {
+        throwIfInvalid(validateToResult(certificate));
+    }
+
+    /**
+     * Validates the certificate of a JWS x5c header.  The entries are base64 encoded DER certificates, the first
+     * containing the key and each following certifying the one preceding it.  The chain must be consistent, and the
+     * first certificate is validated against the trusted certificates of this validator.  Certificates in the header
+     * are never trusted as issuers.
+     *
+     * @param x5c base64 encoded certificates of the x5c header
+     * @throws CertificateValidationException if the chain cannot be read, is inconsistent, or its first certificate is
+     *                                        not valid
+     */
+    public void validateX5c(List<String> x5c) throws CertificateValidationException {
+        throwIfInvalid(validateX5cToResult(x5c));
+    }
+
+    private static void throwIfInvalid(ValidationResult result) throws CertificateValidationException {
+        if (!result.isValid()) {
+            throw result.getException();
+        }
     }
 
     public boolean isValid(X509Certificate certificate) {
+        return logged(validateToResult(certificate)).isValid();
+    }
+
+    public boolean isValid(String certificate) {
+        return logged(validateToResult(certificate)).isValid();
+    }
+
+    /**
+     * Validates a certificate without throwing exceptions or logging.  The result tells which rule rejected the
+     * certificate, why, and how long the validation took.
+     *
+     * @param certificate certificate to validate
+     * @return the validation result
+     */
+    public ValidationResult validateToResult(X509Certificate certificate) {
+        return validateToResult(new ValidationContext(certificate));
+    }
+
+    private ValidationResult validateToResult(ValidationContext context) {
+        X509Certificate certificate = context.getCertificate();
+        long start = System.nanoTime();
+        String rule = ENCODING_RULE;
         try {
-            validator.validate(certificate);
-            return true;
+            ByteBuffer key = resultCache == null ? null : resultCache.key(certificate);
+            if (key != null && resultCache.contains(key)) {
+                return ValidationResult.valid(certificate, since(start));
+            }
+            for (int index : rules.order()) {
+                NamedRule namedRule = rules.rule(index);
+                rule = namedRule.getName();
+                try {
+                    validate(namedRule, context);
+                } catch (CertificateValidationException e) {
+                    rules.record(index, false);
+                    throw e;
+                }
+                rules.record(index, true);
+            }
+            if (key != null) {
+                resultCache.put(key, context);
+            }
+            return ValidationResult.valid(certificate, since(start));
         } catch (CertificateValidationException e) {
-            log.error("Invalid certificate", e);
-            return false;
+            return ValidationResult.invalid(certificate, rule, e, since(start));
         }
     }
 
-    public boolean isValid(String certificate) {
+    /**
+     * Validates a certificate with a stapled or pre-fetched OCSP response, without throwing exceptions or logging.  A
+     * response signed by the certificate's issuer or its OCSP responder is used instead of asking the responder, and
+     * is cached for later validations until its nextUpdate.  Other responses are ignored.  The response is only used
+     * when the validator checks revocation with OCSP.
+     *
+     * @param certificate  certificate to validate
+     * @param ocspResponse DER encoded OCSP response
+     * @return the validation result
+     * @see SEID2CertificateValidatorBuilder#withOcsp()
+     */
+    public ValidationResult validateToResult(X509Certificate certificate, byte[] ocspResponse) {
+        ValidationContext context = new ValidationContext(certificate);
+        if (ocspRule != null && ocspResponse != null) {
+            ocspRule.accept(context, ocspResponse);
+        }
+        return validateToResult(context);
+    }
+
+    /**
+     * Reads and validates a PEM or base64 encoded certificate without throwing exceptions or logging.
+     *
+     * @param certificate encoded certificate to validate
+     * @return the validation result
+     * @see #validateToResult(X509Certificate)
+     */
+    public ValidationResult validateToResult(String certificate) {
+        return readAndValidate(certificate == null ? 0 : certificate.length(), () -> inputGuard.hash(certificate), () -> X509CertificateUtils.readX509Certificate(certificate));
+    }
+
+    /**
+     * Reads and validates a DER encoded certificate without throwing exceptions or logging.
+     *
+     * @param certificate encoded certificate to validate
+     * @return the validation result
+     * @see #validate(byte[])
+     */
+    public ValidationResult validateToResult(byte[] certificate) {
+        return readAndValidate(certificate == null ? 0 : certificate.length, () -> inputGuard.hash(certificate), () -> X509CertificateUtils.readX509Certificate(certificate));
+    }
+
+    /**
+     * Reads and validates a DER encoded certificate in the remaining bytes of a buffer without throwing exceptions or
+     * logging.
+     *
+     * @param certificate encoded certificate to validate
+     * @return the validation result
+     * @see #validate(ByteBuffer)
+     */
+    public ValidationResult validateToResult(ByteBuffer certificate) {
+        return readAndValidate(certificate == null ? 0 : certificate.remaining(), () -> inputGuard.hash(certificate), () -> X509CertificateUtils.readX509Certificate(certificate));
+    }
+
+    /**
+     * Reads and validates the certificate of a JWS x5c header without throwing exceptions or logging.
+     *
+     * @param x5c base64 encoded certificates of the x5c header
+     * @return the validation result for the first certificate
+     * @see #validateX5c(List)
+     */
+    public ValidationResult validateX5cToResult(List<String> x5c) {
+        int size = x5c == null ? 0 : x5c.stream().mapToInt(certificate -> certificate == null ? 0 : certificate.length()).sum();
+        return readAndValidate(size, () -> inputGuard.hash(x5c), () -> X509CertificateUtils.readX5c(x5c).get(0));
+    }
+
+    /**
+     * Reads a certificate and validates it.  Inputs too large, or rejected before, are rejected before parsing, and
+     * inputs failing to parse are remembered.
+     */
+    private ValidationResult readAndValidate(int size, LongSupplier hash, CertificateReader reader) {
+        long start = System.nanoTime();
+        long inputHash = size > inputGuard.maximumSize() ? 0 : hash.getAsLong();
+        CertificateValidationException rejection = inputGuard.check(size, inputHash);
+        if (rejection != null) {
+            return ValidationResult.invalid(null, ENCODING_RULE, rejection, since(start));
+        }
+        X509Certificate x509Certificate;
+        try {
+            x509Certificate = reader.read();
+        } catch (CertificateValidationException e) {
+            inputGuard.reject(inputHash);
+            return ValidationResult.invalid(null, ENCODING_RULE, e, since(start));
+        }
+        return validateToResult(x509Certificate);
+    }
+
+    @FunctionalInterface
+    private interface CertificateReader {
+        X509Certificate read() throws CertificateValidationException;
+    }
+
+    /**
+     * Validates a certificate on the validator's executor, so that a CRL download does not block the calling thread.
+     *
+     * @param certificate certificate to validate
+     * @return stage completing with the validation result
+     */
+    public CompletionStage<ValidationResult> validateAsync(X509Certificate certificate) {
+        return CompletableFuture.supplyAsync(() -> validateToResult(certificate), executor);
+    }
+
+    /**
+     * Reads and validates a PEM or base64 encoded certificate on the validator's executor.
+     *
+     * @param certificate encoded certificate to validate
+     * @return stage completing with the validation result
+     * @see #validateAsync(X509Certificate)
+     */
+    public CompletionStage<ValidationResult> validateAsync(String certificate) {
+        return CompletableFuture.supplyAsync(() -> validateToResult(certificate), executor);
+    }
+
+    /**
+     * Validates a batch of certificates in parallel on the calling thread and the validator's executor.  Identical
+     * certificates are validated once, and certificates are grouped by issuer so that each task works on certificates
+     * sharing chain and CRL data.  The calling thread validates the batches no executor thread has taken, so the batch
+     * completes even if the executor is busy.
+     *
+     * @param certificates certificates to validate
+     * @return one result per certificate, in the iteration order of the collection.  Null certificates, and
+     * certificates failing with an unexpected exception, get invalid results.
+     */
+    public List<ValidationResult> validateAll(Collection<X509Certificate> certificates) {
+        Map<X500Principal, List<X509Certificate>> certificatesByIssuer = new LinkedHashMap<>();
+        for (X509Certificate certificate : new LinkedHashSet<>(certificates)) {
+            if (certificate != null) {
+                certificatesByIssuer.computeIfAbsent(certificate.getIssuerX500Principal(), issuer -> new ArrayList<>()).add(certificate);
+            }
+        }
+        Map<X509Certificate, ValidationResult> results = runInBatches(certificatesByIssuer.values(), this::validateToResult, Function.identity());
+        return certificates.stream().map(certificate -> certificate == null ? missing() : results.get(certificate)).collect(Collectors.toList());
+    }
+
+    /**
+     * Validates a batch of PEM or base64 encoded certificates in parallel on the calling thread and the validator's
+     * executor.
+     *
+     * @param certificates encoded certificates to validate
+     * @return one result per certificate, in the iteration order of the collection.  Null certificates, and
+     * certificates failing with an unexpected exception, get invalid results.
+     * @see #validateAll(Collection)
+     */
+    public List<ValidationResult> validateAllEncoded(Collection<String> certificates) {
+        List<String> distinct = certificates.stream().filter(Objects::nonNull).distinct().collect(Collectors.toList());
+        Map<String, ValidationResult> results = runInBatches(List.of(distinct), this::validateToResult, certificate -> null);
+        return certificates.stream().map(certificate -> certificate == null ? missing() : results.get(certificate)).collect(Collectors.toList());
+    }
+
+    private static ValidationResult missing() {
+        return ValidationResult.invalid(null, ENCODING_RULE, new CertificateValidationException("Certificate is missing"), Duration.ZERO);
+    }
+
+    private void validate(NamedRule rule, ValidationContext context) throws CertificateValidationException {
+        RuleEvaluationEvent event = FlightRecorderEvents.beginRuleEvaluation();
+        long start = listener == ValidationListener.NONE ? 0 : System.nanoTime();
         try {
-            return this.isValid(X509CertificateUtils.readX509Certificate(certificate));
+            rule.validate(context);
+            completed(event, rule, context.getCertificate(), true, start);
         } catch (CertificateValidationException e) {
-            log.error("Invalid certificate", e);
-            return false;
+            completed(event, rule, context.getCertificate(), false, start);
+            throw e;
+        }
+    }
+
+    private void completed(RuleEvaluationEvent event, NamedRule rule, X509Certificate certificate, boolean passed, long start) {
+        if (event != null) {
+            event.commit(rule.getName(), certificate, passed);
+        }
+        if (listener != ValidationListener.NONE) {
+            listener.ruleCompleted(rule.getName(), passed, System.nanoTime() - start);
+        }
+    }
+
+    private ValidationResult logged(ValidationResult result) {
+        if (!result.isValid() && rejections.getAndIncrement() % rejectionLogSampleRate == 0) {
+            log.atLevel(rejectionLogLevel).log("Invalid certificate rejected by rule {}: {}", result.getFailedRule(), result.getReason());
+        }
+        return result;
+    }
+
+    private static Duration since(long start) {
+        return Duration.ofNanos(System.nanoTime() - start);
+    }
+
+    /**
+     * Validates groups of items in batches on the calling thread, helped by tasks on the executor.  The calling thread
+     * takes batches until none are left and then only waits for batches other threads are running, so a batch
+     * validation completes even when the executor is busy, for example when called from an executor thread or while
+     * background CRL downloads are queued.  An item failing with an unexpected exception gets an invalid result, so one
+     * failure does not fail the batch.
+     */
+    private <T> Map<T, ValidationResult> runInBatches(Collection<List<T>> groups, Function<T, ValidationResult> validation, Function<T, X509Certificate> certificateOf) {
+        int size = groups.stream().mapToInt(List::size).sum();
+        int parallelism = executor instanceof ForkJoinPool ? ((ForkJoinPool) executor).getParallelism()
+                : executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getMaximumPoolSize()
+                : Runtime.getRuntime().availableProcessors();
+        int batchSize = Math.max(1, (size + parallelism * 4 - 1) / (parallelism * 4));
+        Map<T, ValidationResult> results = new ConcurrentHashMap<>(size);
+        Queue<List<T>> pending = new ConcurrentLinkedQueue<>();
+        for (List<T> group : groups) {
+            for (int from = 0; from < group.size(); from += batchSize) {
+                pending.add(group.subList(from, Math.min(group.size(), from + batchSize)));
+            }
+        }
+        CountDownLatch completed = new CountDownLatch(pending.size());
+        Runnable worker = () -> {
+            List<T> batch;
+            while ((batch = pending.poll()) != null) {
+                try {
+                    batch.forEach(item -> results.put(item, validateOrFail(item, validation, certificateOf)));
+                } finally {
+                    completed.countDown();
+                }
+            }
+        };
+        int helpers = Math.min(parallelism, pending.size()) - 1;
+        try {
+            for (int i = 0; i < helpers; i++) {
+                executor.execute(worker);
+            }
+        } catch (RejectedExecutionException e) {
+            // the calling thread validates the remaining batches
+        }
+        worker.run();
+        awaitUninterruptibly(completed);
+        return results;
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private <T> ValidationResult validateOrFail(T item, Function<T, ValidationResult> validation, Function<T, X509Certificate> certificateOf) {
+        long start = System.nanoTime();
+        try {
+            return validation.apply(item);
+        } catch (RuntimeException e) {
+            log.warn("Unexpected failure validating certificate in batch", e);
+            return ValidationResult.invalid(certificateOf.apply(item), ERROR_RULE, new CertificateValidationException("Validation failed: " + e, e), since(start));
         }
     }
 
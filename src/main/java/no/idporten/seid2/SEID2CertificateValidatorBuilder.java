@@ -4,8 +4,24 @@ package no.idporten.seid2;
 import no.idporten.validator.certificate.api.AsyncCrlCache;
 import no.idporten.validator.certificate.api.CrlCache;
 import no.idporten.validator.certificate.util.SimpleAsyncCrlCache;
+import no.idporten.validator.certificate.util.SimpleCrlCache;
+import org.slf4j.event.Level;
 
+import java.lang.reflect.Method;
+import java.net.http.HttpClient;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.cert.X509CRL;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * Builder configuring and creating certificate validator instances.  Has default configuration for test and production
@@ -16,6 +32,15 @@ public class SEID2CertificateValidatorBuilder {
     private Environment environment;
     private CertificateAuthoritiesProperties certificateAuthoritiesProperties;
     private CrlCache crlCache;
+    private Preloading preloading = Preloading.NONE;
+    private Set<String> preloadedDistributionPoints = Set.of();
+    private final Map<String, X509CRL> classpathCrls = new ConcurrentHashMap<>();
+    private final Map<ByteBuffer, X509CRL> classpathCrlsByContent = new ConcurrentHashMap<>();
+    private final ValidatorOptions options = new ValidatorOptions();
+
+    private enum Preloading {
+        NONE, EAGER, LAZY, SNAPSHOT
+    }
 
     /**
      * Creates builder with default settings for environment.
@@ -29,14 +54,14 @@ public class SEID2CertificateValidatorBuilder {
     }
 
     /**
-     * Sets default properties for environment and default in-memory CRL caching containing pre-loaded CRLs and async
-     * CRL cache updates.
+     * Sets default properties for environment and the shared in-memory CRL cache containing pre-loaded CRLs and
+     * scheduled CRL refreshes.
      *
      * @return builder with default values
      */
     public SEID2CertificateValidatorBuilder withDefaults() {
         this.certificateAuthoritiesProperties = CertificateAuthoritiesProperties.defaultProperties(this.environment);
-        this.withAsyncInMemoryCrlCache(15 * 60 * 1000); // 15 minutes
+        this.withSharedCrlCache();
         this.withPreloadedCrlCache();
         return this;
     }
@@ -64,49 +89,475 @@ public class SEID2CertificateValidatorBuilder {
      */
     public SEID2CertificateValidatorBuilder withCrlCache(CrlCache crlCache) {
         this.crlCache = Objects.requireNonNull(crlCache);
+        this.preloading = Preloading.NONE;
         return this;
     }
 
     /**
-     * Sets CRL caching to in-memory with async updates.  This is a default setting.
+     * Sets CRL caching to in-memory with async updates of all CRLs at a fixed interval.
      *
      * @return builder with in-memory CRL cache
+     * @see #withScheduledCrlRefresh()
      */
     public SEID2CertificateValidatorBuilder withAsyncInMemoryCrlCache(long cacheRefreshIntervalMillis) {
         this.crlCache = new SimpleAsyncCrlCache(cacheRefreshIntervalMillis);
+        this.preloading = Preloading.NONE;
         return this;
     }
 
     /**
-     * Pre-loads CRL cache with known CRLs.  This is a default setting.
+     * Sets CRL caching to the in-memory CRL cache shared by all validators in the JVM, so validators for several
+     * environments or tenants hold one copy of each CRL and share one refresh scheduler.  The shared cache refreshes
+     * like {@link #withScheduledCrlRefresh()}, starts with the first validator built and stops refreshing when the
+     * last validator using it is closed.  This is a default setting.
+     *
+     * @return builder with the shared CRL cache
+     * @see SEID2CertificateValidator#close()
+     */
+    public SEID2CertificateValidatorBuilder withSharedCrlCache() {
+        return withCrlCache(CrlCacheRegistry.shared());
+    }
+
+    /**
+     * Sets CRL caching to in-memory, refreshing each CRL on a schedule planned from its thisUpdate and nextUpdate.
+     * Refreshes are spread with jitter, retried with backoff and limited to 2 concurrent downloads per host.  The
+     * cache belongs to the validators built by this builder, and stops refreshing when they are all closed.
+     *
+     * @return builder with in-memory CRL cache refreshed by schedule
+     * @see RefreshingCrlCache
+     */
+    public SEID2CertificateValidatorBuilder withScheduledCrlRefresh() {
+        return withCrlCache(new RefreshingCrlCache(new SimpleCrlCache()));
+    }
+
+    /**
+     * Sets CRL caching to in-memory, refreshing each CRL on a schedule planned from its thisUpdate and nextUpdate,
+     * with custom limits.
+     *
+     * @param minimumInterval         minimum time between refreshes of a CRL, and first retry delay
+     * @param maximumInterval         maximum time between refreshes of a CRL, and maximum retry delay
+     * @param maximumDownloadsPerHost maximum concurrent downloads from one host
+     * @return builder with in-memory CRL cache refreshed by schedule
+     * @see #withScheduledCrlRefresh()
+     */
+    public SEID2CertificateValidatorBuilder withScheduledCrlRefresh(Duration minimumInterval, Duration maximumInterval, int maximumDownloadsPerHost) {
+        return withCrlCache(new RefreshingCrlCache(new SimpleCrlCache(), minimumInterval, maximumInterval, maximumDownloadsPerHost));
+    }
+
+    /**
+     * Pre-loads CRL cache with known CRLs.  This is a default setting.  The CRLs are parsed in parallel when the
+     * validator is built, and do not replace newer CRLs already in the cache.
      *
      * @return builder with data in CRL cache
      */
     public SEID2CertificateValidatorBuilder withPreloadedCrlCache() {
+        return withPreloading(Preloading.EAGER);
+    }
+
+    /**
+     * Pre-loads CRL cache with known CRLs on first use.  A CRL is parsed when a certificate from its issuer is first
+     * validated, which keeps CRLs for unused issuers out of startup time and memory.
+     *
+     * @return builder with lazily pre-loaded CRL cache
+     * @see #withPreloadedCrlCache()
+     */
+    public SEID2CertificateValidatorBuilder withLazyPreloadedCrlCache() {
+        return withPreloading(Preloading.LAZY);
+    }
+
+    /**
+     * Checks revocation against pre-compiled snapshots of the known CRLs.  Snapshots are verified and written when
+     * this library is built, and are read with near-zero parsing, so startup time and memory do not grow with the size
+     * of the CRLs.  A snapshot is used until its CRL's nextUpdate, or until a newer CRL is in the CRL cache.  Known CRLs
+     * without a snapshot are pre-loaded on first use.
+     *
+     * @return builder with CRL snapshots
+     * @see #withLazyPreloadedCrlCache()
+     */
+    public SEID2CertificateValidatorBuilder withCrlSnapshots() {
+        return withPreloading(Preloading.SNAPSHOT);
+    }
+
+    private SEID2CertificateValidatorBuilder withPreloading(Preloading preloading) {
         Objects.requireNonNull(crlCache);
-        for (String crlDistributionPoint : this.certificateAuthoritiesProperties.getCrlDistributionPoints()) {
-            this.crlCache.set(crlDistributionPoint, X509CRLUtils.loadCRLFromClasspath(crlDistributionPoint, environment));
+        this.preloading = preloading;
+        this.preloadedDistributionPoints = Set.copyOf(this.certificateAuthoritiesProperties.getCrlDistributionPoints());
+        return this;
+    }
+
+    /**
+     * Persists CRLs in a local directory, so that restarts use the freshest CRLs seen.  Wraps the current CRL cache,
+     * and loads persisted CRLs for the environment's distribution points, falling back to the pre-loaded CRLs.  Call
+     * this after setting the CRL cache.
+     *
+     * @param directory directory for CRL files
+     * @return builder with persistent CRL cache
+     * @see PersistentCrlCache
+     */
+    public SEID2CertificateValidatorBuilder withPersistentCrlCache(Path directory) {
+        return withPersistentCrlCache(directory, false);
+    }
+
+    /**
+     * Persists CRLs in a local directory, optionally reading them back through memory-mapped files.
+     *
+     * @param directory    directory for CRL files
+     * @param memoryMapped read CRL files through memory-mapped files
+     * @return builder with persistent CRL cache
+     * @see #withPersistentCrlCache(Path)
+     */
+    public SEID2CertificateValidatorBuilder withPersistentCrlCache(Path directory, boolean memoryMapped) {
+        PersistentCrlCache persistentCrlCache = new PersistentCrlCache(Objects.requireNonNull(crlCache), directory, memoryMapped);
+        persistentCrlCache.load(this.certificateAuthoritiesProperties.getCrlDistributionPoints(), this::classpathCrl);
+        this.crlCache = persistentCrlCache;
+        return this;
+    }
+
+    /**
+     * Checks revocation with OCSP, using the responders in the certificates' authority information access extension.
+     * Answers are cached until their nextUpdate.  Certificates without OCSP responders, or without a verified answer
+     * from any responder, are checked against CRLs.  Requests carry a nonce, and responses without the same nonce are
+     * rejected.  Answers without nextUpdate are accepted and cached for up to an hour after their thisUpdate.
+     *
+     * @return builder with OCSP revocation checking
+     */
+    public SEID2CertificateValidatorBuilder withOcsp() {
+        return withOcsp(true);
+    }
+
+    /**
+     * Checks revocation with OCSP, optionally without nonces.  Turn nonces off for responders serving pre-signed
+     * responses, which do not echo the nonce of the request.
+     *
+     * @param nonce send a nonce in requests, and reject responses without the same nonce
+     * @return builder with OCSP revocation checking
+     * @see #withOcsp()
+     */
+    public SEID2CertificateValidatorBuilder withOcsp(boolean nonce) {
+        this.options.setOcsp(true);
+        this.options.setOcspNonce(nonce);
+        return this;
+    }
+
+    /**
+     * Sets the HTTP client for CRL downloads and OCSP requests, for example to use a proxy or custom TLS settings.
+     * Defaults to a client shared by all validators, preferring HTTP/2 with a connect timeout of 10 seconds.
+     * Validators with their own HTTP client, CRL download timeout or maximum CRL size share a CRL cache only with
+     * validators using the same settings.  Building a validator fails if its refreshing CRL cache is in use by
+     * validators with other download settings, for example a persistent cache wrapping the shared cache.
+     *
+     * @param httpClient HTTP client
+     * @return builder with HTTP client
+     * @see HttpCrlFetcher#defaultHttpClient(Duration)
+     */
+    public SEID2CertificateValidatorBuilder withHttpClient(HttpClient httpClient) {
+        this.options.setHttpClient(Objects.requireNonNull(httpClient));
+        return this;
+    }
+
+    /**
+     * Sets the request timeout for CRL downloads.  Defaults to 10 seconds.
+     *
+     * @param timeout request timeout
+     * @return builder with CRL download timeout
+     * @see #withHttpClient(HttpClient)
+     */
+    public SEID2CertificateValidatorBuilder withCrlDownloadTimeout(Duration timeout) {
+        this.options.setCrlDownloadTimeout(Objects.requireNonNull(timeout));
+        return this;
+    }
+
+    /**
+     * Sets the maximum size in bytes of a downloaded CRL, after decompression.  Larger downloads are aborted and count
+     * as failed.  Defaults to 64 MiB.
+     *
+     * @param maximumSize maximum CRL size in bytes
+     * @return builder with maximum CRL size
+     * @see #withHttpClient(HttpClient)
+     */
+    public SEID2CertificateValidatorBuilder withMaximumCrlSize(int maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Maximum CRL size must be positive");
+        }
+        this.options.setMaximumCrlSize(maximumSize);
+        return this;
+    }
+
+    /**
+     * Warms up validators when they are built, so build() returns a validator whose first validations are as fast as
+     * later ones.  Reloaded validators are warmed up before they are swapped in.  Disabled by default.
+     *
+     * @return builder warming up validators
+     * @see SEID2CertificateValidator#warmUp()
+     */
+    public SEID2CertificateValidatorBuilder withWarmUp() {
+        this.options.setWarmUp(true);
+        return this;
+    }
+
+    /**
+     * Serves an expired CRL for a grace period after its nextUpdate while a new CRL is downloaded in the background on
+     * the validator's executor, instead of making validations wait for the download.  After the grace period
+     * validations wait for the download.  Disabled by default.
+     *
+     * @param gracePeriod time after nextUpdate an expired CRL is served
+     * @return builder with stale-while-revalidate CRL downloads
+     */
+    public SEID2CertificateValidatorBuilder withStaleWhileRevalidate(Duration gracePeriod) {
+        if (gracePeriod.isNegative()) {
+            throw new IllegalArgumentException("Grace period must not be negative");
+        }
+        this.options.setCrlStaleGracePeriod(gracePeriod);
+        return this;
+    }
+
+    /**
+     * Caches successful validations, so repeated validations of the same certificate are a single lookup.  Cached
+     * results expire at the earliest of the certificate's notAfter, the nextUpdate of the cached CRLs or OCSP answer
+     * for the certificate and the time to live.  Disabled by default.
+     *
+     * @param maximumSize maximum number of cached certificates
+     * @param timeToLive  maximum time a validation result is reused
+     * @return builder with validation result cache
+     */
+    public SEID2CertificateValidatorBuilder withValidationResultCache(int maximumSize, Duration timeToLive) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("Maximum size must be positive");
+        }
+        this.options.setResultCacheMaximumSize(maximumSize);
+        this.options.setResultCacheTimeToLive(Objects.requireNonNull(timeToLive));
+        return this;
+    }
+
+    /**
+     * Sets the executor running batch and asynchronous validations.  Defaults to a bounded pool of daemon threads
+     * shared by all validators.
+     *
+     * @param executor executor for batch and asynchronous validations
+     * @return builder with executor
+     * @see SEID2CertificateValidator#validateAll(java.util.Collection)
+     * @see SEID2CertificateValidator#validateAsync(java.security.cert.X509Certificate)
+     */
+    public SEID2CertificateValidatorBuilder withExecutor(Executor executor) {
+        this.options.setExecutor(Objects.requireNonNull(executor));
+        return this;
+    }
+
+    /**
+     * Sets how certificates rejected by isValid() are logged.  Defaults to every rejection at level ERROR.  Rejections
+     * are logged with the failed rule and reason, without stack traces.
+     *
+     * @param level      log level
+     * @param sampleRate log every n-th rejection
+     * @return builder with rejection logging
+     */
+    public SEID2CertificateValidatorBuilder withRejectionLogging(Level level, int sampleRate) {
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("Sample rate must be positive");
+        }
+        this.options.setRejectionLogLevel(Objects.requireNonNull(level));
+        this.options.setRejectionLogSampleRate(sampleRate);
+        return this;
+    }
+
+    /**
+     * Limits the encoded certificates read by the validator.  Encoded certificates larger than the maximum size are
+     * rejected without being parsed, and encoded certificates that failed to parse are remembered by a hash, so the
+     * same input sent again is rejected without being parsed.  Defaults to 64 KiB and 1024 remembered inputs.
+     *
+     * @param maximumInputSize       maximum size in characters or bytes of an encoded certificate or x5c chain
+     * @param rejectedInputCacheSize number of rejected inputs remembered, zero to remember none
+     * @return builder with input limits
+     */
+    public SEID2CertificateValidatorBuilder withInputLimits(int maximumInputSize, int rejectedInputCacheSize) {
+        if (maximumInputSize < 1 || rejectedInputCacheSize < 0) {
+            throw new IllegalArgumentException("Maximum input size must be positive and rejected input cache size not negative");
         }
+        this.options.setMaximumInputSize(maximumInputSize);
+        this.options.setRejectedInputCacheSize(rejectedInputCacheSize);
+        return this;
+    }
+
+    /**
+     * Sets the order in which rules are run.  Defaults to {@link RuleOrder#COST}, running cheap structural rules
+     * before signature verifications and revocation checks.  Use {@link RuleOrder#ADAPTIVE} to also run the rules
+     * rejecting the most certificates first.
+     *
+     * @param ruleOrder rule order
+     * @return builder with rule order
+     */
+    public SEID2CertificateValidatorBuilder withRuleOrder(RuleOrder ruleOrder) {
+        this.options.setRuleOrder(Objects.requireNonNull(ruleOrder));
+        return this;
+    }
+
+    /**
+     * Adds a listener instrumenting validations and CRL fetching, for example with metrics.  Listeners added more than
+     * once are all called.
+     *
+     * @param listener listener
+     * @return builder with listener
+     * @see MicrometerValidationListener
+     * @see JmxValidationListener
+     */
+    public SEID2CertificateValidatorBuilder withListener(ValidationListener listener) {
+        this.options.setListener(CompositeValidationListener.of(this.options.getListener(), Objects.requireNonNull(listener)));
         return this;
     }
 
     /**
-     * Builds validator instance.
+     * Runs batch and asynchronous validations on virtual threads, one per validation.  Requires Java 21 or later.
+     *
+     * @return builder with virtual thread executor
+     * @throws IllegalStateException if virtual threads are not available
+     */
+    public SEID2CertificateValidatorBuilder withVirtualThreadExecutor() {
+        try {
+            Method newVirtualThreadPerTaskExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return withExecutor((Executor) newVirtualThreadPerTaskExecutor.invoke(null));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads require Java 21 or later", e);
+        }
+    }
+
+    /**
+     * Builds validator instance.  Close the validator when it is no longer used, to stop CRL refreshes no other
+     * validator needs.
      *
      * @return
      * @throws Exception
      */
     public SEID2CertificateValidator build() throws Exception {
+        CrlCache preloadedCrlCache = preloadCrlCache();
+        Runnable release = startCrlCache(preloadedCrlCache);
+        try {
+            SEID2CertificateValidator validator = createValidator(environment, certificateAuthoritiesProperties, preloadedCrlCache);
+            validator.releaseOnClose(release);
+            if (options.isWarmUp()) {
+                validator.warmUp();
+            }
+            return validator;
+        } catch (Exception e) {
+            release.run();
+            throw e;
+        }
+    }
+
+    /**
+     * Builds a validator whose properties can be reloaded at runtime.  Reloads share the CRL cache set up by this
+     * builder, so CRLs are not loaded again and only one CRL cache is refreshing.
+     *
+     * @return reloadable validator
+     * @throws Exception if build fails
+     * @see ReloadableSEID2CertificateValidator#reload(CertificateAuthoritiesProperties)
+     */
+    public ReloadableSEID2CertificateValidator buildReloadable() throws Exception {
+        CrlCache preloadedCrlCache = preloadCrlCache();
+        Runnable release = startCrlCache(preloadedCrlCache);
+        try {
+            ValidatorOptions reloadOptions = options.copy();
+            SEID2CertificateValidator validator = new SEID2CertificateValidatorFactory().createValidator(environment, certificateAuthoritiesProperties, preloadedCrlCache, reloadOptions);
+            if (options.isWarmUp()) {
+                validator.warmUp();
+            }
+            Function<String, X509CRL> bundledCrls = preloading == Preloading.NONE ? url -> null : this::bundledCrl;
+            return new ReloadableSEID2CertificateValidator(environment, preloadedCrlCache, reloadOptions, bundledCrls, validator, release);
+        } catch (Exception e) {
+            release.run();
+            throw e;
+        }
+    }
+
+    private CrlCache preloadCrlCache() {
         Objects.requireNonNull(certificateAuthoritiesProperties);
         Objects.requireNonNull(crlCache);
-        if (crlCache instanceof AsyncCrlCache) {
-            ((AsyncCrlCache) crlCache).start();
+        if (crlCache == CrlCacheRegistry.shared()) {
+            return preload(CrlCacheRegistry.shared(options.getHttpClient(), options.getCrlDownloadTimeout(), options.getMaximumCrlSize()));
+        }
+        return preload(crlCache);
+    }
+
+    /**
+     * Starts the CRL cache for a validator.  Refreshing CRL caches are reference counted, and the returned action
+     * releases the validator's reference.  Refreshed CRLs are set through the pre-loaded cache until then, so that
+     * wrappers such as the persistent cache store them.  Other CRL caches are started and never stopped.
+     */
+    private Runnable startCrlCache(CrlCache preloadedCrlCache) {
+        AsyncCrlCache asyncCrlCache = ForwardingCrlCache.findAsyncCrlCache(preloadedCrlCache);
+        if (asyncCrlCache instanceof RefreshingCrlCache) {
+            RefreshingCrlCache refreshingCrlCache = (RefreshingCrlCache) asyncCrlCache;
+            Runnable release = CrlCacheRegistry.acquire(refreshingCrlCache, options.getHttpClient(), options.getCrlDownloadTimeout(), options.getMaximumCrlSize());
+            Runnable unregister = refreshingCrlCache.refreshThrough(preloadedCrlCache);
+            options.getCrlSnapshots().forEach(refreshingCrlCache::watch);
+            return () -> {
+                unregister.run();
+                release.run();
+            };
+        }
+        if (asyncCrlCache != null) {
+            asyncCrlCache.start();
+        }
+        return () -> {
+        };
+    }
+
+    private CrlCache preload(CrlCache crlCache) {
+        options.setCrlSnapshots(Map.of());
+        if (preloading == Preloading.SNAPSHOT) {
+            Map<String, CrlSnapshot> snapshots = CrlSnapshot.loadFromClasspath(preloadedDistributionPoints, environment);
+            Set<String> withoutSnapshot = new HashSet<>(preloadedDistributionPoints);
+            withoutSnapshot.removeAll(snapshots.keySet());
+            options.setCrlSnapshots(Map.copyOf(snapshots));
+            return lazyPreloaded(crlCache, withoutSnapshot);
+        }
+        if (preloading == Preloading.LAZY) {
+            return lazyPreloaded(crlCache, preloadedDistributionPoints);
+        }
+        if (preloading == Preloading.EAGER) {
+            Map<String, X509CRL> crls = preloadedDistributionPoints.parallelStream()
+                    .collect(Collectors.toMap(Function.identity(), this::classpathCrl));
+            crls.forEach((url, crl) -> {
+                if (X509CRLUtils.newest(crlCache.get(url), crl) == crl) {
+                    crlCache.set(url, crl);
+                }
+            });
+        }
+        return crlCache;
+    }
+
+    private CrlCache lazyPreloaded(CrlCache crlCache, Set<String> distributionPoints) {
+        if (distributionPoints.isEmpty()) {
+            return crlCache;
+        }
+        return new LazyPreloadingCrlCache(crlCache, distributionPoints, this::classpathCrl);
+    }
+
+    /**
+     * Loads a pre-loaded CRL from classpath.  Each CRL is parsed once per builder, however the builder is
+     * reconfigured, and identical CRLs for mirrored distribution points share one parsed instance.
+     */
+    private X509CRL classpathCrl(String url) {
+        return classpathCrls.computeIfAbsent(url, key -> {
+            byte[] encoded = X509CRLUtils.readCRLFromClasspath(key, environment);
+            return classpathCrlsByContent.computeIfAbsent(ByteBuffer.wrap(encoded), content -> X509CRLUtils.loadCRL(key, encoded));
+        });
+    }
+
+    /**
+     * Loads a bundled CRL for a distribution point added by a reload.
+     *
+     * @return CRL, or null if no CRL is bundled for the distribution point
+     */
+    private X509CRL bundledCrl(String url) {
+        try {
+            return classpathCrl(url);
+        } catch (SEID2CertificateValidatorInitException e) {
+            return null;
         }
-        return createValidator(environment, certificateAuthoritiesProperties, crlCache);
     }
 
     protected SEID2CertificateValidator createValidator(Environment environment, CertificateAuthoritiesProperties certificateAuthoritiesProperties, CrlCache crlCache) throws Exception {
-        return new SEID2CertificateValidatorFactory().createValidator(environment, certificateAuthoritiesProperties, crlCache);
+        return new SEID2CertificateValidatorFactory().createValidator(environment, certificateAuthoritiesProperties, crlCache, options);
     }
 
 }
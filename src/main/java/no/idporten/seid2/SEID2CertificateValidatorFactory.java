@@ -5,11 +5,15 @@ import no.idporten.validator.certificate.ValidatorBuilder;
 import no.idporten.validator.certificate.api.CertificateBucket;
 import no.idporten.validator.certificate.api.CertificateValidationException;
 import no.idporten.validator.certificate.api.CrlCache;
+import no.idporten.validator.certificate.api.CrlFetcher;
 import no.idporten.validator.certificate.api.ValidatorRule;
 import no.idporten.validator.certificate.rule.*;
-import no.idporten.validator.certificate.util.CachingCrlFetcher;
 import no.idporten.validator.certificate.util.SimpleCertificateBucket;
 
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 
@@ -21,6 +25,8 @@ import java.util.Set;
  */
 public class SEID2CertificateValidatorFactory {
 
+    static final String TRUSTED_ISSUER_RULE = "TrustedIssuerRule";
+
     /**
      * Creates a validator.
      *
@@ -31,25 +37,85 @@ public class SEID2CertificateValidatorFactory {
      * @throws Exception if create fails
      */
     public SEID2CertificateValidator createValidator(Environment environment, CertificateAuthoritiesProperties certificateAuthoritiesProperties, CrlCache crlCache) throws Exception {
+        return createValidator(environment, certificateAuthoritiesProperties, crlCache, new ValidatorOptions());
+    }
+
+    /**
+     * Creates a validator with optional tuning.
+     *
+     * @param environment                      environment
+     * @param certificateAuthoritiesProperties properties (certificates and policies)
+     * @param crlCache                         CRL cache implementation
+     * @param options                          optional tuning
+     * @return certificate validator
+     * @throws Exception if create fails
+     */
+    SEID2CertificateValidator createValidator(Environment environment, CertificateAuthoritiesProperties certificateAuthoritiesProperties, CrlCache crlCache, ValidatorOptions options) throws Exception {
         Objects.requireNonNull(environment);
         Objects.requireNonNull(certificateAuthoritiesProperties);
         Objects.requireNonNull(crlCache);
-        Validator validator = ValidatorBuilder.newInstance()
-                .addRule(new ExpirationRule())
-                .addRule(new SigningRule(SigningRule.Kind.PUBLIC_SIGNED_ONLY))
-                .addRule(new CriticalExtensionRecognizedRule((certificateAuthoritiesProperties.getCriticalExtensionsRecognized().toArray(new String[0]))))
-                .addRule(new CriticalExtensionRequiredRule(certificateAuthoritiesProperties.getCriticalExtensionsRequired().toArray(new String[0])))
-                .addRule(createChainRule(environment, certificateAuthoritiesProperties))
-                .addRule(new PolicyRule(certificateAuthoritiesProperties.getPolicies()))
-                .addRule(new CRLRule(new CachingCrlFetcher(crlCache)))
-                .build();
-        return new SEID2CertificateValidator(validator);
-    }
-
-    private ValidatorRule createChainRule(Environment environment, CertificateAuthoritiesProperties certificateAuthoritiesProperties) throws CertificateValidationException {
-        return new ChainRule(
-                getCertificateBucket(certificateAuthoritiesProperties.getRootCertificates()),
-                getCertificateBucket(certificateAuthoritiesProperties.getIntermediateCertificates()));
+        Objects.requireNonNull(options);
+        TrustStore trustStore = createTrustStore(certificateAuthoritiesProperties);
+        VerifiedChainRule chainRule = new VerifiedChainRule(trustStore);
+        CrlCache deduplicatingCrlCache = deduplicating(crlCache, certificateAuthoritiesProperties.getCrlDistributionPoints());
+        RevocationIndexRule crlRule = new RevocationIndexRule(createCrlFetcher(deduplicatingCrlCache, options), deduplicatingCrlCache, options.getCrlSnapshots(), options.getListener());
+        OcspRule ocspRule = options.isOcsp()
+                ? new OcspRule(trustStore, crlRule::validate, OcspRule.http(options.httpClientOrDefault(), options.getOcspTimeout()), options.isOcspNonce(), options.getOcspMaximumAge(), options.getOcspCacheMaximumSize())
+                : null;
+        List<NamedRule> rules = List.of(
+                namedRule(new ExpirationRule(), NamedRule.Cost.STRUCTURAL),
+                namedRule(new PolicyRule(certificateAuthoritiesProperties.getPolicies()), NamedRule.Cost.STRUCTURAL),
+                namedRule(new CriticalExtensionRecognizedRule((certificateAuthoritiesProperties.getCriticalExtensionsRecognized().toArray(new String[0]))), NamedRule.Cost.STRUCTURAL),
+                namedRule(new CriticalExtensionRequiredRule(certificateAuthoritiesProperties.getCriticalExtensionsRequired().toArray(new String[0])), NamedRule.Cost.STRUCTURAL),
+                NamedRule.withContext(TRUSTED_ISSUER_RULE, NamedRule.Cost.STRUCTURAL, chainRule::validateIssuer),
+                NamedRule.withContext(VerifiedChainRule.class.getSimpleName(), NamedRule.Cost.CRYPTOGRAPHIC, chainRule::validate),
+                ocspRule == null
+                        ? new NamedRule(RevocationIndexRule.class.getSimpleName(), NamedRule.Cost.REVOCATION, crlRule::validate)
+                        : NamedRule.withContext(OcspRule.class.getSimpleName(), NamedRule.Cost.REVOCATION, ocspRule::validate));
+        return new SEID2CertificateValidator(rules, createResultCache(options, crlCache, ocspRule), ocspRule, new WarmUp(certificateAuthoritiesProperties, crlRule), options);
+    }
+
+    private static NamedRule namedRule(ValidatorRule rule, NamedRule.Cost cost) {
+        Validator validator = ValidatorBuilder.newInstance().addRule(rule).build();
+        return new NamedRule(rule.getClass().getSimpleName(), cost, validator::validate);
+    }
+
+    /**
+     * Shares identical CRLs between mirrored distribution points.  A refreshing CRL cache already does this for all
+     * validators sharing it, so only other CRL caches are wrapped.
+     */
+    private static CrlCache deduplicating(CrlCache crlCache, Collection<String> distributionPointUrls) {
+        if (ForwardingCrlCache.findAsyncCrlCache(crlCache) instanceof RefreshingCrlCache) {
+            return crlCache;
+        }
+        return new DeduplicatingCrlCache(crlCache, distributionPointUrls);
+    }
+
+    private CrlFetcher createCrlFetcher(CrlCache deduplicatingCrlCache, ValidatorOptions options) {
+        CrlFetcher httpCrlFetcher = new HttpCrlFetcher(deduplicatingCrlCache, options.httpClientOrDefault(), options.getCrlDownloadTimeout(),
+                options.getCrlStaleGracePeriod(), options.getExecutor(), options.getMaximumCrlSize());
+        return new InstrumentedCrlFetcher(httpCrlFetcher, deduplicatingCrlCache, options.getListener());
+    }
+
+    private ValidationResultCache createResultCache(ValidatorOptions options, CrlCache crlCache, OcspRule ocspRule) {
+        if (options.getResultCacheMaximumSize() <= 0) {
+            return null;
+        }
+        return new ValidationResultCache(options.getResultCacheMaximumSize(), options.getResultCacheTimeToLive(), crlCache, ocspRule);
+    }
+
+    static TrustStore createTrustStore(CertificateAuthoritiesProperties certificateAuthoritiesProperties) throws CertificateValidationException {
+        return new TrustStore(
+                readCertificates(certificateAuthoritiesProperties.getRootCertificates()),
+                readCertificates(certificateAuthoritiesProperties.getIntermediateCertificates()));
+    }
+
+    private static List<X509Certificate> readCertificates(Set<String> certs) throws CertificateValidationException {
+        List<X509Certificate> certificates = new ArrayList<>(certs.size());
+        for (String cert : certs) {
+            certificates.add(X509CertificateUtils.readX509Certificate(cert));
+        }
+        return certificates;
     }
 
     protected static CertificateBucket getCertificateBucket(Set<String> certs) throws CertificateValidationException {
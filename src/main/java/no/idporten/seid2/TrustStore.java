@@ -0,0 +1,233 @@
+package no.idporten.seid2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.security.auth.x500.X500Principal;
+import java.nio.ByteBuffer;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Trust anchors and intermediate certificates indexed by subject key identifier and subject DN.  The issuer of a
+ * certificate is found by its authority key identifier, or by its issuer DN when the certificate has no authority key
+ * identifier.  The signatures of the intermediate certificates are verified once, when the trust store is created, and
+ * the verified paths from each intermediate to a root are kept.  Paths are checked for key usage, basic constraints
+ * and validity periods.
+ */
+final class TrustStore {
+
+    private final Logger log = LoggerFactory.getLogger(TrustStore.class);
+
+    private final Set<X509Certificate> roots;
+    private final List<X509Certificate> intermediates;
+    private final Map<ByteBuffer, List<X509Certificate>> bySubjectKeyIdentifier = new HashMap<>();
+    private final Map<X500Principal, List<X509Certificate>> bySubject = new HashMap<>();
+    private final Map<X509Certificate, X509Certificate> verifiedIssuers = new HashMap<>();
+    private final Map<X509Certificate, VerifiedPath> verifiedPaths = new HashMap<>();
+
+    TrustStore(Collection<X509Certificate> roots, Collection<X509Certificate> intermediates) {
+        this.roots = Set.copyOf(roots);
+        this.intermediates = List.copyOf(intermediates);
+        for (X509Certificate certificate : intermediates) {
+            index(certificate);
+        }
+        for (X509Certificate certificate : roots) {
+            index(certificate);
+        }
+        bySubjectKeyIdentifier.replaceAll((key, value) -> List.copyOf(value));
+        bySubject.replaceAll((key, value) -> List.copyOf(value));
+        for (X509Certificate intermediate : intermediates) {
+            X509Certificate issuer = verifiedIssuer(intermediate, findIssuers(intermediate));
+            if (issuer == null) {
+                log.warn("No issuer verifies intermediate certificate {}", intermediate.getSubjectX500Principal());
+            } else {
+                verifiedIssuers.put(intermediate, issuer);
+            }
+        }
+        for (X509Certificate root : roots) {
+            VerifiedPath path = newVerifiedPath(List.of(root), Long.MIN_VALUE, Long.MAX_VALUE);
+            if (path != null) {
+                verifiedPaths.put(root, path);
+            }
+        }
+        for (X509Certificate intermediate : intermediates) {
+            VerifiedPath path = verifiedPath(intermediate);
+            if (path == null) {
+                log.warn("No verified path to a root for intermediate certificate {}", intermediate.getSubjectX500Principal());
+            } else {
+                verifiedPaths.putIfAbsent(intermediate, path);
+            }
+        }
+    }
+
+    List<X509Certificate> getIntermediates() {
+        return intermediates;
+    }
+
+    boolean isRoot(X509Certificate certificate) {
+        return roots.contains(certificate);
+    }
+
+    /**
+     * Finds the candidate issuers of a certificate among the roots and intermediates.  Intermediates come first.
+     * Rules of one validation share the lookup through {@link ValidationContext#issuers(TrustStore)}.
+     *
+     * @return candidate issuers with subject DN matching the certificate's issuer DN, usually one
+     */
+    List<X509Certificate> findIssuers(X509Certificate certificate) {
+        X500Principal issuer = certificate.getIssuerX500Principal();
+        byte[] authorityKeyIdentifier = X509CertificateUtils.authorityKeyIdentifier(certificate);
+        if (authorityKeyIdentifier != null) {
+            List<X509Certificate> candidates = bySubjectKeyIdentifier.getOrDefault(ByteBuffer.wrap(authorityKeyIdentifier), List.of());
+            if (candidates.size() == 1 && candidates.get(0).getSubjectX500Principal().equals(issuer)) {
+                return candidates;
+            }
+            List<X509Certificate> matching = new ArrayList<>(candidates.size());
+            for (X509Certificate candidate : candidates) {
+                if (candidate.getSubjectX500Principal().equals(issuer)) {
+                    matching.add(candidate);
+                }
+            }
+            if (!matching.isEmpty()) {
+                return List.copyOf(matching);
+            }
+        }
+        return bySubject.getOrDefault(issuer, List.of());
+    }
+
+    /**
+     * Gets the issuer verified to have signed an intermediate certificate.
+     *
+     * @return verified issuer, or null if the certificate is not an intermediate or has no verified issuer
+     */
+    X509Certificate getVerifiedIssuer(X509Certificate intermediate) {
+        return verifiedIssuers.get(intermediate);
+    }
+
+    /**
+     * Gets the verified path from a CA certificate to a root.
+     *
+     * @return verified path, or null if the certificate is not a root or an intermediate with a verified path
+     */
+    VerifiedPath getVerifiedPath(X509Certificate ca) {
+        return verifiedPaths.get(ca);
+    }
+
+    private VerifiedPath verifiedPath(X509Certificate intermediate) {
+        List<X509Certificate> path = new ArrayList<>();
+        long notBefore = Long.MIN_VALUE;
+        long notAfter = Long.MAX_VALUE;
+        X509Certificate certificate = intermediate;
+        while (!roots.contains(certificate)) {
+            if (path.contains(certificate) || !isCa(certificate, path.size())) {
+                return null;
+            }
+            path.add(certificate);
+            notBefore = Math.max(notBefore, certificate.getNotBefore().getTime());
+            notAfter = Math.min(notAfter, certificate.getNotAfter().getTime());
+            certificate = verifiedIssuers.get(certificate);
+            if (certificate == null) {
+                return null;
+            }
+        }
+        path.add(certificate);
+        return newVerifiedPath(path, notBefore, notAfter);
+    }
+
+    private VerifiedPath newVerifiedPath(List<X509Certificate> path, long notBefore, long notAfter) {
+        try {
+            return new VerifiedPath(path, notBefore, notAfter);
+        } catch (IllegalArgumentException e) {
+            log.warn("Unreadable name constraints in CA certificate {}", path.get(0).getSubjectX500Principal());
+            return null;
+        }
+    }
+
+    private static boolean isCa(X509Certificate certificate, int intermediatesBelow) {
+        boolean[] keyUsage = certificate.getKeyUsage();
+        return certificate.getBasicConstraints() >= intermediatesBelow && (keyUsage == null || keyUsage[5]);
+    }
+
+    private void index(X509Certificate certificate) {
+        byte[] subjectKeyIdentifier = X509CertificateUtils.subjectKeyIdentifier(certificate);
+        if (subjectKeyIdentifier != null) {
+            addIfAbsent(bySubjectKeyIdentifier.computeIfAbsent(ByteBuffer.wrap(subjectKeyIdentifier), key -> new ArrayList<>()), certificate);
+        }
+        addIfAbsent(bySubject.computeIfAbsent(certificate.getSubjectX500Principal(), key -> new ArrayList<>()), certificate);
+    }
+
+    private static void addIfAbsent(List<X509Certificate> certificates, X509Certificate certificate) {
+        if (!certificates.contains(certificate)) {
+            certificates.add(certificate);
+        }
+    }
+
+    private static X509Certificate verifiedIssuer(X509Certificate certificate, List<X509Certificate> candidates) {
+        for (X509Certificate candidate : candidates) {
+            if (candidate.equals(certificate)) {
+                continue;
+            }
+            try {
+                certificate.verify(candidate.getPublicKey());
+                return candidate;
+            } catch (Exception e) {
+                // try next candidate
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Verified path from a CA certificate to a root, with the period all intermediates in the path are valid.  Since
+     * the path is verified, the CA certificate is a trust anchor for the certificates it issues, with its own name
+     * constraints.
+     */
+    static final class VerifiedPath {
+
+        private final List<X509Certificate> certificates;
+        private final TrustAnchor issuerAnchor;
+        private final long notBefore;
+        private final long notAfter;
+
+        private VerifiedPath(List<X509Certificate> certificates, long notBefore, long notAfter) {
+            this.certificates = List.copyOf(certificates);
+            this.issuerAnchor = new TrustAnchor(certificates.get(0), X509CertificateUtils.nameConstraints(certificates.get(0)));
+            this.notBefore = notBefore;
+            this.notAfter = notAfter;
+        }
+
+        /**
+         * Certificates in the path, starting with the CA certificate and ending with the root.
+         */
+        List<X509Certificate> getCertificates() {
+            return certificates;
+        }
+
+        /**
+         * The CA certificate the path starts with.
+         */
+        X509Certificate getCa() {
+            return certificates.get(0);
+        }
+
+        /**
+         * Trust anchor for the CA certificate, with its name constraints, for validating the certificates it issues.
+         */
+        TrustAnchor getIssuerAnchor() {
+            return issuerAnchor;
+        }
+
+        boolean isValidAt(long time) {
+            return notBefore <= time && time <= notAfter;
+        }
+
+    }
+
+}
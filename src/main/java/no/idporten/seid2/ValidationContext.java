@@ -0,0 +1,37 @@
+package no.idporten.seid2;
+
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+/**
+ * State of one validation of a certificate, passed along the rules.  The candidate issuers of the certificate are
+ * looked up by the first rule needing them, and reused by the issuer, chain and revocation checks of the same
+ * validation.  A context belongs to one validation and is not shared between threads.
+ */
+final class ValidationContext {
+
+    private final X509Certificate certificate;
+    private List<X509Certificate> issuers;
+
+    ValidationContext(X509Certificate certificate) {
+        this.certificate = certificate;
+    }
+
+    X509Certificate getCertificate() {
+        return certificate;
+    }
+
+    /**
+     * Finds the candidate issuers of the certificate in the validator's trust store, looking them up once per
+     * validation.
+     *
+     * @see TrustStore#findIssuers(X509Certificate)
+     */
+    List<X509Certificate> issuers(TrustStore trustStore) {
+        if (issuers == null) {
+            issuers = trustStore.findIssuers(certificate);
+        }
+        return issuers;
+    }
+
+}
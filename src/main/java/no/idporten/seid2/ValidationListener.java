@@ -0,0 +1,69 @@
+package no.idporten.seid2;
+
+import java.security.cert.X509CRL;
+
+/**
+ * Listener for instrumenting certificate validation, for example with metrics.  All methods have empty defaults.
+ * Listeners are called on the validating threads and must be fast and must not throw exceptions.
+ *
+ * @see SEID2CertificateValidatorBuilder#withListener(ValidationListener)
+ * @see MicrometerValidationListener
+ * @see JmxValidationListener
+ */
+public interface ValidationListener {
+
+    /**
+     * Listener doing nothing.
+     */
+    ValidationListener NONE = new ValidationListener() {
+    };
+
+    /**
+     * Called when a validation rule has validated a certificate.
+     *
+     * @param rule          name of the rule
+     * @param passed        true if the certificate passed the rule
+     * @param durationNanos time spent by the rule
+     */
+    default void ruleCompleted(String rule, boolean passed, long durationNanos) {
+    }
+
+    /**
+     * Called when a current CRL was found in the CRL cache.
+     *
+     * @param distributionPoint CRL distribution point url
+     */
+    default void crlCacheHit(String distributionPoint) {
+    }
+
+    /**
+     * Called when the CRL cache had no current CRL, and the CRL is downloaded.
+     *
+     * @param distributionPoint CRL distribution point url
+     */
+    default void crlCacheMiss(String distributionPoint) {
+    }
+
+    /**
+     * Called when a new CRL has been downloaded.  The age and size of the CRL are reported by
+     * {@link #crlInUse(String, long, int)} when it is first used.
+     *
+     * @param distributionPoint CRL distribution point url
+     * @param crl               the new CRL
+     * @param durationNanos     time spent downloading and parsing the CRL
+     */
+    default void crlRefreshed(String distributionPoint, X509CRL crl, long durationNanos) {
+    }
+
+    /**
+     * Called when a validator starts using a CRL for a distribution point: for CRL snapshots when the validator is
+     * built, and for other CRLs when first used, whether downloaded, pre-loaded or read from disk.
+     *
+     * @param distributionPoint   CRL distribution point url
+     * @param thisUpdate          thisUpdate of the CRL in milliseconds since the epoch
+     * @param revokedCertificates number of revoked certificates in the CRL
+     */
+    default void crlInUse(String distributionPoint, long thisUpdate, int revokedCertificates) {
+    }
+
+}
@@ -0,0 +1,59 @@
+package no.idporten.seid2;
+
+import lombok.Getter;
+import lombok.ToString;
+import no.idporten.validator.certificate.api.CertificateValidationException;
+
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+
+/**
+ * Immutable result of validating a certificate.  Results are created without throwing, and without logging or
+ * filling in stack traces of their own.
+ */
+@Getter
+@ToString
+public final class ValidationResult {
+
+    /**
+     * The validated certificate.  Null if the certificate could not be read.
+     */
+    @ToString.Exclude
+    private final X509Certificate certificate;
+    private final boolean valid;
+    /**
+     * Name of the rule rejecting the certificate.  Null for valid certificates.
+     */
+    private final String failedRule;
+    /**
+     * Reason for rejecting the certificate.  Null for valid certificates.
+     */
+    private final String reason;
+    /**
+     * Time spent validating the certificate.
+     */
+    private final Duration duration;
+    /**
+     * Exception rejecting the certificate.  Null for valid certificates.
+     */
+    @ToString.Exclude
+    private final CertificateValidationException exception;
+
+    private ValidationResult(X509Certificate certificate, boolean valid, String failedRule, String reason, Duration duration, CertificateValidationException exception) {
+        this.certificate = certificate;
+        this.valid = valid;
+        this.failedRule = failedRule;
+        this.reason = reason;
+        this.duration = duration;
+        this.exception = exception;
+    }
+
+    static ValidationResult valid(X509Certificate certificate, Duration duration) {
+        return new ValidationResult(certificate, true, null, null, duration, null);
+    }
+
+    static ValidationResult invalid(X509Certificate certificate, String failedRule, CertificateValidationException exception, Duration duration) {
+        return new ValidationResult(certificate, false, failedRule, exception.getMessage(), duration, exception);
+    }
+
+}
@@ -0,0 +1,138 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.api.CertificateValidationException;
+import no.idporten.validator.certificate.api.CrlCache;
+import no.idporten.validator.certificate.api.FailedValidationException;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded cache of successfully validated certificates.  Entries are keyed by the SHA-256 digest of the DER encoded
+ * certificate, and expire at the earliest of the certificate's notAfter, the nextUpdate of the cached CRLs for the
+ * certificate's distribution points, the nextUpdate of the cached OCSP answer for the certificate and the configured
+ * time to live.  Rejected certificates are never cached.
+ *
+ * Lookups do not lock or write.  When the cache is full, the entry expiring first among a sample of
+ * {@value #EVICTION_SAMPLE_SIZE} entries is evicted, so the size bound is approximate under concurrent puts.
+ */
+class ValidationResultCache {
+
+    static final int EVICTION_SAMPLE_SIZE = 8;
+
+    private final int maximumSize;
+    private final long timeToLiveMillis;
+    private final CrlCache crlCache;
+    private final OcspRule ocspRule;
+    private final Map<ByteBuffer, Long> expiryByDigest = new ConcurrentHashMap<>();
+
+    ValidationResultCache(int maximumSize, Duration timeToLive, CrlCache crlCache) {
+        this(maximumSize, timeToLive, crlCache, null);
+    }
+
+    ValidationResultCache(int maximumSize, Duration timeToLive, CrlCache crlCache, OcspRule ocspRule) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("Maximum size must be positive");
+        }
+        this.maximumSize = maximumSize;
+        this.timeToLiveMillis = Objects.requireNonNull(timeToLive).toMillis();
+        this.crlCache = crlCache;
+        this.ocspRule = ocspRule;
+    }
+
+    /**
+     * Computes the cache key for a certificate.
+     */
+    ByteBuffer key(X509Certificate certificate) throws CertificateValidationException {
+        try {
+            return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded()));
+        } catch (Exception e) {
+            throw new CertificateValidationException("Failed to read certificate", e);
+        }
+    }
+
+    /**
+     * Checks if a certificate has a valid, non-expired entry in the cache.
+     */
+    boolean contains(ByteBuffer key) {
+        Long expiry = expiryByDigest.get(key);
+        if (expiry == null) {
+            return false;
+        }
+        if (expiry <= System.currentTimeMillis()) {
+            expiryByDigest.remove(key, expiry);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Caches a successfully validated certificate.
+     */
+    void put(ByteBuffer key, ValidationContext context) {
+        X509Certificate certificate = context.getCertificate();
+        long now = System.currentTimeMillis();
+        long expiry = Math.min(now + timeToLiveMillis, certificate.getNotAfter().getTime());
+        if (crlCache != null) {
+            List<String> distributionPoints;
+            try {
+                distributionPoints = X509CertificateUtils.crlDistributionPoints(certificate);
+            } catch (FailedValidationException e) {
+                return;
+            }
+            for (String distributionPoint : distributionPoints) {
+                X509CRL crl = crlCache.get(distributionPoint);
+                if (crl != null && crl.getNextUpdate() != null) {
+                    expiry = Math.min(expiry, crl.getNextUpdate().getTime());
+                }
+            }
+        }
+        if (ocspRule != null) {
+            expiry = Math.min(expiry, ocspRule.nextUpdate(context));
+        }
+        if (expiry <= now) {
+            return;
+        }
+        if (expiryByDigest.put(key, expiry) == null && expiryByDigest.size() > maximumSize) {
+            evict(key, now);
+        }
+    }
+
+    /**
+     * Evicts the entry expiring first among a sample of entries, other than the entry just added.  Expired entries in
+     * the sample are evicted too.
+     */
+    private void evict(ByteBuffer added, long now) {
+        ByteBuffer eldest = null;
+        long eldestExpiry = Long.MAX_VALUE;
+        Iterator<Map.Entry<ByteBuffer, Long>> entries = expiryByDigest.entrySet().iterator();
+        for (int sampled = 0; sampled < EVICTION_SAMPLE_SIZE && entries.hasNext(); sampled++) {
+            Map.Entry<ByteBuffer, Long> entry = entries.next();
+            if (entry.getKey().equals(added)) {
+                continue;
+            }
+            if (entry.getValue() <= now) {
+                entries.remove();
+            } else if (entry.getValue() < eldestExpiry) {
+                eldest = entry.getKey();
+                eldestExpiry = entry.getValue();
+            }
+        }
+        if (eldest != null && expiryByDigest.size() > maximumSize) {
+            expiryByDigest.remove(eldest, eldestExpiry);
+        }
+    }
+
+    int size() {
+        return expiryByDigest.size();
+    }
+
+}
@@ -0,0 +1,27 @@
+package no.idporten.seid2;
+
+import java.util.Map;
+
+/**
+ * Validation statistics published over JMX by {@link JmxValidationListener}.  Maps are keyed by rule name or CRL
+ * distribution point.
+ */
+public interface ValidationStatisticsMXBean {
+
+    Map<String, Long> getRulePassCounts();
+
+    Map<String, Long> getRuleFailCounts();
+
+    Map<String, Long> getRuleTotalMicros();
+
+    Map<String, Long> getCrlCacheHits();
+
+    Map<String, Long> getCrlCacheMisses();
+
+    Map<String, Long> getCrlAgeSeconds();
+
+    Map<String, Long> getCrlSizes();
+
+    Map<String, Long> getCrlLastRefreshMillis();
+
+}
@@ -0,0 +1,187 @@
+package no.idporten.seid2;
+
+import lombok.Data;
+import org.slf4j.event.Level;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Optional tuning of validator instances.  Collected by the builder and applied by the factory.
+ *
+ * @see SEID2CertificateValidatorBuilder
+ */
+@Data
+class ValidatorOptions {
+
+    /**
+     * Maximum number of cached validation results.  Zero disables the validation result cache.
+     */
+    private int resultCacheMaximumSize;
+
+    /**
+     * Maximum time a cached validation result is reused.
+     */
+    private Duration resultCacheTimeToLive = Duration.ofMinutes(5);
+
+    /**
+     * Executor for batch and asynchronous validations and background CRL downloads.  Defaults to a bounded pool of
+     * daemon threads shared by all validators, since validations may block on CRL and OCSP requests.
+     */
+    private Executor executor = sharedExecutor();
+
+    /**
+     * Log level for certificates rejected by isValid().
+     */
+    private Level rejectionLogLevel = Level.ERROR;
+
+    /**
+     * Log every n-th certificate rejected by isValid().
+     */
+    private int rejectionLogSampleRate = 1;
+
+    /**
+     * Listener instrumenting validations and CRL fetching.
+     */
+    private ValidationListener listener = ValidationListener.NONE;
+
+    /**
+     * Order in which rules are run.
+     */
+    private RuleOrder ruleOrder = RuleOrder.COST;
+
+    /**
+     * Check revocation with OCSP, falling back to CRLs.
+     */
+    private boolean ocsp;
+
+    /**
+     * Send a nonce in OCSP requests.
+     */
+    private boolean ocspNonce = true;
+
+    /**
+     * Maximum age of OCSP answers without nextUpdate.  Such answers are rejected when their thisUpdate is older, and
+     * cached until then.
+     */
+    private Duration ocspMaximumAge = Duration.ofHours(1);
+
+    /**
+     * Maximum number of cached OCSP answers.
+     */
+    private int ocspCacheMaximumSize = 10000;
+
+    /**
+     * Connect and read timeout for OCSP requests.
+     */
+    private Duration ocspTimeout = Duration.ofSeconds(5);
+
+    /**
+     * HTTP client for CRL downloads and OCSP requests.  Null for the shared default client.
+     */
+    private HttpClient httpClient;
+
+    /**
+     * Request timeout for CRL downloads.
+     */
+    private Duration crlDownloadTimeout = HttpCrlFetcher.DEFAULT_TIMEOUT;
+
+    /**
+     * Maximum size in bytes of a downloaded CRL, after decompression.  Larger downloads are aborted.
+     */
+    private int maximumCrlSize = HttpCrlFetcher.DEFAULT_MAXIMUM_SIZE;
+
+    /**
+     * Time after nextUpdate an expired CRL is served while a new CRL is downloaded in the background.  Zero waits for
+     * the download.
+     */
+    private Duration crlStaleGracePeriod = Duration.ZERO;
+
+    /**
+     * Maximum size in characters or bytes of encoded certificates, rejected before parsing if larger.
+     */
+    private int maximumInputSize = 64 * 1024;
+
+    /**
+     * Number of encoded certificates that failed to parse remembered, so they are rejected without parsing when sent
+     * again.  Zero remembers none.
+     */
+    private int rejectedInputCacheSize = 1024;
+
+    /**
+     * Warm up validators before they are used.
+     */
+    private boolean warmUp;
+
+    /**
+     * Pre-compiled snapshots of bundled CRLs by distribution point, used for revocation checks until a newer CRL is
+     * cached.
+     */
+    private Map<String, CrlSnapshot> crlSnapshots = Map.of();
+
+    /**
+     * The default executor, shared by all validators in the JVM.  Threads are created on demand up to four per
+     * processor, at most 64, and stop when idle for a minute.
+     */
+    static Executor sharedExecutor() {
+        return SharedExecutor.INSTANCE;
+    }
+
+    private static final class SharedExecutor {
+        private static final ThreadPoolExecutor INSTANCE = create();
+
+        private static ThreadPoolExecutor create() {
+            int threads = Math.min(64, Math.max(4, 4 * Runtime.getRuntime().availableProcessors()));
+            AtomicInteger count = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "seid2-validation-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
+    /**
+     * The HTTP client to use, the shared default client unless set.
+     */
+    HttpClient httpClientOrDefault() {
+        return httpClient == null ? HttpCrlFetcher.sharedHttpClient() : httpClient;
+    }
+
+    /**
+     * Copy of the options, unaffected by later changes to this instance.
+     */
+    ValidatorOptions copy() {
+        ValidatorOptions copy = new ValidatorOptions();
+        copy.setResultCacheMaximumSize(resultCacheMaximumSize);
+        copy.setResultCacheTimeToLive(resultCacheTimeToLive);
+        copy.setExecutor(executor);
+        copy.setRejectionLogLevel(rejectionLogLevel);
+        copy.setRejectionLogSampleRate(rejectionLogSampleRate);
+        copy.setListener(listener);
+        copy.setRuleOrder(ruleOrder);
+        copy.setOcsp(ocsp);
+        copy.setOcspNonce(ocspNonce);
+        copy.setOcspMaximumAge(ocspMaximumAge);
+        copy.setOcspCacheMaximumSize(ocspCacheMaximumSize);
+        copy.setOcspTimeout(ocspTimeout);
+        copy.setHttpClient(httpClient);
+        copy.setCrlDownloadTimeout(crlDownloadTimeout);
+        copy.setMaximumCrlSize(maximumCrlSize);
+        copy.setCrlStaleGracePeriod(crlStaleGracePeriod);
+        copy.setMaximumInputSize(maximumInputSize);
+        copy.setRejectedInputCacheSize(rejectedInputCacheSize);
+        copy.setWarmUp(warmUp);
+        copy.setCrlSnapshots(crlSnapshots);
+        return copy;
+    }
+
+}
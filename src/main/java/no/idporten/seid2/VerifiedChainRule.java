@@ -0,0 +1,87 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.api.CertificateValidationException;
+import no.idporten.validator.certificate.api.FailedValidationException;
+
+import java.security.GeneralSecurityException;
+import java.security.cert.CertPath;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.PKIXParameters;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Chain check replacing the certvalidator ChainRule and SigningRule.  The paths from intermediates to roots are
+ * verified once by the trust store, so a validation only checks the certificate itself.  It finds the certificate's
+ * issuer, checks that the issuer's path is currently valid, and runs the PKIX validator on the certificate alone with
+ * the issuer as trust anchor, with revocation checking off.  PKIX checks the signature against the disabled algorithms
+ * of the JDK, the validity period, critical extensions and the issuer's name constraints.  Certificates with the key
+ * of their issuer, which the SigningRule rejected as self-signed, are rejected without verifying the signature.  The
+ * issuer lookup is also available as a separate check, so that certificates from unknown issuers are rejected before
+ * any signature is verified.  Both checks use the issuers looked up once in the validation context.
+ */
+final class VerifiedChainRule {
+
+    private static final InstancePool<CertPathValidator> PATH_VALIDATORS = new InstancePool<>(() -> CertPathValidator.getInstance("PKIX"));
+
+    private final TrustStore trustStore;
+
+    VerifiedChainRule(TrustStore trustStore) {
+        this.trustStore = Objects.requireNonNull(trustStore);
+    }
+
+    /**
+     * Checks that the certificate has an issuer in the trust store, without verifying any signatures.
+     */
+    void validateIssuer(ValidationContext context) throws CertificateValidationException {
+        issuers(context);
+    }
+
+    void validate(ValidationContext context) throws CertificateValidationException {
+        X509Certificate certificate = context.getCertificate();
+        List<X509Certificate> issuers = issuers(context);
+        long now = System.currentTimeMillis();
+        boolean expired = false;
+        Exception failure = null;
+        for (X509Certificate issuer : issuers) {
+            TrustStore.VerifiedPath path = trustStore.getVerifiedPath(issuer);
+            if (path == null || issuer.equals(certificate)) {
+                continue;
+            }
+            if (!path.isValidAt(now)) {
+                expired = true;
+                continue;
+            }
+            try {
+                validateIssuedBy(certificate, path);
+                return;
+            } catch (GeneralSecurityException e) {
+                // try next candidate issuer
+                failure = e;
+            }
+        }
+        throw new FailedValidationException(expired ? "Certificate chain is not valid at this time." : "Certificate is not signed by a trusted issuer.", failure);
+    }
+
+    private static void validateIssuedBy(X509Certificate certificate, TrustStore.VerifiedPath path) throws GeneralSecurityException {
+        if (certificate.getPublicKey().equals(path.getCa().getPublicKey())) {
+            throw new CertPathValidatorException("Certificate has the key of its issuer");
+        }
+        CertPath certPath = X509CertificateUtils.certPath(List.of(certificate));
+        PKIXParameters parameters = new PKIXParameters(Set.of(path.getIssuerAnchor()));
+        parameters.setRevocationEnabled(false);
+        PATH_VALIDATORS.use(validator -> validator.validate(certPath, parameters));
+    }
+
+    private List<X509Certificate> issuers(ValidationContext context) throws CertificateValidationException {
+        List<X509Certificate> issuers = context.issuers(trustStore);
+        if (issuers.isEmpty()) {
+            throw new FailedValidationException("Issuer of certificate not found.");
+        }
+        return issuers;
+    }
+
+}
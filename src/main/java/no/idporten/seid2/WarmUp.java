@@ -0,0 +1,162 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.api.CertificateValidationException;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.CertificatePolicies;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.PolicyInformation;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.security.auth.x500.X500Principal;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Warm-up of a validator before it serves traffic.  Fetches, parses and indexes the CRL of every configured
+ * distribution point, and tells which could not be loaded.  Then runs every rule against the configured intermediate
+ * and root certificates and a synthetic leaf certificate, and reads the configured certificates again, so that
+ * certificate parsing, security providers and the rules are loaded and compiled.  The synthetic leaf claims to be
+ * issued by a configured intermediate, carries the configured policies and lists the distribution points whose CRL was
+ * loaded.  Its signature is not valid, and it is never accepted.
+ * <p>
+ * Rules run directly, not through the pipeline, so warm-up does not count as validations in listeners, flight
+ * recorder events or adaptive rule order.  Revocation rules run for the synthetic leaf in the first iteration only.
+ * <p>
+ * Each iteration parses every configured certificate and runs every rule once per certificate, so the default of
+ * 1000 iterations runs them several thousand times for the bundled environments.  That passes the invocation
+ * threshold of about 5000 at which tiered HotSpot compiles a method with C2, so the parsing and rule code is compiled
+ * by C2 before the first validation.  It takes a few seconds.
+ */
+final class WarmUp {
+
+    private static final Logger log = LoggerFactory.getLogger(WarmUp.class);
+
+    static final int DEFAULT_ITERATIONS = 1000;
+
+    private final CertificateAuthoritiesProperties certificateAuthoritiesProperties;
+    private final RevocationIndexRule crlRule;
+
+    WarmUp(CertificateAuthoritiesProperties certificateAuthoritiesProperties, RevocationIndexRule crlRule) {
+        this.certificateAuthoritiesProperties = Objects.requireNonNull(certificateAuthoritiesProperties);
+        this.crlRule = Objects.requireNonNull(crlRule);
+    }
+
+    /**
+     * Creates a leaf certificate claiming to be issued by the issuer, signed by its own key.  Wildcard policies are
+     * given a concrete last arc.
+     */
+    private static X509Certificate syntheticLeaf(X509Certificate issuer, Set<String> policies, Set<String> crlDistributionPoints) throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(256);
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        long now = System.currentTimeMillis();
+        JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(
+                issuer.getSubjectX500Principal(),
+                new BigInteger(127, new SecureRandom()),
+                new Date(now - TimeUnit.HOURS.toMillis(1)),
+                new Date(now + TimeUnit.HOURS.toMillis(1)),
+                new X500Principal("CN=SEID2 warm-up"),
+                keyPair.getPublic());
+        builder.addExtension(Extension.basicConstraints, false, new BasicConstraints(false));
+        PolicyInformation[] policyInformation = policies.stream()
+                .map(policy -> ASN1ObjectIdentifier.tryFromID(policy.endsWith(".*") ? policy.substring(0, policy.length() - 2) + ".1" : policy))
+                .filter(Objects::nonNull)
+                .map(PolicyInformation::new)
+                .toArray(PolicyInformation[]::new);
+        if (policyInformation.length > 0) {
+            builder.addExtension(Extension.certificatePolicies, false, new CertificatePolicies(policyInformation));
+        }
+        if (!crlDistributionPoints.isEmpty()) {
+            builder.addExtension(Extension.cRLDistributionPoints, false, new CRLDistPoint(crlDistributionPoints.stream()
+                    .map(url -> new DistributionPoint(new DistributionPointName(new GeneralNames(new GeneralName(GeneralName.uniformResourceIdentifier, url))), null, null))
+                    .toArray(DistributionPoint[]::new)));
+        }
+        return new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withECDSA").build(keyPair.getPrivate())));
+    }
+
+    /**
+     * Fetches and indexes the CRL of every configured distribution point.
+     *
+     * @return distribution points whose CRL could not be loaded
+     */
+    Set<String> loadCrls() {
+        return crlRule.load(certificateAuthoritiesProperties.getCrlDistributionPoints());
+    }
+
+    /**
+     * Creates the synthetic leaf, claiming to be issued by the first configured intermediate.
+     *
+     * @param unavailableCrls distribution points left out of the leaf
+     * @return synthetic leaf, or null if no intermediates are configured
+     */
+    private X509Certificate syntheticLeaf(Set<String> unavailableCrls) throws Exception {
+        if (certificateAuthoritiesProperties.getIntermediateCertificates().isEmpty()) {
+            return null;
+        }
+        X509Certificate issuer = X509CertificateUtils.readX509Certificate(certificateAuthoritiesProperties.getIntermediateCertificates().iterator().next());
+        Set<String> crlDistributionPoints = new TreeSet<>(certificateAuthoritiesProperties.getCrlDistributionPoints());
+        crlDistributionPoints.removeAll(unavailableCrls);
+        return syntheticLeaf(issuer, certificateAuthoritiesProperties.getPolicies(), crlDistributionPoints);
+    }
+
+    /**
+     * Runs the warm-up.
+     *
+     * @param rules      rules of the validator
+     * @param iterations number of times to run the rules against each certificate
+     * @return distribution points whose CRL could not be loaded
+     */
+    Set<String> run(RulePipeline rules, int iterations) throws Exception {
+        Set<String> unavailableCrls = loadCrls();
+        List<String> encodedCertificates = new ArrayList<>(certificateAuthoritiesProperties.getIntermediateCertificates());
+        encodedCertificates.addAll(certificateAuthoritiesProperties.getRootCertificates());
+        List<X509Certificate> certificates = new ArrayList<>();
+        for (String encoded : encodedCertificates) {
+            certificates.add(X509CertificateUtils.readX509Certificate(encoded));
+        }
+        X509Certificate leaf = syntheticLeaf(unavailableCrls);
+        if (leaf != null) {
+            certificates.add(leaf);
+        }
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            for (String encoded : encodedCertificates) {
+                X509CertificateUtils.readX509Certificate(encoded);
+            }
+            for (X509Certificate certificate : certificates) {
+                for (int index = 0; index < rules.size(); index++) {
+                    NamedRule rule = rules.rule(index);
+                    if (rule.getCost() == NamedRule.Cost.REVOCATION && (iteration > 0 || certificate != leaf)) {
+                        continue;
+                    }
+                    try {
+                        rule.validate(new ValidationContext(certificate));
+                    } catch (CertificateValidationException e) {
+                        log.trace("Warm-up certificate {} rejected by {}: {}", certificate.getSubjectX500Principal(), rule.getName(), e.getMessage());
+                    }
+                }
+            }
+        }
+        return unavailableCrls;
+    }
+
+}
@@ -0,0 +1,44 @@
+package no.idporten.seid2;
+
+import lombok.Getter;
+import lombok.ToString;
+
+import java.time.Duration;
+import java.util.Set;
+
+/**
+ * Immutable result of warming up a validator.  A warm-up never throws, so check {@link #isComplete()} to find out
+ * whether every configured CRL was loaded, for example before reporting the validator as ready.
+ */
+@Getter
+@ToString
+public final class WarmUpResult {
+
+    /**
+     * Time spent warming up.
+     */
+    private final Duration duration;
+    /**
+     * Distribution points whose CRL could not be loaded.  Empty if every configured CRL was loaded.
+     */
+    private final Set<String> unavailableCrls;
+    /**
+     * Exception ending the warm-up early.  Null if the warm-up ran to the end.
+     */
+    @ToString.Exclude
+    private final Exception failure;
+
+    WarmUpResult(Duration duration, Set<String> unavailableCrls, Exception failure) {
+        this.duration = duration;
+        this.unavailableCrls = Set.copyOf(unavailableCrls);
+        this.failure = failure;
+    }
+
+    /**
+     * @return true if the warm-up ran to the end and loaded every configured CRL
+     */
+    public boolean isComplete() {
+        return failure == null && unavailableCrls.isEmpty();
+    }
+
+}
@@ -1,8 +1,10 @@
 package no.idporten.seid2;
 
 import no.idporten.validator.certificate.util.CrlUtils;
+import no.idporten.validator.certificate.util.SimpleCrlCache;
 
-import java.net.URL;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -10,6 +12,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.security.cert.X509CRL;
+import java.util.Objects;
 
 /**
  * Utilities for handling CRLs for pre-loaded caches.
@@ -30,9 +33,10 @@ class X509CRLUtils {
      * @param environment environment
      */
     static void downloadCRLAndSaveToResources(Environment environment) {
+        HttpCrlFetcher crlFetcher = new HttpCrlFetcher(new SimpleCrlCache());
         for (String crlDistributionPoint : CertificateAuthoritiesProperties.defaultProperties(environment).getCrlDistributionPoints()) {
             try {
-                X509CRL crl = CrlUtils.load(new URL(crlDistributionPoint).openStream());
+                X509CRL crl = crlFetcher.download(crlDistributionPoint, null);
                 Path path = Paths.get("src", "main", "resources", "crl", environment.name(), toFilename(crlDistributionPoint));
                 CrlUtils.save(Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), crl);
             } catch (Exception e) {
@@ -49,11 +53,56 @@ class X509CRLUtils {
      * @return CRL
      */
     static X509CRL loadCRLFromClasspath(String distributionPointUrl, Environment environment) {
+        return loadCRL(distributionPointUrl, readCRLFromClasspath(distributionPointUrl, environment));
+    }
+
+    /**
+     * Reads an encoded CRL from classpath.
+     *
+     * @param distributionPointUrl url to distribution point.  The encoded url is the file name.
+     * @param environment          environment for CRL.  The environment is used to find the directory for the CRL file.
+     * @return encoded CRL
+     */
+    static byte[] readCRLFromClasspath(String distributionPointUrl, Environment environment) {
+        try (InputStream inputStream = X509CRLUtils.class.getClassLoader().getResourceAsStream("crl/" + environment.name() + "/" + toFilename(distributionPointUrl))) {
+            return Objects.requireNonNull(inputStream, "CRL not found").readAllBytes();
+        } catch (Exception e) {
+            throw new SEID2CertificateValidatorInitException(String.format("Failed to load CRL %s from classpath", distributionPointUrl), e);
+        }
+    }
+
+    /**
+     * Parses an encoded CRL.
+     *
+     * @param distributionPointUrl url to distribution point, for error messages
+     * @param encoded              encoded CRL
+     * @return CRL
+     */
+    static X509CRL loadCRL(String distributionPointUrl, byte[] encoded) {
+        CrlLoadEvent event = FlightRecorderEvents.beginCrlLoad();
+        X509CRL crl = null;
         try {
-            return CrlUtils.load(X509CRLUtils.class.getClassLoader().getResourceAsStream("crl/" + environment.name() + "/" + toFilename(distributionPointUrl)));
+            crl = CrlUtils.load(new ByteArrayInputStream(encoded));
+            return crl;
         } catch (Exception e) {
             throw new SEID2CertificateValidatorInitException(String.format("Failed to load CRL %s from classpath", distributionPointUrl), e);
+        } finally {
+            if (event != null) {
+                event.commit(distributionPointUrl, CrlLoadEvent.CLASSPATH, crl, () -> encoded.length);
+            }
+        }
+    }
+
+    /**
+     * Picks the newest of two CRLs by thisUpdate.  Null CRLs are ignored.
+     *
+     * @return the newest CRL, or null if both are null
+     */
+    static X509CRL newest(X509CRL a, X509CRL b) {
+        if (a == null || b == null) {
+            return a == null ? b : a;
         }
+        return b.getThisUpdate().after(a.getThisUpdate()) ? b : a;
     }
 
 }
@@ -1,15 +1,33 @@
 package no.idporten.seid2;
 
 import no.idporten.validator.certificate.api.CertificateValidationException;
-import org.bouncycastle.util.io.pem.PemObject;
-import org.bouncycastle.util.io.pem.PemReader;
+import no.idporten.validator.certificate.api.FailedValidationException;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
 
 import java.io.ByteArrayInputStream;
-import java.io.StringReader;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertPath;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Utilities for handling PEM-encoded certificates.
@@ -19,27 +37,196 @@ class X509CertificateUtils {
     public static final String BEGIN_CERT = "-----BEGIN CERTIFICATE-----";
     public static final String END_CERT = "-----END CERTIFICATE-----";
 
+    private static final byte[] PEM_BEGIN_CERT = BEGIN_CERT.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PEM_END_CERT = END_CERT.getBytes(StandardCharsets.US_ASCII);
+    private static final byte DER_SEQUENCE = 0x30;
+
+    /**
+     * CertificateFactory instances are not guaranteed to be thread-safe, so each call borrows one from a small pool
+     * shared by all threads.
+     */
+    private static final InstancePool<CertificateFactory> CERTIFICATE_FACTORIES = new InstancePool<>(() -> CertificateFactory.getInstance("X.509"));
+
     /**
-     * Read X509 pem encoded certificate.  Adds header and footer if missing.
+     * Read X509 pem encoded certificate.  Header and footer are optional.  The base64 body is decoded by the JDK's
+     * MIME decoder without building intermediate strings.
      */
     static X509Certificate readX509Certificate(String cert) throws CertificateValidationException {
+        CertificateParseEvent event = FlightRecorderEvents.beginCertificateParse();
+        X509Certificate certificate = null;
         try {
-            if (!cert.startsWith(BEGIN_CERT)) {
-                cert = BEGIN_CERT + "\n" + cert;
+            int start = cert.indexOf(BEGIN_CERT);
+            start = start < 0 ? 0 : start + BEGIN_CERT.length();
+            int end = cert.indexOf(END_CERT, start);
+            end = end < 0 ? cert.length() : end;
+            certificate = generateCertificate(decodeBase64(StandardCharsets.US_ASCII.encode(CharBuffer.wrap(cert, start, end))));
+            return certificate;
+        } catch (Exception e) {
+            throw new CertificateValidationException("Failed to read certificate", e);
+        } finally {
+            if (event != null) {
+                event.commit(certificate, cert == null ? 0 : cert.length());
             }
-            if (!cert.endsWith(END_CERT)) {
-                cert = cert + "\n" + END_CERT;
+        }
+    }
+
+    /**
+     * Read X509 certificate from DER bytes, or from ASCII bytes of a base64 or pem encoded certificate.
+     */
+    static X509Certificate readX509Certificate(byte[] cert) throws CertificateValidationException {
+        CertificateParseEvent event = FlightRecorderEvents.beginCertificateParse();
+        X509Certificate certificate = null;
+        try {
+            if (cert.length > 0 && cert[0] == DER_SEQUENCE) {
+                certificate = generateCertificate(cert, 0, cert.length);
+                return certificate;
             }
+            int start = indexOf(cert, PEM_BEGIN_CERT, 0);
+            start = start < 0 ? 0 : start + PEM_BEGIN_CERT.length;
+            int end = indexOf(cert, PEM_END_CERT, start);
+            end = end < 0 ? cert.length : end;
+            certificate = generateCertificate(decodeBase64(ByteBuffer.wrap(cert, start, end - start)));
+            return certificate;
+        } catch (Exception e) {
+            throw new CertificateValidationException("Failed to read certificate", e);
+        } finally {
+            if (event != null) {
+                event.commit(certificate, cert == null ? 0 : cert.length);
+            }
+        }
+    }
 
-            StringReader certPem = new StringReader(cert);
-            PemReader pemReader = new PemReader(certPem);
-            PemObject pemObject = pemReader.readPemObject();
-            ByteArrayInputStream bIn = new ByteArrayInputStream(pemObject.getContent());
-            CertificateFactory instance = CertificateFactory.getInstance("X.509");
-            return (X509Certificate) instance.generateCertificate(bIn);
+    /**
+     * Read X509 DER encoded certificate from the remaining bytes of a buffer, without changing its position.  Heap
+     * buffers are parsed in place, and direct buffers are streamed.
+     */
+    static X509Certificate readX509Certificate(ByteBuffer cert) throws CertificateValidationException {
+        CertificateParseEvent event = FlightRecorderEvents.beginCertificateParse();
+        X509Certificate certificate = null;
+        try {
+            certificate = generateCertificate(cert);
+            return certificate;
         } catch (Exception e) {
             throw new CertificateValidationException("Failed to read certificate", e);
+        } finally {
+            if (event != null) {
+                event.commit(certificate, cert == null ? 0 : cert.remaining());
+            }
+        }
+    }
+
+    /**
+     * Read the certificates of a JWS x5c header: base64 (not base64url) encoded DER certificates, without PEM framing.
+     * The first certificate is the one containing the key, and each following certificate must certify the one
+     * preceding it.
+     *
+     * @return the certificates, in the order of the header
+     */
+    static List<X509Certificate> readX5c(List<String> x5c) throws CertificateValidationException {
+        if (x5c == null || x5c.isEmpty()) {
+            throw new CertificateValidationException("Empty x5c certificate chain");
+        }
+        List<X509Certificate> certificates = new ArrayList<>(x5c.size());
+        for (String cert : x5c) {
+            certificates.add(readX509Certificate(cert));
+        }
+        for (int i = 1; i < certificates.size(); i++) {
+            X509Certificate certified = certificates.get(i - 1);
+            X509Certificate issuer = certificates.get(i);
+            try {
+                if (!certified.getIssuerX500Principal().equals(issuer.getSubjectX500Principal())) {
+                    throw new CertificateValidationException("x5c certificate " + i + " is not the issuer of the certificate preceding it");
+                }
+                certified.verify(issuer.getPublicKey());
+            } catch (CertificateValidationException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CertificateValidationException("x5c certificate " + (i - 1) + " is not signed by the certificate following it", e);
+            }
+        }
+        return certificates;
+    }
+
+    private static X509Certificate generateCertificate(byte[] der, int offset, int length) throws GeneralSecurityException {
+        return generateCertificate(new ByteArrayInputStream(der, offset, length));
+    }
+
+    /**
+     * Parses the remaining bytes of a buffer, without changing its position.  Heap buffers are parsed in place, and
+     * direct buffers are streamed.
+     */
+    private static X509Certificate generateCertificate(ByteBuffer der) throws GeneralSecurityException {
+        if (der.hasArray()) {
+            return generateCertificate(der.array(), der.arrayOffset() + der.position(), der.remaining());
+        }
+        return generateCertificate(new ByteBufferInputStream(der.duplicate()));
+    }
+
+    private static X509Certificate generateCertificate(InputStream der) throws GeneralSecurityException {
+        return CERTIFICATE_FACTORIES.use(factory -> (X509Certificate) factory.generateCertificate(der));
+    }
+
+    /**
+     * Creates a certification path of certificates, starting with the target certificate.
+     */
+    static CertPath certPath(List<X509Certificate> certificates) throws GeneralSecurityException {
+        return CERTIFICATE_FACTORIES.use(factory -> factory.generateCertPath(certificates));
+    }
+
+    /**
+     * Decodes base64 characters, ignoring line breaks and other characters outside the base64 alphabet.
+     */
+    private static ByteBuffer decodeBase64(ByteBuffer base64) {
+        return Base64.getMimeDecoder().decode(base64);
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
         }
+        return -1;
+    }
+
+    /**
+     * Input stream reading the remaining bytes of a buffer.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
     }
 
     /**
@@ -49,4 +236,104 @@ class X509CertificateUtils {
         return String.format("%s%n%s%n%s", BEGIN_CERT, Base64.getEncoder().encodeToString(cert.getEncoded()), END_CERT);
     }
 
+    /**
+     * Lists the URLs of the CRL distribution points of a certificate.  Returns an empty list if the certificate has no
+     * CRL distribution points extension.
+     *
+     * @throws FailedValidationException if the extension is present but cannot be read, so that revocation checks
+     *                                   fail rather than being skipped
+     */
+    static List<String> crlDistributionPoints(X509Certificate certificate) throws FailedValidationException {
+        byte[] extensionValue = certificate.getExtensionValue(Extension.cRLDistributionPoints.getId());
+        if (extensionValue == null) {
+            return Collections.emptyList();
+        }
+        try {
+            List<String> urls = new ArrayList<>();
+            CRLDistPoint crlDistPoint = CRLDistPoint.getInstance(ASN1OctetString.getInstance(extensionValue).getOctets());
+            for (DistributionPoint distributionPoint : crlDistPoint.getDistributionPoints()) {
+                DistributionPointName name = distributionPoint.getDistributionPoint();
+                if (name == null || name.getType() != DistributionPointName.FULL_NAME) {
+                    continue;
+                }
+                for (GeneralName generalName : GeneralNames.getInstance(name.getName()).getNames()) {
+                    if (generalName.getTagNo() == GeneralName.uniformResourceIdentifier) {
+                        urls.add(generalName.getName().toString());
+                    }
+                }
+            }
+            return urls;
+        } catch (RuntimeException e) {
+            throw new FailedValidationException("Unreadable CRL distribution points extension.", e);
+        }
+    }
+
+    /**
+     * Lists the URLs of the OCSP responders in the authority information access extension of a certificate.  Returns
+     * an empty list if the certificate has no or an unreadable authority information access extension.
+     */
+    static List<String> ocspUrls(X509Certificate certificate) {
+        byte[] extensionValue = certificate.getExtensionValue(Extension.authorityInfoAccess.getId());
+        if (extensionValue == null) {
+            return Collections.emptyList();
+        }
+        try {
+            List<String> urls = new ArrayList<>();
+            AuthorityInformationAccess authorityInformationAccess = AuthorityInformationAccess.getInstance(ASN1OctetString.getInstance(extensionValue).getOctets());
+            for (AccessDescription accessDescription : authorityInformationAccess.getAccessDescriptions()) {
+                GeneralName location = accessDescription.getAccessLocation();
+                if (AccessDescription.id_ad_ocsp.equals(accessDescription.getAccessMethod()) && location.getTagNo() == GeneralName.uniformResourceIdentifier) {
+                    urls.add(location.getName().toString());
+                }
+            }
+            return urls;
+        } catch (RuntimeException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Reads the subject key identifier of a certificate.
+     *
+     * @return key identifier, or null if the extension is missing or unreadable
+     */
+    static byte[] subjectKeyIdentifier(X509Certificate certificate) {
+        byte[] extensionValue = certificate.getExtensionValue(Extension.subjectKeyIdentifier.getId());
+        if (extensionValue == null) {
+            return null;
+        }
+        try {
+            return SubjectKeyIdentifier.getInstance(ASN1OctetString.getInstance(extensionValue).getOctets()).getKeyIdentifier();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the name constraints of a CA certificate.
+     *
+     * @return DER encoded name constraints, or null if the certificate has no name constraints extension
+     */
+    static byte[] nameConstraints(X509Certificate certificate) {
+        byte[] extensionValue = certificate.getExtensionValue(Extension.nameConstraints.getId());
+        return extensionValue == null ? null : ASN1OctetString.getInstance(extensionValue).getOctets();
+    }
+
+    /**
+     * Reads the key identifier of the authority key identifier of a certificate.
+     *
+     * @return key identifier, or null if the extension or its key identifier is missing or unreadable
+     */
+    static byte[] authorityKeyIdentifier(X509Certificate certificate) {
+        byte[] extensionValue = certificate.getExtensionValue(Extension.authorityKeyIdentifier.getId());
+        if (extensionValue == null) {
+            return null;
+        }
+        try {
+            return AuthorityKeyIdentifier.getInstance(ASN1OctetString.getInstance(extensionValue).getOctets()).getKeyIdentifier();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
 }
@@ -0,0 +1,79 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.util.SimpleCrlCache;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("When sharing refreshing CRL caches")
+public class CrlCacheRegistryTest {
+
+    @DisplayName("then the cache is started by the first reference and stopped by the last release")
+    @Test
+    void testReferenceCounting() {
+        RefreshingCrlCache crlCache = new RefreshingCrlCache(new SimpleCrlCache());
+        Runnable first = CrlCacheRegistry.acquire(crlCache, null, HttpCrlFetcher.DEFAULT_TIMEOUT, HttpCrlFetcher.DEFAULT_MAXIMUM_SIZE);
+        Runnable second = CrlCacheRegistry.acquire(crlCache, null, HttpCrlFetcher.DEFAULT_TIMEOUT, HttpCrlFetcher.DEFAULT_MAXIMUM_SIZE);
+        assertAll(
+                () -> assertTrue(crlCache.isStarted()),
+                () -> assertEquals(2, CrlCacheRegistry.references(crlCache))
+        );
+        first.run();
+        first.run();
+        assertAll(
+                () -> assertTrue(crlCache.isStarted()),
+                () -> assertEquals(1, CrlCacheRegistry.references(crlCache))
+        );
+        second.run();
+        assertAll(
+                () -> assertFalse(crlCache.isStarted()),
+                () -> assertEquals(0, CrlCacheRegistry.references(crlCache))
+        );
+    }
+
+    @DisplayName("then a stopped cache keeps its CRLs and can be started again")
+    @Test
+    void testRestart() throws Exception {
+        RefreshingCrlCache crlCache = new RefreshingCrlCache(new SimpleCrlCache());
+        crlCache.set("http://crl.example.com/a.crl", new TestData().crl(LocalDateTime.now().plusHours(1)));
+        CrlCacheRegistry.acquire(crlCache, null, HttpCrlFetcher.DEFAULT_TIMEOUT, HttpCrlFetcher.DEFAULT_MAXIMUM_SIZE).run();
+        Runnable release = CrlCacheRegistry.acquire(crlCache, null, HttpCrlFetcher.DEFAULT_TIMEOUT, HttpCrlFetcher.DEFAULT_MAXIMUM_SIZE);
+        try {
+            assertAll(
+                    () -> assertTrue(crlCache.isStarted()),
+                    () -> assertNotNull(crlCache.get("http://crl.example.com/a.crl"))
+            );
+        } finally {
+            release.run();
+        }
+    }
+
+    @DisplayName("then validators with another HTTP client or timeout get their own shared cache, and cannot use a cache in use")
+    @Test
+    void testHttpSettings() {
+        HttpClient httpClient = HttpClient.newHttpClient();
+        RefreshingCrlCache custom = CrlCacheRegistry.shared(httpClient, HttpCrlFetcher.DEFAULT_TIMEOUT, HttpCrlFetcher.DEFAULT_MAXIMUM_SIZE);
+        RefreshingCrlCache crlCache = new RefreshingCrlCache(new SimpleCrlCache());
+        Runnable release = CrlCacheRegistry.acquire(crlCache, httpClient, Duration.ofSeconds(5), HttpCrlFetcher.DEFAULT_MAXIMUM_SIZE);
+        try {
+            assertAll(
+                    () -> assertSame(CrlCacheRegistry.shared(), CrlCacheRegistry.shared(null, HttpCrlFetcher.DEFAULT_TIMEOUT, HttpCrlFetcher.DEFAULT_MAXIMUM_SIZE)),
+                    () -> assertSame(custom, CrlCacheRegistry.shared(httpClient, HttpCrlFetcher.DEFAULT_TIMEOUT, HttpCrlFetcher.DEFAULT_MAXIMUM_SIZE)),
+                    () -> assertNotSame(CrlCacheRegistry.shared(), custom),
+                    () -> assertNotSame(custom, CrlCacheRegistry.shared(httpClient, Duration.ofSeconds(5), HttpCrlFetcher.DEFAULT_MAXIMUM_SIZE)),
+                    () -> assertThrows(IllegalStateException.class, () -> CrlCacheRegistry.acquire(crlCache, null, Duration.ofSeconds(5), HttpCrlFetcher.DEFAULT_MAXIMUM_SIZE)),
+                    () -> assertThrows(IllegalStateException.class, () -> CrlCacheRegistry.acquire(crlCache, httpClient, HttpCrlFetcher.DEFAULT_TIMEOUT, HttpCrlFetcher.DEFAULT_MAXIMUM_SIZE)),
+                    () -> assertEquals(1, CrlCacheRegistry.references(crlCache))
+            );
+        } finally {
+            release.run();
+        }
+        CrlCacheRegistry.acquire(crlCache, null, Duration.ofSeconds(5), HttpCrlFetcher.DEFAULT_MAXIMUM_SIZE).run();
+    }
+
+}
@@ -0,0 +1,132 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.api.CrlFetcher;
+import no.idporten.validator.certificate.api.FailedValidationException;
+import no.idporten.validator.certificate.util.CrlUtils;
+import no.idporten.validator.certificate.util.SimpleCrlCache;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+@DisplayName("When using pre-compiled CRL snapshots")
+public class CrlSnapshotTest {
+
+    private static TestData testData;
+
+    @BeforeAll
+    public static void setUp() {
+        testData = new TestData();
+    }
+
+    @DisplayName("then a decoded snapshot has the issuer, updates and revoked serial numbers of the CRL")
+    @Test
+    void testEncodeAndDecode() throws Exception {
+        BigInteger small = BigInteger.valueOf(4711);
+        BigInteger large = BigInteger.TWO.pow(150).add(BigInteger.ONE);
+        X509CRL crl = testData.crl(large, small);
+        CrlSnapshot snapshot = CrlSnapshot.decode(CrlSnapshot.of(crl).encode());
+        assertAll(
+                () -> assertEquals(crl.getIssuerX500Principal(), snapshot.getIssuer()),
+                () -> assertEquals(crl.getThisUpdate().getTime(), snapshot.getThisUpdate()),
+                () -> assertEquals(crl.getNextUpdate().getTime(), snapshot.getNextUpdate()),
+                () -> assertTrue(snapshot.isCurrent(System.currentTimeMillis())),
+                () -> assertFalse(snapshot.isCurrent(crl.getNextUpdate().getTime())),
+                () -> assertEquals(2, snapshot.getIndex().size()),
+                () -> assertEquals(crl.getRevokedCertificate(large).getRevocationDate().getTime(), snapshot.getIndex().revocationDate(crl.getIssuerX500Principal(), large)),
+                () -> assertEquals(RevokedSerialIndex.NOT_REVOKED, snapshot.getIndex().revocationDate(crl.getIssuerX500Principal(), BigInteger.ONE))
+        );
+    }
+
+    @DisplayName("then malformed snapshots are rejected")
+    @Test
+    void testMalformedSnapshot() throws Exception {
+        byte[] encoded = CrlSnapshot.of(testData.crl(BigInteger.ONE)).encode();
+        assertAll(
+                () -> assertThrows(IOException.class, () -> CrlSnapshot.decode(testData.crl().getEncoded())),
+                () -> assertThrows(IOException.class, () -> CrlSnapshot.decode(Arrays.copyOf(encoded, encoded.length - 1))),
+                () -> assertNull(CrlSnapshot.loadFromClasspath("http://crl.example.com/unknown.crl", Environment.TEST))
+        );
+    }
+
+    @DisplayName("then the bundled CRLs from configured issuers are verified and compiled to snapshots")
+    @Test
+    void testCompileBundledCrls(@TempDir Path snapshotDirectory) throws Exception {
+        Path crlDirectory = Paths.get("src/main/resources/crl");
+        assertEquals(7, CrlSnapshot.compile(crlDirectory, snapshotDirectory));
+        String url = "http://crl.test4.buypassca.com/BPCl3CaG2STBS.crl";
+        String filename = X509CRLUtils.toFilename(url);
+        X509CRL crl;
+        try (InputStream in = Files.newInputStream(crlDirectory.resolve("TEST").resolve(filename))) {
+            crl = CrlUtils.load(in);
+        }
+        CrlSnapshot snapshot = CrlSnapshot.decode(Files.readAllBytes(snapshotDirectory.resolve("TEST").resolve(filename)));
+        X509CRLEntry revoked = crl.getRevokedCertificates().iterator().next();
+        assertAll(
+                () -> assertEquals(crl.getIssuerX500Principal(), snapshot.getIssuer()),
+                () -> assertEquals(crl.getRevokedCertificates().size(), snapshot.getIndex().size()),
+                () -> assertEquals(revoked.getRevocationDate().getTime(), snapshot.getIndex().revocationDate(crl.getIssuerX500Principal(), revoked.getSerialNumber())),
+                () -> assertFalse(Files.exists(snapshotDirectory.resolve("PROD").resolve(X509CRLUtils.toFilename("http://crl1.commfides.com/CommfidesEnterprise-SHA256.crl"))))
+        );
+    }
+
+    @DisplayName("then mirrored CRLs with the same bytes get one snapshot, shared by their distribution points")
+    @Test
+    void testMirroredCrlsShareSnapshot(@TempDir Path snapshotDirectory) throws Exception {
+        String http = "http://crl.test.commfides.com/G3/CommfidesLegalPersonCA-G3-TEST.crl";
+        String https = "https://crl.test.commfides.com/G3/CommfidesLegalPersonCA-G3-TEST.crl";
+        CrlSnapshot.compile(Paths.get("src/main/resources/crl"), snapshotDirectory);
+        Map<String, CrlSnapshot> snapshots = CrlSnapshot.loadFromClasspath(List.of(http, https), Environment.TEST);
+        assertAll(
+                () -> assertTrue(Files.exists(snapshotDirectory.resolve("TEST").resolve(X509CRLUtils.toFilename(http)))),
+                () -> assertFalse(Files.exists(snapshotDirectory.resolve("TEST").resolve(X509CRLUtils.toFilename(https)))),
+                () -> assertEquals(List.of(X509CRLUtils.toFilename(https) + "=" + X509CRLUtils.toFilename(http)),
+                        Files.readAllLines(snapshotDirectory.resolve("TEST").resolve(CrlSnapshot.MIRRORS))),
+                () -> assertNotNull(snapshots.get(http)),
+                () -> assertSame(snapshots.get(http), snapshots.get(https))
+        );
+    }
+
+    @DisplayName("then the revocation rule checks the snapshot without fetching the CRL until a newer CRL is cached")
+    @Test
+    void testRevocationIndexRule() throws Exception {
+        X509Certificate valid = testData.createCertificate();
+        X509Certificate revoked = testData.createCertificate();
+        String url = testData.distributionPointUrl();
+        CrlSnapshot snapshot = CrlSnapshot.of(testData.crl(LocalDateTime.now().minusHours(1), LocalDateTime.now().plusHours(1), revoked.getSerialNumber()));
+        SimpleCrlCache crlCache = new SimpleCrlCache();
+        CrlFetcher crlFetcher = mock(CrlFetcher.class);
+        when(crlFetcher.get(anyString())).thenAnswer(invocation -> crlCache.get(invocation.getArgument(0)));
+        ValidationListener listener = mock(ValidationListener.class);
+        RevocationIndexRule rule = new RevocationIndexRule(crlFetcher, crlCache, Map.of(url, snapshot), listener);
+        verify(listener).crlInUse(url, snapshot.getThisUpdate(), 1);
+        assertDoesNotThrow(() -> rule.validate(valid));
+        assertThrows(FailedValidationException.class, () -> rule.validate(revoked));
+        verify(crlFetcher, never()).get(anyString());
+        X509CRL newer = testData.crl(LocalDateTime.now().plusHours(1), valid.getSerialNumber());
+        crlCache.set(url, newer);
+        assertThrows(FailedValidationException.class, () -> rule.validate(valid));
+        assertDoesNotThrow(() -> rule.validate(revoked));
+        verify(listener).crlInUse(url, newer.getThisUpdate().getTime(), 1);
+        verifyNoMoreInteractions(listener);
+    }
+
+}
@@ -0,0 +1,81 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.util.CrlUtils;
+import no.idporten.validator.certificate.util.SimpleCrlCache;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.cert.X509CRL;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("When deduplicating CRLs")
+public class DeduplicatingCrlCacheTest {
+
+    private static final String HTTP = "http://crl.example.com/ca.crl";
+    private static final String HTTPS = "https://crl.example.com/ca.crl";
+
+    private static TestData testData;
+
+    @BeforeAll
+    public static void setUp() {
+        testData = new TestData();
+    }
+
+    @DisplayName("then identical CRLs for different distribution points share one instance")
+    @Test
+    void testIdenticalCrlsAreShared() throws Exception {
+        X509CRL crl = testData.crl(BigInteger.ONE);
+        DeduplicatingCrlCache crlCache = new DeduplicatingCrlCache(new SimpleCrlCache(), List.of());
+        crlCache.set(HTTP, crl);
+        crlCache.set(HTTPS, copy(crl));
+        crlCache.set("http://localhost:123/other.crl", testData.crl(BigInteger.TWO));
+        assertAll(
+                () -> assertSame(crl, crlCache.get(HTTPS)),
+                () -> assertEquals(Set.of(HTTPS), crlCache.mirrors(HTTP)),
+                () -> assertEquals(Set.of(HTTP), crlCache.mirrors(HTTPS))
+        );
+    }
+
+    @DisplayName("then mirrors sharing a pre-loaded CRL are found up front and refreshed together")
+    @Test
+    void testMirrorsAreRefreshedTogether() throws Exception {
+        X509CRL crl = testData.crl(LocalDateTime.now().minusDays(2), LocalDateTime.now().minusDays(1), BigInteger.ONE);
+        SimpleCrlCache delegate = new SimpleCrlCache();
+        delegate.set(HTTP, crl);
+        delegate.set(HTTPS, crl);
+        DeduplicatingCrlCache crlCache = new DeduplicatingCrlCache(delegate, List.of(HTTP, HTTPS));
+        X509CRL refreshed = testData.crl(BigInteger.ONE);
+        crlCache.set(HTTP, refreshed);
+        assertAll(
+                () -> assertEquals(Set.of(HTTPS), crlCache.mirrors(HTTP)),
+                () -> assertSame(refreshed, delegate.get(HTTPS)),
+                () -> assertSame(refreshed, crlCache.get(HTTPS))
+        );
+    }
+
+    @DisplayName("then an expired CRL is replaced by a current CRL from a mirror")
+    @Test
+    void testExpiredCrlIsReplacedFromMirror() throws Exception {
+        X509CRL expired = testData.crl(LocalDateTime.now().minusDays(2), LocalDateTime.now().minusDays(1), BigInteger.ONE);
+        SimpleCrlCache delegate = new SimpleCrlCache();
+        DeduplicatingCrlCache crlCache = new DeduplicatingCrlCache(delegate, List.of());
+        crlCache.set(HTTP, expired);
+        crlCache.set(HTTPS, copy(expired));
+        X509CRL current = testData.crl(BigInteger.ONE);
+        delegate.set(HTTP, current);
+        assertSame(current, crlCache.get(HTTP));
+        assertSame(current, crlCache.get(HTTPS));
+    }
+
+    private static X509CRL copy(X509CRL crl) throws Exception {
+        return CrlUtils.load(new ByteArrayInputStream(crl.getEncoded()));
+    }
+
+}
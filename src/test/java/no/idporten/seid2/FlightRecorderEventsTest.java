@@ -0,0 +1,84 @@
+package no.idporten.seid2;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import no.idporten.validator.certificate.util.SimpleCrlCache;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("When recording validations with the flight recorder")
+public class FlightRecorderEventsTest {
+
+    private final TestData testData = new TestData();
+
+    @TempDir
+    Path tempDir;
+
+    @DisplayName("then certificate parsing, rule evaluations and CRL loading are recorded")
+    @Test
+    void testEventsAreRecorded() throws Exception {
+        X509Certificate certificate = testData.createCertificate();
+        SimpleCrlCache crlCache = new SimpleCrlCache();
+        crlCache.set(testData.distributionPointUrl(), testData.crl());
+        SEID2CertificateValidator validator = new SEID2CertificateValidatorBuilder(Environment.TEST)
+                .withProperties(testData.props())
+                .withCrlCache(crlCache)
+                .build();
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable(CertificateParseEvent.class).withThreshold(Duration.ZERO);
+            recording.enable(RuleEvaluationEvent.class).withThreshold(Duration.ZERO);
+            recording.enable(CrlLoadEvent.class).withThreshold(Duration.ZERO);
+            recording.start();
+            assertTrue(validator.isValid(X509CertificateUtils.pemEncodedCert(certificate)));
+            X509CRLUtils.loadCRLFromClasspath("http://crl.test4.buypass.no/crl/BPClass3T4CA3.crl", Environment.TEST);
+            recording.stop();
+            Path file = tempDir.resolve("recording.jfr");
+            recording.dump(file);
+            events = RecordingFile.readAllEvents(file);
+        }
+        List<RecordedEvent> parsed = events(events, "no.idporten.seid2.CertificateParse");
+        List<RecordedEvent> rules = events(events, "no.idporten.seid2.RuleEvaluation");
+        List<RecordedEvent> crls = events(events, "no.idporten.seid2.CrlLoad");
+        String subject = certificate.getSubjectX500Principal().getName();
+        assertAll(
+                () -> assertEquals(1, parsed.size()),
+                () -> assertEquals(subject, parsed.get(0).getString("subject")),
+                () -> assertTrue(parsed.get(0).getLong("encodedSize") > 0),
+                () -> assertEquals(7, rules.size()),
+                () -> assertTrue(rules.stream().allMatch(event -> event.getBoolean("passed"))),
+                () -> assertTrue(rules.stream().anyMatch(event -> "RevocationIndexRule".equals(event.getString("rule")))),
+                () -> assertEquals(subject, rules.get(0).getString("subject")),
+                () -> assertEquals(1, crls.size()),
+                () -> assertEquals("classpath", crls.get(0).getString("source")),
+                () -> assertTrue(crls.get(0).getLong("encodedSize") > 0),
+                () -> assertNotNull(crls.get(0).getString("issuer"))
+        );
+    }
+
+    @DisplayName("then events are begun only when the flight recorder is available")
+    @Test
+    void testEventsAreBegunWhenAvailable() {
+        assertAll(
+                () -> assertTrue(FlightRecorderEvents.AVAILABLE),
+                () -> assertNotNull(FlightRecorderEvents.beginCertificateParse()),
+                () -> assertNotNull(FlightRecorderEvents.beginRuleEvaluation()),
+                () -> assertNotNull(FlightRecorderEvents.beginCrlLoad())
+        );
+    }
+
+    private static List<RecordedEvent> events(List<RecordedEvent> events, String name) {
+        return events.stream().filter(event -> name.equals(event.getEventType().getName())).collect(Collectors.toList());
+    }
+
+}
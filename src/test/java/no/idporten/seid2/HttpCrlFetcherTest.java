@@ -0,0 +1,252 @@
+package no.idporten.seid2;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import no.idporten.validator.certificate.util.SimpleCrlCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.cert.X509CRL;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("When downloading CRLs over HTTP")
+public class HttpCrlFetcherTest {
+
+    private static final String ETAG = "\"crl-1\"";
+    private static final String LAST_MODIFIED = "Wed, 01 Jan 2025 00:00:00 GMT";
+
+    private final TestData testData = new TestData();
+    private final List<HttpExchange> exchanges = new CopyOnWriteArrayList<>();
+    private final List<Integer> statuses = new CopyOnWriteArrayList<>();
+    private HttpServer server;
+    private byte[] encodedCrl;
+    private volatile long delayMillis;
+    private volatile boolean failing;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        encodedCrl = testData.crl(LocalDateTime.now().minusMinutes(1), BigInteger.TEN).getEncoded();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    private String url() {
+        return "http://" + server.getAddress().getAddress().getHostAddress() + ":" + server.getAddress().getPort() + "/ca.crl";
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        exchanges.add(exchange);
+        try {
+            Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failing) {
+            statuses.add(500);
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().add("ETag", ETAG);
+        exchange.getResponseHeaders().add("Last-Modified", LAST_MODIFIED);
+        if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            statuses.add(304);
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        byte[] body = encodedCrl;
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(encodedCrl);
+            }
+            body = compressed.toByteArray();
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+        }
+        statuses.add(200);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @DisplayName("then a compressed CRL is downloaded and an unchanged CRL costs a 304 response")
+    @Test
+    void testConditionalDownload() throws Exception {
+        SimpleCrlCache crlCache = new SimpleCrlCache();
+        HttpCrlFetcher crlFetcher = new HttpCrlFetcher(crlCache);
+        X509CRL crl = crlFetcher.get(url());
+        X509CRL again = crlFetcher.get(url());
+        assertAll(
+                () -> assertNotNull(crl),
+                () -> assertNotNull(crl.getRevokedCertificate(BigInteger.TEN)),
+                () -> assertSame(crl, again),
+                () -> assertSame(crl, crlCache.get(url())),
+                () -> assertEquals(List.of(200, 304), statuses),
+                () -> assertNull(exchanges.get(0).getRequestHeaders().getFirst("If-None-Match")),
+                () -> assertEquals(LAST_MODIFIED, exchanges.get(1).getRequestHeaders().getFirst("If-Modified-Since"))
+        );
+    }
+
+    @DisplayName("then an expired CRL the server reports as not modified is not requested again for every validation")
+    @Test
+    void testNotModifiedExpiredCrlBacksOff() {
+        HttpCrlFetcher crlFetcher = new HttpCrlFetcher(new SimpleCrlCache());
+        X509CRL crl = crlFetcher.get(url());
+        for (int i = 0; i < 10; i++) {
+            assertSame(crl, crlFetcher.get(url()));
+        }
+        assertEquals(List.of(200, 304), statuses);
+    }
+
+    @DisplayName("then a current cached CRL is not downloaded")
+    @Test
+    void testCurrentCrlIsNotDownloaded() throws Exception {
+        SimpleCrlCache crlCache = new SimpleCrlCache();
+        X509CRL current = testData.crl();
+        crlCache.set(url(), current);
+        assertSame(current, new HttpCrlFetcher(crlCache).get(url()));
+        assertTrue(exchanges.isEmpty());
+    }
+
+    @DisplayName("then a download exceeding the timeout fails")
+    @Test
+    void testTimeout() {
+        delayMillis = 2000;
+        HttpCrlFetcher crlFetcher = new HttpCrlFetcher(new SimpleCrlCache(), HttpCrlFetcher.defaultHttpClient(Duration.ofSeconds(1)), Duration.ofMillis(200));
+        long start = System.nanoTime();
+        assertNull(crlFetcher.get(url()));
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 1500);
+    }
+
+    @DisplayName("then a CRL larger than the maximum size after decompression is not accepted")
+    @Test
+    void testMaximumSize() {
+        HttpCrlFetcher tooSmall = new HttpCrlFetcher(new SimpleCrlCache(), HttpCrlFetcher.sharedHttpClient(), HttpCrlFetcher.DEFAULT_TIMEOUT, Duration.ZERO, ForkJoinPool.commonPool(), encodedCrl.length - 1);
+        HttpCrlFetcher largeEnough = new HttpCrlFetcher(new SimpleCrlCache(), HttpCrlFetcher.sharedHttpClient(), HttpCrlFetcher.DEFAULT_TIMEOUT, Duration.ZERO, ForkJoinPool.commonPool(), encodedCrl.length);
+        assertAll(
+                () -> assertNull(tooSmall.get(url())),
+                () -> assertNotNull(largeEnough.get(url())),
+                () -> assertTrue(exchanges.stream().allMatch(exchange -> "gzip".equals(exchange.getResponseHeaders().getFirst("Content-Encoding"))))
+        );
+    }
+
+    @DisplayName("then concurrent requests for the same CRL share one download")
+    @Test
+    void testConcurrentRequestsShareOneDownload() throws Exception {
+        delayMillis = 300;
+        HttpCrlFetcher crlFetcher = new HttpCrlFetcher(new SimpleCrlCache());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<X509CRL>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> crlFetcher.get(url())));
+            }
+            X509CRL first = results.get(0).get();
+            assertNotNull(first);
+            for (Future<X509CRL> result : results) {
+                assertSame(first, result.get());
+            }
+            assertEquals(1, exchanges.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @DisplayName("then an expired CRL within the grace period is served while it is downloaded in the background")
+    @Test
+    void testStaleWhileRevalidate() throws Exception {
+        delayMillis = 500;
+        SimpleCrlCache crlCache = new SimpleCrlCache();
+        X509CRL stale = testData.crl(LocalDateTime.now().minusMinutes(1));
+        crlCache.set(url(), stale);
+        HttpCrlFetcher crlFetcher = new HttpCrlFetcher(crlCache, HttpCrlFetcher.sharedHttpClient(), HttpCrlFetcher.DEFAULT_TIMEOUT, Duration.ofMinutes(10), ForkJoinPool.commonPool());
+        long start = System.nanoTime();
+        assertSame(stale, crlFetcher.get(url()));
+        assertSame(stale, crlFetcher.get(url()));
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 400);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (crlCache.get(url()) == stale && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertAll(
+                () -> assertNotSame(stale, crlCache.get(url())),
+                () -> assertEquals(1, exchanges.size())
+        );
+    }
+
+    @DisplayName("then an expired CRL past the grace period is not served")
+    @Test
+    void testStaleCrlPastGracePeriod() throws Exception {
+        SimpleCrlCache crlCache = new SimpleCrlCache();
+        X509CRL stale = testData.crl(LocalDateTime.now().minusHours(1));
+        crlCache.set(url(), stale);
+        HttpCrlFetcher crlFetcher = new HttpCrlFetcher(crlCache, HttpCrlFetcher.sharedHttpClient(), HttpCrlFetcher.DEFAULT_TIMEOUT, Duration.ofMinutes(10), ForkJoinPool.commonPool());
+        X509CRL crl = crlFetcher.get(url());
+        assertAll(
+                () -> assertNotSame(stale, crl),
+                () -> assertSame(crl, crlCache.get(url()))
+        );
+    }
+
+    @DisplayName("then a failed background download is not retried for every validation")
+    @Test
+    void testFailedBackgroundDownloadBacksOff() throws Exception {
+        failing = true;
+        delayMillis = 100;
+        SimpleCrlCache crlCache = new SimpleCrlCache();
+        X509CRL stale = testData.crl(LocalDateTime.now().minusMinutes(1));
+        crlCache.set(url(), stale);
+        HttpCrlFetcher crlFetcher = new HttpCrlFetcher(crlCache, HttpCrlFetcher.sharedHttpClient(), HttpCrlFetcher.DEFAULT_TIMEOUT, Duration.ofMinutes(10), ForkJoinPool.commonPool());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<X509CRL>> results = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                results.add(executor.submit(() -> crlFetcher.get(url())));
+            }
+            for (Future<X509CRL> result : results) {
+                assertSame(stale, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (statuses.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Thread.sleep(200);
+        for (int i = 0; i < 10; i++) {
+            assertSame(stale, crlFetcher.get(url()));
+        }
+        Thread.sleep(200);
+        assertEquals(List.of(500), statuses);
+    }
+
+}
@@ -0,0 +1,54 @@
+package no.idporten.seid2;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("When guarding against hostile certificate inputs")
+public class InputGuardTest {
+
+    @DisplayName("then inputs larger than the maximum size are rejected")
+    @Test
+    void testMaximumSize() {
+        InputGuard inputGuard = new InputGuard(10, 0);
+        assertAll(
+                () -> assertNull(inputGuard.check(10, 0)),
+                () -> assertNotNull(inputGuard.check(11, 0))
+        );
+    }
+
+    @DisplayName("then rejected inputs are remembered")
+    @Test
+    void testRejectedInputsAreRemembered() {
+        InputGuard inputGuard = new InputGuard(1000, 16);
+        long garbage = inputGuard.hash("garbage");
+        long other = inputGuard.hash("other garbage");
+        assertNull(inputGuard.check(7, garbage));
+        inputGuard.reject(garbage);
+        assertAll(
+                () -> assertNotNull(inputGuard.check(7, garbage)),
+                () -> assertNotNull(inputGuard.check(7, inputGuard.hash("garbage"))),
+                () -> assertNull(inputGuard.check(13, other))
+        );
+    }
+
+    @DisplayName("then the same raw input hashes the same as characters, bytes and byte buffers")
+    @Test
+    void testHashes() {
+        InputGuard inputGuard = new InputGuard(1000, 16);
+        byte[] bytes = "garbage".getBytes(StandardCharsets.US_ASCII);
+        assertAll(
+                () -> assertEquals(inputGuard.hash("garbage"), inputGuard.hash(bytes)),
+                () -> assertEquals(inputGuard.hash(bytes), inputGuard.hash(ByteBuffer.wrap(bytes))),
+                () -> assertNotEquals(inputGuard.hash(List.of("a", "b")), inputGuard.hash(List.of("b", "a"))),
+                () -> assertNotEquals(inputGuard.hash("garbage"), new InputGuard(1000, 16).hash("garbage")),
+                () -> assertEquals(0, new InputGuard(1000, 0).hash("garbage"))
+        );
+    }
+
+}
@@ -0,0 +1,55 @@
+package no.idporten.seid2;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("When publishing validation statistics over JMX")
+public class JmxValidationListenerTest {
+
+    @DisplayName("then statistics are collected per rule and distribution point")
+    @Test
+    void testStatisticsAreCollected() throws Exception {
+        JmxValidationListener listener = new JmxValidationListener();
+        listener.ruleCompleted("ExpirationRule", true, 2000);
+        listener.ruleCompleted("ExpirationRule", false, 3000);
+        listener.crlCacheHit("http://crl");
+        listener.crlCacheMiss("http://crl");
+        listener.crlRefreshed("http://crl", new TestData().crl(BigInteger.ONE), 5_000_000);
+        listener.crlInUse("http://crl", System.currentTimeMillis() - 60_000, 1);
+        assertAll(
+                () -> assertEquals(Map.of("ExpirationRule", 1L), listener.getRulePassCounts()),
+                () -> assertEquals(Map.of("ExpirationRule", 1L), listener.getRuleFailCounts()),
+                () -> assertEquals(Map.of("ExpirationRule", 5L), listener.getRuleTotalMicros()),
+                () -> assertEquals(Map.of("http://crl", 1L), listener.getCrlCacheHits()),
+                () -> assertEquals(Map.of("http://crl", 1L), listener.getCrlCacheMisses()),
+                () -> assertEquals(Map.of("http://crl", 1L), listener.getCrlSizes()),
+                () -> assertEquals(Map.of("http://crl", 5L), listener.getCrlLastRefreshMillis()),
+                () -> assertEquals(Map.of("http://crl", 60L), listener.getCrlAgeSeconds())
+        );
+    }
+
+    @DisplayName("then statistics are published as an MXBean")
+    @Test
+    void testRegister() throws Exception {
+        JmxValidationListener listener = new JmxValidationListener();
+        listener.ruleCompleted("ExpirationRule", true, 2000);
+        ObjectName objectName = listener.register("test");
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            TabularData passCounts = (TabularData) mBeanServer.getAttribute(objectName, "RulePassCounts");
+            assertEquals(1, passCounts.size());
+        } finally {
+            mBeanServer.unregisterMBean(objectName);
+        }
+    }
+
+}
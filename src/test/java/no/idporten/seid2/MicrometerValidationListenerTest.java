@@ -0,0 +1,40 @@
+package no.idporten.seid2;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("When publishing validation metrics to Micrometer")
+public class MicrometerValidationListenerTest {
+
+    @DisplayName("then rule timings, CRL cache lookups and CRL state are published")
+    @Test
+    void testMetricsArePublished() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        MicrometerValidationListener listener = new MicrometerValidationListener(registry);
+        TestData testData = new TestData();
+        listener.ruleCompleted("ExpirationRule", true, 1000);
+        listener.ruleCompleted("ExpirationRule", true, 3000);
+        listener.ruleCompleted("ExpirationRule", false, 2000);
+        listener.crlCacheHit("http://crl");
+        listener.crlCacheMiss("http://crl");
+        listener.crlRefreshed("http://crl", testData.crl(BigInteger.ONE, BigInteger.TWO), 5_000_000);
+        listener.crlInUse("http://crl", System.currentTimeMillis() - 60_000, 2);
+        assertAll(
+                () -> assertEquals(2, registry.get("seid2.validator.rule").tag("rule", "ExpirationRule").tag("result", "pass").timer().count()),
+                () -> assertEquals(4000, registry.get("seid2.validator.rule").tag("result", "pass").timer().totalTime(TimeUnit.NANOSECONDS)),
+                () -> assertEquals(1, registry.get("seid2.validator.rule").tag("result", "fail").timer().count()),
+                () -> assertEquals(1, registry.get("seid2.validator.crl.cache").tag("result", "hit").counter().count()),
+                () -> assertEquals(1, registry.get("seid2.validator.crl.cache").tag("result", "miss").counter().count()),
+                () -> assertEquals(1, registry.get("seid2.validator.crl.refresh").tag("distribution.point", "http://crl").timer().count()),
+                () -> assertEquals(2, registry.get("seid2.validator.crl.size").gauge().value()),
+                () -> assertTrue(registry.get("seid2.validator.crl.age").gauge().value() >= 60)
+        );
+    }
+
+}
@@ -0,0 +1,159 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.api.CertificateValidationException;
+import no.idporten.validator.certificate.api.FailedValidationException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("When checking revocation with OCSP")
+public class OcspRuleTest {
+
+    private static final String FALLBACK = "checked with CRLs";
+
+    private TestData testData;
+    private TrustStore trustStore;
+    private TestOcspResponder responder;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        testData = new TestData();
+        trustStore = new TrustStore(List.of(testData.rootCertificate()), List.of(testData.intermediateCertificate()));
+        responder = new TestOcspResponder(testData.intermediateCertificate(), testData.intermediatePrivateKey());
+    }
+
+    @AfterEach
+    void tearDown() {
+        responder.close();
+    }
+
+    private OcspRule ocspRule(boolean nonce) {
+        return new OcspRule(trustStore, certificate -> {
+            throw new CertificateValidationException(FALLBACK);
+        }, OcspRule.http(HttpCrlFetcher.sharedHttpClient(), Duration.ofSeconds(5)), nonce, Duration.ofHours(1), 100);
+    }
+
+    private static void assertFallback(OcspRule rule, X509Certificate certificate) {
+        assertEquals(FALLBACK, assertThrows(CertificateValidationException.class, () -> rule.validate(new ValidationContext(certificate))).getMessage());
+    }
+
+    @DisplayName("then a good answer is verified and cached until nextUpdate")
+    @Test
+    void testGoodAnswerIsCached() throws Exception {
+        OcspRule rule = ocspRule(true);
+        X509Certificate certificate = testData.createCertificateWithOcsp(responder.url());
+        rule.validate(new ValidationContext(certificate));
+        rule.validate(new ValidationContext(certificate));
+        assertAll(
+                () -> assertEquals(1, responder.requests()),
+                () -> assertTrue(responder.lastRequestHadNonce()),
+                () -> assertEquals(1, rule.cacheSize())
+        );
+    }
+
+    @DisplayName("then a revoked certificate is rejected")
+    @Test
+    void testRevokedCertificateIsRejected() throws Exception {
+        X509Certificate certificate = testData.createCertificateWithOcsp(responder.url());
+        responder.revoke(certificate.getSerialNumber());
+        FailedValidationException e = assertThrows(FailedValidationException.class, () -> ocspRule(true).validate(new ValidationContext(certificate)));
+        assertTrue(e.getMessage().startsWith("Certificate is revoked since"));
+    }
+
+    @DisplayName("then certificates without OCSP responders or answers are checked with the fallback")
+    @Test
+    void testFallback() throws Exception {
+        OcspRule rule = ocspRule(true);
+        X509Certificate certificate = testData.createCertificateWithOcsp(responder.url());
+        assertFallback(rule, testData.createCertificate());
+        responder.setHttpStatus(500);
+        assertFallback(rule, certificate);
+        assertEquals(0, rule.cacheSize());
+    }
+
+    @DisplayName("then a failed responder is not asked again during the back-off period")
+    @Test
+    void testFailedResponderBacksOff() throws Exception {
+        OcspRule rule = ocspRule(true);
+        responder.setHttpStatus(500);
+        assertFallback(rule, testData.createCertificateWithOcsp(responder.url()));
+        assertFallback(rule, testData.createCertificateWithOcsp(responder.url()));
+        assertEquals(1, responder.requests());
+    }
+
+    @DisplayName("then responses with another nonce are rejected, and nonces can be switched off")
+    @Test
+    void testNonce() throws Exception {
+        X509Certificate certificate = testData.createCertificateWithOcsp(responder.url());
+        responder.setNonceOverride(new byte[]{1, 2, 3});
+        assertFallback(ocspRule(true), certificate);
+        ocspRule(false).validate(new ValidationContext(certificate));
+        assertFalse(responder.lastRequestHadNonce());
+    }
+
+    @DisplayName("then responses without the nonce of the request are rejected")
+    @Test
+    void testMissingNonce() throws Exception {
+        X509Certificate certificate = testData.createCertificateWithOcsp(responder.url());
+        responder.setNonceOmitted(true);
+        assertFallback(ocspRule(true), certificate);
+        ocspRule(false).validate(new ValidationContext(certificate));
+    }
+
+    @DisplayName("then answers without nextUpdate are cached for the maximum age and rejected when older")
+    @Test
+    void testAnswerWithoutNextUpdate() throws Exception {
+        OcspRule rule = ocspRule(true);
+        X509Certificate certificate = testData.createCertificateWithOcsp(responder.url());
+        responder.setUpdates(Duration.ZERO, null);
+        rule.validate(new ValidationContext(certificate));
+        rule.validate(new ValidationContext(certificate));
+        assertAll(
+                () -> assertEquals(1, responder.requests()),
+                () -> assertEquals(1, rule.cacheSize()),
+                () -> assertTrue(rule.nextUpdate(new ValidationContext(certificate)) <= System.currentTimeMillis() + Duration.ofHours(1).toMillis())
+        );
+        responder.setUpdates(Duration.ofHours(2), null);
+        assertFallback(rule, testData.createCertificateWithOcsp(responder.url()));
+    }
+
+    @DisplayName("then responses not signed by the issuer are rejected")
+    @Test
+    void testResponseSignedByAnotherKeyIsRejected() throws Exception {
+        try (TestOcspResponder impostor = new TestOcspResponder(testData.intermediateCertificate(), new TestData().intermediatePrivateKey())) {
+            assertFallback(ocspRule(true), testData.createCertificateWithOcsp(impostor.url()));
+        }
+    }
+
+    @DisplayName("then a stapled response is used without asking the responder")
+    @Test
+    void testStapledResponse() throws Exception {
+        OcspRule rule = ocspRule(true);
+        X509Certificate certificate = testData.createCertificateWithOcsp(responder.url());
+        assertTrue(rule.accept(new ValidationContext(certificate), responder.stapledResponse(certificate)));
+        assertFalse(rule.accept(new ValidationContext(certificate), new byte[]{1, 2, 3}));
+        rule.validate(new ValidationContext(certificate));
+        assertEquals(0, responder.requests());
+    }
+
+    @DisplayName("then a good answer never replaces a cached revoked answer")
+    @Test
+    void testGoodAnswerDoesNotReplaceRevoked() throws Exception {
+        OcspRule rule = ocspRule(true);
+        X509Certificate certificate = testData.createCertificateWithOcsp(responder.url());
+        responder.revoke(certificate.getSerialNumber());
+        assertThrows(FailedValidationException.class, () -> rule.validate(new ValidationContext(certificate)));
+        responder.reinstate(certificate.getSerialNumber());
+        rule.accept(new ValidationContext(certificate), responder.stapledResponse(certificate));
+        assertThrows(FailedValidationException.class, () -> rule.validate(new ValidationContext(certificate)));
+        assertEquals(1, responder.requests());
+    }
+
+}
@@ -0,0 +1,75 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.util.SimpleCrlCache;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.X509CRL;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("When persisting CRLs")
+public class PersistentCrlCacheTest {
+
+    private static final String TEST_CRL = "http://crl.test4.buypass.no/crl/BPClass3T4CA3.crl";
+
+    private static TestData testData;
+
+    @BeforeAll
+    public static void setUp() {
+        testData = new TestData();
+    }
+
+    @DisplayName("then a CRL set in the cache is read back by a new cache")
+    @Test
+    void testCrlIsReadBack(@TempDir Path directory) throws Exception {
+        assertCrlIsReadBack(directory, false);
+    }
+
+    @DisplayName("then a CRL set in the cache is read back by a new cache using memory-mapped files")
+    @Test
+    void testCrlIsReadBackMemoryMapped(@TempDir Path directory) throws Exception {
+        assertCrlIsReadBack(directory, true);
+    }
+
+    private void assertCrlIsReadBack(Path directory, boolean memoryMapped) throws Exception {
+        X509CRL crl = testData.crl(BigInteger.TEN);
+        new PersistentCrlCache(new SimpleCrlCache(), directory, memoryMapped).set(testData.distributionPointUrl(), crl);
+        PersistentCrlCache restarted = new PersistentCrlCache(new SimpleCrlCache(), directory, memoryMapped);
+        assertAll(
+                () -> assertTrue(Files.isRegularFile(restarted.path(testData.distributionPointUrl()))),
+                () -> assertEquals(crl, restarted.get(testData.distributionPointUrl())),
+                () -> assertNull(restarted.get("http://localhost:123/unknown")),
+                () -> assertEquals(1, Files.list(directory).count())
+        );
+    }
+
+    @DisplayName("then a persisted CRL newer than the pre-loaded CRL is loaded at startup")
+    @Test
+    void testLoadPrefersPersistedCrl(@TempDir Path directory) throws Exception {
+        X509CRL crl = testData.crl(BigInteger.TEN);
+        new PersistentCrlCache(new SimpleCrlCache(), directory, false).set(TEST_CRL, crl);
+        SimpleCrlCache delegate = new SimpleCrlCache();
+        delegate.set(TEST_CRL, X509CRLUtils.loadCRLFromClasspath(TEST_CRL, Environment.TEST));
+        new PersistentCrlCache(delegate, directory, false).load(List.of(TEST_CRL), url -> X509CRLUtils.loadCRLFromClasspath(url, Environment.TEST));
+        assertEquals(crl, delegate.get(TEST_CRL));
+    }
+
+    @DisplayName("then the pre-loaded CRL on the classpath is used when no CRL is persisted")
+    @Test
+    void testLoadFallsBackToClasspath(@TempDir Path directory) {
+        SimpleCrlCache delegate = new SimpleCrlCache();
+        new PersistentCrlCache(delegate, directory, false).load(List.of(TEST_CRL, testData.distributionPointUrl()), url -> X509CRLUtils.loadCRLFromClasspath(url, Environment.TEST));
+        assertAll(
+                () -> assertEquals(X509CRLUtils.loadCRLFromClasspath(TEST_CRL, Environment.TEST), delegate.get(TEST_CRL)),
+                () -> assertNull(delegate.get(testData.distributionPointUrl()))
+        );
+    }
+
+}
@@ -0,0 +1,230 @@
+package no.idporten.seid2;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import no.idporten.validator.certificate.util.CrlUtils;
+import no.idporten.validator.certificate.util.SimpleCrlCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.security.cert.X509CRL;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("When refreshing CRLs on a schedule")
+public class RefreshingCrlCacheTest {
+
+    private final TestData testData = new TestData();
+    private final Map<String, AtomicInteger> requestsByPath = new ConcurrentHashMap<>();
+    private final AtomicInteger concurrentRequests = new AtomicInteger();
+    private final AtomicInteger maximumConcurrentRequests = new AtomicInteger();
+    private HttpServer server;
+    private byte[] encodedCrl;
+    private volatile int status = 200;
+    private volatile String failingPath;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        encodedCrl = testData.crl(LocalDateTime.now().plusDays(1)).getEncoded();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    private String url(String path) {
+        return "http://" + server.getAddress().getAddress().getHostAddress() + ":" + server.getAddress().getPort() + path;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requestsByPath.computeIfAbsent(exchange.getRequestURI().getPath(), path -> new AtomicInteger()).incrementAndGet();
+        maximumConcurrentRequests.accumulateAndGet(concurrentRequests.incrementAndGet(), Math::max);
+        try {
+            Thread.sleep(100);
+            int status = exchange.getRequestURI().getPath().equals(failingPath) ? 500 : this.status;
+            exchange.sendResponseHeaders(status, status == 200 ? encodedCrl.length : -1);
+            if (status == 200) {
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(encodedCrl);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            concurrentRequests.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    private int requests(String path) {
+        return requestsByPath.getOrDefault(path, new AtomicInteger()).get();
+    }
+
+    @DisplayName("then refreshes are planned halfway to nextUpdate within the interval limits, and backoff doubles")
+    @Test
+    void testSchedule() throws Exception {
+        try (RefreshingCrlCache crlCache = new RefreshingCrlCache(new SimpleCrlCache(), Duration.ofMinutes(5), Duration.ofHours(1), 2)) {
+            X509CRL daily = testData.crl(LocalDateTime.now().plusDays(1));
+            X509CRL expiring = testData.crl(LocalDateTime.now().plusMinutes(20));
+            X509CRL expired = testData.crl(LocalDateTime.now().minusMinutes(1));
+            assertAll(
+                    () -> assertEquals(Duration.ofHours(1).toMillis(), crlCache.delayFor(daily)),
+                    () -> assertEquals(Duration.ofMinutes(10).toMillis(), crlCache.delayFor(expiring), 1000),
+                    () -> assertEquals(Duration.ofMinutes(5).toMillis(), crlCache.delayFor(expired)),
+                    () -> assertEquals(Duration.ofMinutes(5).toMillis(), crlCache.backoff(1)),
+                    () -> assertEquals(Duration.ofMinutes(20).toMillis(), crlCache.backoff(3)),
+                    () -> assertEquals(Duration.ofHours(1).toMillis(), crlCache.backoff(30))
+            );
+        }
+    }
+
+    @DisplayName("then distribution points are refreshed with a limit on concurrent downloads per host")
+    @Test
+    void testRefreshWithHostLimit() throws Exception {
+        List<String> paths = List.of("/a.crl", "/b.crl", "/c.crl");
+        try (RefreshingCrlCache crlCache = new RefreshingCrlCache(new SimpleCrlCache(), Duration.ofMillis(50), Duration.ofMillis(50), 1)) {
+            Map<String, X509CRL> expired = new ConcurrentHashMap<>();
+            for (String path : paths) {
+                X509CRL crl = testData.crl(LocalDateTime.now().minusDays(1), LocalDateTime.now().minusMinutes(1), BigInteger.valueOf(expired.size() + 1));
+                expired.put(path, crl);
+                crlCache.set(url(path), crl);
+            }
+            crlCache.start();
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (paths.stream().anyMatch(path -> crlCache.get(url(path)) == expired.get(path)) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertAll(
+                    () -> paths.forEach(path -> assertNotSame(expired.get(path), crlCache.get(url(path)))),
+                    () -> assertEquals(1, maximumConcurrentRequests.get())
+            );
+        }
+    }
+
+    @DisplayName("then distribution points serving identical CRLs are refreshed once per mirror group")
+    @Test
+    void testMirrorGroupIsRefreshedOnce() throws Exception {
+        String first = url("/a.crl");
+        String mirror = url("/b.crl");
+        try (RefreshingCrlCache crlCache = new RefreshingCrlCache(new SimpleCrlCache(), Duration.ofMillis(50), Duration.ofHours(1), 2)) {
+            X509CRL expired = testData.crl(LocalDateTime.now().minusDays(1), LocalDateTime.now().minusMinutes(1), BigInteger.ONE);
+            crlCache.set(first, expired);
+            crlCache.set(mirror, CrlUtils.load(new ByteArrayInputStream(expired.getEncoded())));
+            crlCache.start();
+            awaitRefresh(crlCache, expired, first, mirror);
+            assertAll(
+                    () -> assertEquals(Set.of(first, mirror), crlCache.mirrorGroup(mirror)),
+                    () -> assertArrayEquals(encodedCrl, crlCache.get(mirror).getEncoded()),
+                    () -> assertSame(crlCache.get(first), crlCache.get(mirror)),
+                    () -> assertEquals(1, requests("/a.crl")),
+                    () -> assertEquals(0, requests("/b.crl"))
+            );
+        }
+    }
+
+    @DisplayName("then a mirror group is refreshed from a mirror when its first distribution point fails")
+    @Test
+    void testMirrorGroupFailsOver() throws Exception {
+        String first = url("/a.crl");
+        String mirror = url("/b.crl");
+        failingPath = "/a.crl";
+        try (RefreshingCrlCache crlCache = new RefreshingCrlCache(new SimpleCrlCache(), Duration.ofMillis(50), Duration.ofHours(1), 2)) {
+            X509CRL expired = testData.crl(LocalDateTime.now().minusDays(1), LocalDateTime.now().minusMinutes(1), BigInteger.ONE);
+            crlCache.set(first, expired);
+            crlCache.set(mirror, expired);
+            crlCache.start();
+            awaitRefresh(crlCache, expired, first, mirror);
+            assertAll(
+                    () -> assertArrayEquals(encodedCrl, crlCache.get(first).getEncoded()),
+                    () -> assertSame(crlCache.get(first), crlCache.get(mirror)),
+                    () -> assertEquals(1, requests("/b.crl"))
+            );
+        }
+    }
+
+    private static void awaitRefresh(RefreshingCrlCache crlCache, X509CRL expired, String... urls) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (Arrays.stream(urls).anyMatch(url -> crlCache.get(url) == expired) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+    }
+
+    @DisplayName("then failed refreshes are retried and a closed cache stops refreshing")
+    @Test
+    void testRetryAndClose() throws Exception {
+        status = 500;
+        RefreshingCrlCache crlCache = new RefreshingCrlCache(new SimpleCrlCache(), Duration.ofMillis(20), Duration.ofMillis(40), 2);
+        crlCache.set(url("/a.crl"), testData.crl(LocalDateTime.now().minusMinutes(1)));
+        crlCache.start();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (requests("/a.crl") < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(requests("/a.crl") >= 3);
+        crlCache.close();
+        Thread.sleep(300);
+        int requests = requests("/a.crl");
+        Thread.sleep(300);
+        assertAll(
+                () -> assertFalse(crlCache.isStarted()),
+                () -> assertEquals(requests, requests("/a.crl"))
+        );
+    }
+
+    @DisplayName("then refreshed CRLs are set through the wrapping caches, and read by caches that only read through it")
+    @Test
+    void testRefreshThroughWrappers(@TempDir Path directory) throws Exception {
+        String url = url("/a.crl");
+        try (RefreshingCrlCache crlCache = new RefreshingCrlCache(new SimpleCrlCache(), Duration.ofMillis(50), Duration.ofMillis(50), 1)) {
+            PersistentCrlCache persistentCrlCache = new PersistentCrlCache(crlCache, directory, false);
+            DeduplicatingCrlCache deduplicatingCrlCache = new DeduplicatingCrlCache(persistentCrlCache, List.of(url));
+            Runnable unregister = crlCache.refreshThrough(persistentCrlCache);
+            X509CRL expired = testData.crl(LocalDateTime.now().minusDays(2), LocalDateTime.now().minusMinutes(1));
+            persistentCrlCache.set(url, expired);
+            assertSame(expired, deduplicatingCrlCache.get(url));
+            crlCache.start();
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (!isPersisted(directory, url) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            crlCache.close();
+            unregister.run();
+            X509CRL persisted = new PersistentCrlCache(new SimpleCrlCache(), directory, false).get(url);
+            assertAll(
+                    () -> assertArrayEquals(encodedCrl, crlCache.get(url).getEncoded()),
+                    () -> assertArrayEquals(encodedCrl, persisted.getEncoded()),
+                    () -> assertSame(crlCache.get(url), deduplicatingCrlCache.get(url))
+            );
+        }
+    }
+
+    private boolean isPersisted(Path directory, String url) throws Exception {
+        X509CRL persisted = new PersistentCrlCache(new SimpleCrlCache(), directory, false).get(url);
+        return persisted != null && Arrays.equals(encodedCrl, persisted.getEncoded());
+    }
+
+}
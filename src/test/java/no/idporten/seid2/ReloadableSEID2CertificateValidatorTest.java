@@ -0,0 +1,86 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.util.SimpleCrlCache;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("When reloading validator configuration")
+public class ReloadableSEID2CertificateValidatorTest {
+
+    private final TestData testData = new TestData();
+
+    @DisplayName("then the new configuration is swapped in and the old validator keeps its configuration")
+    @Test
+    void testReloadSwapsValidator() throws Exception {
+        X509Certificate certificate = testData.createCertificate();
+        SimpleCrlCache crlCache = new SimpleCrlCache();
+        X509CRL crl = testData.crl();
+        crlCache.set(testData.distributionPointUrl(), crl);
+        ReloadableSEID2CertificateValidator reloadable = new SEID2CertificateValidatorBuilder(Environment.TEST)
+                .withProperties(testData.props())
+                .withCrlCache(crlCache)
+                .buildReloadable();
+        SEID2CertificateValidator original = reloadable.current();
+        assertTrue(reloadable.isValid(certificate));
+        CertificateAuthoritiesProperties props = testData.props();
+        props.setPolicies(Set.of("2.16.578.1.1.1.1.999"));
+        SEID2CertificateValidator reloaded = reloadable.reload(props).toCompletableFuture().join();
+        assertAll(
+                () -> assertSame(reloaded, reloadable.current()),
+                () -> assertNotSame(original, reloaded),
+                () -> assertEquals("PolicyRule", reloadable.validateToResult(certificate).getFailedRule()),
+                () -> assertTrue(original.isValid(certificate)),
+                () -> assertSame(crl, crlCache.get(testData.distributionPointUrl()))
+        );
+    }
+
+    @DisplayName("then CRLs for distribution points added by a reload are pre-loaded before the swap")
+    @Test
+    void testReloadPreloadsNewDistributionPoints() throws Exception {
+        X509Certificate certificate = testData.createCertificate();
+        SimpleCrlCache crlCache = new SimpleCrlCache();
+        crlCache.set(testData.distributionPointUrl(), testData.crl());
+        ReloadableSEID2CertificateValidator reloadable = new SEID2CertificateValidatorBuilder(Environment.TEST)
+                .withProperties(testData.props())
+                .withCrlCache(crlCache)
+                .withLazyPreloadedCrlCache()
+                .buildReloadable();
+        String added = "http://crl.test4.buypass.no/crl/BPClass3T4CA3.crl";
+        assertNull(crlCache.get(added));
+        CertificateAuthoritiesProperties props = testData.props();
+        Set<String> distributionPoints = new HashSet<>(props.getCrlDistributionPoints());
+        distributionPoints.add(added);
+        props.setCrlDistributionPoints(distributionPoints);
+        reloadable.reload(props).toCompletableFuture().join();
+        assertAll(
+                () -> assertNotNull(crlCache.get(added)),
+                () -> assertTrue(reloadable.validateAll(List.of(certificate)).get(0).isValid()),
+                () -> assertTrue(reloadable.validateAllEncoded(List.of(X509CertificateUtils.pemEncodedCert(certificate))).get(0).isValid()),
+                () -> assertTrue(reloadable.validateAsync(certificate).toCompletableFuture().join().isValid())
+        );
+    }
+
+    @DisplayName("then a failed reload keeps the current validator")
+    @Test
+    void testFailedReloadKeepsValidator() throws Exception {
+        ReloadableSEID2CertificateValidator reloadable = new SEID2CertificateValidatorBuilder(Environment.TEST)
+                .withProperties(testData.props())
+                .withCrlCache(new SimpleCrlCache())
+                .buildReloadable();
+        SEID2CertificateValidator original = reloadable.current();
+        CertificateAuthoritiesProperties props = testData.props();
+        props.setRootCertificates(Set.of("not a certificate"));
+        assertThrows(CompletionException.class, () -> reloadable.reload(props).toCompletableFuture().join());
+        assertSame(original, reloadable.current());
+    }
+
+}
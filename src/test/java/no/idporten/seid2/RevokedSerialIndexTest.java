@@ -0,0 +1,115 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.api.FailedValidationException;
+import no.idporten.validator.certificate.util.CachingCrlFetcher;
+import no.idporten.validator.certificate.util.SimpleCrlCache;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import javax.security.auth.x500.X500Principal;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("When indexing revoked serial numbers")
+public class RevokedSerialIndexTest {
+
+    private static TestData testData;
+
+    @BeforeAll
+    public static void setUp() {
+        testData = new TestData();
+    }
+
+    @DisplayName("then small and large revoked serial numbers are found for the CRL issuer")
+    @Test
+    void testRevokedSerialNumbersAreFound() throws Exception {
+        BigInteger small = BigInteger.valueOf(4711);
+        BigInteger large = BigInteger.TWO.pow(150).add(BigInteger.ONE);
+        X509CRL crl = testData.crl(large, small, BigInteger.valueOf(42));
+        RevokedSerialIndex index = RevokedSerialIndex.of(crl);
+        assertAll(
+                () -> assertEquals(3, index.size()),
+                () -> assertEquals(crl.getRevokedCertificate(small).getRevocationDate().getTime(), index.revocationDate(crl.getIssuerX500Principal(), small)),
+                () -> assertNotEquals(RevokedSerialIndex.NOT_REVOKED, index.revocationDate(crl.getIssuerX500Principal(), large)),
+                () -> assertEquals(RevokedSerialIndex.NOT_REVOKED, index.revocationDate(crl.getIssuerX500Principal(), BigInteger.valueOf(4712))),
+                () -> assertEquals(RevokedSerialIndex.NOT_REVOKED, index.revocationDate(crl.getIssuerX500Principal(), large.add(BigInteger.ONE))),
+                () -> assertEquals(RevokedSerialIndex.NOT_REVOKED, index.revocationDate(testData.selfSignedCertificate().getSubjectX500Principal(), small))
+        );
+    }
+
+    @DisplayName("then an empty CRL has an empty index")
+    @Test
+    void testEmptyCrl() throws Exception {
+        X509CRL crl = testData.crl();
+        RevokedSerialIndex index = RevokedSerialIndex.of(crl);
+        assertEquals(0, index.size());
+        assertEquals(RevokedSerialIndex.NOT_REVOKED, index.revocationDate(crl.getIssuerX500Principal(), BigInteger.ONE));
+    }
+
+    @DisplayName("then the revocation rule rejects revoked certificates and reindexes replaced CRLs")
+    @Test
+    void testRevocationIndexRule() throws Exception {
+        X509Certificate valid = testData.createCertificate();
+        X509Certificate revoked = testData.createCertificate();
+        SimpleCrlCache crlCache = new SimpleCrlCache();
+        crlCache.set(testData.distributionPointUrl(), testData.crl(revoked.getSerialNumber()));
+        RevocationIndexRule rule = new RevocationIndexRule(new CachingCrlFetcher(crlCache));
+        assertDoesNotThrow(() -> rule.validate(valid));
+        assertThrows(FailedValidationException.class, () -> rule.validate(revoked));
+        crlCache.set(testData.distributionPointUrl(), testData.crl(valid.getSerialNumber()));
+        assertThrows(FailedValidationException.class, () -> rule.validate(valid));
+        assertDoesNotThrow(() -> rule.validate(revoked));
+    }
+
+    @DisplayName("then an index written and read back finds the same revoked serial numbers")
+    @Test
+    void testWriteAndRead() throws Exception {
+        BigInteger small = BigInteger.valueOf(4711);
+        BigInteger large = BigInteger.TWO.pow(150).add(BigInteger.ONE);
+        X509CRL crl = testData.crl(large, small);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            RevokedSerialIndex.of(crl).writeTo(out);
+        }
+        ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray());
+        RevokedSerialIndex index = RevokedSerialIndex.readFrom(in);
+        assertAll(
+                () -> assertFalse(in.hasRemaining()),
+                () -> assertEquals(2, index.size()),
+                () -> assertEquals(crl.getRevokedCertificate(small).getRevocationDate().getTime(), index.revocationDate(crl.getIssuerX500Principal(), small)),
+                () -> assertEquals(crl.getRevokedCertificate(large).getRevocationDate().getTime(), index.revocationDate(crl.getIssuerX500Principal(), large)),
+                () -> assertEquals(RevokedSerialIndex.NOT_REVOKED, index.revocationDate(crl.getIssuerX500Principal(), BigInteger.valueOf(4712)))
+        );
+    }
+
+    @DisplayName("then the revocation rule rejects certificates with an unreadable CRL distribution points extension")
+    @Test
+    void testUnreadableDistributionPoints() throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(256);
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        X500Principal subject = new X500Principal("CN=Malformed distribution points");
+        JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(subject, BigInteger.ONE,
+                new Date(System.currentTimeMillis() - 60_000), new Date(System.currentTimeMillis() + 60_000), subject, keyPair.getPublic());
+        builder.addExtension(Extension.cRLDistributionPoints, false, new ASN1Integer(42).getEncoded());
+        X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withECDSA").build(keyPair.getPrivate())));
+        RevocationIndexRule rule = new RevocationIndexRule(new CachingCrlFetcher(new SimpleCrlCache()));
+        assertThrows(FailedValidationException.class, () -> rule.validate(certificate));
+    }
+
+}
@@ -0,0 +1,72 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.api.FailedValidationException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("When ordering validation rules")
+public class RulePipelineTest {
+
+    private static final List<NamedRule> RULES = List.of(
+            rule("revocation", NamedRule.Cost.REVOCATION),
+            rule("chain", NamedRule.Cost.CRYPTOGRAPHIC),
+            rule("expiration", NamedRule.Cost.STRUCTURAL),
+            rule("policy", NamedRule.Cost.STRUCTURAL));
+
+    private static NamedRule rule(String name, NamedRule.Cost cost) {
+        return new NamedRule(name, cost, certificate -> {
+            throw new FailedValidationException(name);
+        });
+    }
+
+    private static List<String> names(RulePipeline pipeline) {
+        return Arrays.stream(pipeline.order()).mapToObj(i -> pipeline.rule(i).getName()).collect(Collectors.toList());
+    }
+
+    private static int indexOf(RulePipeline pipeline, String name) {
+        return Arrays.stream(pipeline.order()).filter(i -> pipeline.rule(i).getName().equals(name)).findFirst().orElseThrow();
+    }
+
+    @DisplayName("then structural rules run before cryptographic and revocation rules")
+    @Test
+    void testRulesAreOrderedByCost() {
+        RulePipeline pipeline = new RulePipeline(RULES, RuleOrder.COST);
+        assertEquals(List.of("expiration", "policy", "chain", "revocation"), names(pipeline));
+    }
+
+    @DisplayName("then a fixed order is not changed by rejections")
+    @Test
+    void testFixedOrderIsNotChanged() {
+        RulePipeline pipeline = new RulePipeline(RULES, RuleOrder.COST);
+        int policy = indexOf(pipeline, "policy");
+        for (int i = 0; i < 2 * RulePipeline.REORDER_INTERVAL; i++) {
+            pipeline.order();
+            pipeline.record(policy, false);
+        }
+        pipeline.reorder();
+        assertEquals(List.of("expiration", "policy", "chain", "revocation"), names(pipeline));
+    }
+
+    @DisplayName("then an adaptive order runs the rule rejecting most certificates first among rules of the same cost")
+    @Test
+    void testAdaptiveOrderFollowsRejections() {
+        RulePipeline pipeline = new RulePipeline(RULES, RuleOrder.ADAPTIVE);
+        int expiration = indexOf(pipeline, "expiration");
+        int policy = indexOf(pipeline, "policy");
+        int chain = indexOf(pipeline, "chain");
+        for (int i = 0; i < RulePipeline.REORDER_INTERVAL; i++) {
+            pipeline.record(expiration, true);
+            pipeline.record(policy, false);
+            pipeline.record(chain, false);
+            pipeline.order();
+        }
+        assertEquals(List.of("policy", "expiration", "chain", "revocation"), names(pipeline));
+    }
+
+}
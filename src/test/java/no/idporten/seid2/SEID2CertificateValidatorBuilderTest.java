@@ -3,14 +3,17 @@ package no.idporten.seid2;
 import no.idporten.validator.certificate.api.AsyncCrlCache;
 import no.idporten.validator.certificate.api.CrlCache;
 import no.idporten.validator.certificate.util.DirectoryCrlCache;
-import no.idporten.validator.certificate.util.SimpleAsyncCrlCache;
 import no.idporten.validator.certificate.util.SimpleCrlCache;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
 
+import java.net.http.HttpClient;
 import java.nio.file.Path;
+import java.security.cert.X509CRL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -28,7 +31,7 @@ public class SEID2CertificateValidatorBuilderTest {
         );
     }
 
-    @DisplayName("then the default is to use environment specific properties and async in-memory pre-loaded CRL cache")
+    @DisplayName("then the default is to use environment specific properties and scheduled refresh of in-memory pre-loaded CRL cache")
     @Test
     void testBuildWithDefaults() throws Exception {
         SEID2CertificateValidatorBuilder builder = spy(new SEID2CertificateValidatorBuilder(Environment.TEST));
@@ -44,7 +47,7 @@ public class SEID2CertificateValidatorBuilderTest {
         assertAll(
                 () -> assertNotNull(SEID2CertificateValidator),
                 () -> assertEquals(CertificateAuthoritiesProperties.testProperties(), propertiesCaptor.getValue()),
-                () -> assertInstanceOf(SimpleAsyncCrlCache.class, crlCacheCaptor.getValue())
+                () -> assertInstanceOf(RefreshingCrlCache.class, crlCacheCaptor.getValue())
         );
         for (String crlDistributionPoint : propertiesCaptor.getValue().getCrlDistributionPoints()) {
             assertNotNull(crlCacheCaptor.getValue().get(crlDistributionPoint));
@@ -56,10 +59,103 @@ public class SEID2CertificateValidatorBuilderTest {
     void testProgrammaticallySetDefaults() throws Exception {
         SEID2CertificateValidatorBuilder builder = spy(new SEID2CertificateValidatorBuilder(Environment.TEST));
         SEID2CertificateValidator SEID2CertificateValidator = builder.withDefaults().build();
-        verify(builder).createValidator(eq(Environment.TEST), eq(CertificateAuthoritiesProperties.testProperties()), any(SimpleCrlCache.class));
+        verify(builder).createValidator(eq(Environment.TEST), eq(CertificateAuthoritiesProperties.testProperties()), any(RefreshingCrlCache.class));
         assertNotNull(SEID2CertificateValidator);
     }
 
+    @DisplayName("then validators for all environments share one CRL cache by default")
+    @Test
+    void testSharedCrlCacheByDefault() throws Exception {
+        SEID2CertificateValidatorBuilder testBuilder = spy(new SEID2CertificateValidatorBuilder(Environment.TEST));
+        SEID2CertificateValidatorBuilder prodBuilder = spy(new SEID2CertificateValidatorBuilder(Environment.PROD));
+        try (SEID2CertificateValidator testValidator = testBuilder.build(); SEID2CertificateValidator prodValidator = prodBuilder.build()) {
+            verify(testBuilder).createValidator(eq(Environment.TEST), any(), same(CrlCacheRegistry.shared()));
+            verify(prodBuilder).createValidator(eq(Environment.PROD), any(), same(CrlCacheRegistry.shared()));
+            assertTrue(CrlCacheRegistry.shared().isStarted());
+        }
+    }
+
+    @DisplayName("then validators with their own HTTP client share a CRL cache only with validators using the same client")
+    @Test
+    void testSharedCrlCacheByHttpClient() throws Exception {
+        HttpClient httpClient = HttpClient.newHttpClient();
+        SEID2CertificateValidatorBuilder customBuilder = spy(new SEID2CertificateValidatorBuilder(Environment.TEST).withHttpClient(httpClient));
+        SEID2CertificateValidatorBuilder defaultBuilder = spy(new SEID2CertificateValidatorBuilder(Environment.TEST));
+        try (SEID2CertificateValidator customValidator = customBuilder.build(); SEID2CertificateValidator defaultValidator = defaultBuilder.build()) {
+            verify(customBuilder).createValidator(eq(Environment.TEST), any(), same(CrlCacheRegistry.shared(httpClient, HttpCrlFetcher.DEFAULT_TIMEOUT, HttpCrlFetcher.DEFAULT_MAXIMUM_SIZE)));
+            verify(defaultBuilder).createValidator(eq(Environment.TEST), any(), same(CrlCacheRegistry.shared()));
+            assertThrows(IllegalStateException.class, () -> new SEID2CertificateValidatorBuilder(Environment.TEST)
+                    .withCrlCache(CrlCacheRegistry.shared(httpClient, HttpCrlFetcher.DEFAULT_TIMEOUT, HttpCrlFetcher.DEFAULT_MAXIMUM_SIZE))
+                    .build());
+        }
+    }
+
+    @DisplayName("then shared CRL caches for HTTP clients are forgotten when their last validator is closed")
+    @Test
+    void testSharedCrlCachesAreRemoved() throws Exception {
+        int sharedCaches = CrlCacheRegistry.sharedCaches();
+        for (int i = 0; i < 3; i++) {
+            HttpClient httpClient = HttpClient.newHttpClient();
+            SEID2CertificateValidator first = new SEID2CertificateValidatorBuilder(Environment.TEST).withHttpClient(httpClient).build();
+            SEID2CertificateValidator second = new SEID2CertificateValidatorBuilder(Environment.TEST).withHttpClient(httpClient).build();
+            assertEquals(sharedCaches + 1, CrlCacheRegistry.sharedCaches());
+            first.close();
+            assertEquals(sharedCaches + 1, CrlCacheRegistry.sharedCaches());
+            second.close();
+        }
+        assertAll(
+                () -> assertEquals(sharedCaches, CrlCacheRegistry.sharedCaches()),
+                () -> assertSame(CrlCacheRegistry.shared(), CrlCacheRegistry.shared(null, HttpCrlFetcher.DEFAULT_TIMEOUT, HttpCrlFetcher.DEFAULT_MAXIMUM_SIZE))
+        );
+    }
+
+    @DisplayName("then the refreshing CRL cache stops when the last validator using it is closed")
+    @Test
+    void testCloseLastValidatorStopsCrlCache() throws Exception {
+        SEID2CertificateValidatorBuilder builder = spy(new SEID2CertificateValidatorBuilder(Environment.TEST).withScheduledCrlRefresh());
+        SEID2CertificateValidator first = builder.build();
+        SEID2CertificateValidator second = builder.build();
+        ArgumentCaptor<CrlCache> crlCacheCaptor = ArgumentCaptor.forClass(CrlCache.class);
+        verify(builder, times(2)).createValidator(eq(Environment.TEST), any(), crlCacheCaptor.capture());
+        RefreshingCrlCache crlCache = (RefreshingCrlCache) crlCacheCaptor.getValue();
+        first.close();
+        first.close();
+        assertTrue(crlCache.isStarted());
+        second.close();
+        assertAll(
+                () -> assertFalse(crlCache.isStarted()),
+                () -> assertEquals(0, CrlCacheRegistry.references(crlCache)),
+                () -> assertFalse(second.validateToResult(new TestData().selfSignedCertificate()).isValid())
+        );
+    }
+
+    @DisplayName("then CRL snapshots replace pre-loaded CRLs in the CRL cache")
+    @Test
+    void testCrlSnapshots() throws Exception {
+        SEID2CertificateValidatorBuilder builder = spy(new SEID2CertificateValidatorBuilder(Environment.TEST).withScheduledCrlRefresh().withCrlSnapshots());
+        try (SEID2CertificateValidator validator = builder.build()) {
+            ArgumentCaptor<CrlCache> crlCacheCaptor = ArgumentCaptor.forClass(CrlCache.class);
+            verify(builder).createValidator(eq(Environment.TEST), any(), crlCacheCaptor.capture());
+            assertAll(
+                    () -> assertInstanceOf(RefreshingCrlCache.class, crlCacheCaptor.getValue()),
+                    () -> assertNull(crlCacheCaptor.getValue().get("http://crl.test4.buypass.no/crl/BPClass3T4CA3.crl")),
+                    () -> assertFalse(validator.validateToResult(new TestData().selfSignedCertificate()).isValid())
+            );
+        }
+    }
+
+    @DisplayName("then asynchronous validations default to a bounded executor of daemon threads")
+    @Test
+    void testDefaultExecutor() throws Exception {
+        ThreadPoolExecutor executor = assertInstanceOf(ThreadPoolExecutor.class, new ValidatorOptions().getExecutor());
+        Thread thread = CompletableFuture.supplyAsync(Thread::currentThread, executor).get();
+        assertAll(
+                () -> assertTrue(executor.getMaximumPoolSize() <= 64),
+                () -> assertTrue(thread.isDaemon()),
+                () -> assertTrue(thread.getName().startsWith("seid2-validation-"))
+        );
+    }
+
     @DisplayName("then properties can be overridden")
     @Test
     void testOverrideProperties() throws Exception {
@@ -89,4 +185,85 @@ public class SEID2CertificateValidatorBuilderTest {
         assertNotNull(SEID2CertificateValidator);
     }
 
+    @DisplayName("then async CRL cache wrapped by a persistent CRL cache is started on build")
+    @Test
+    void testStartPersistentAsyncCRLCacheOnBuild(@TempDir Path cacheDir) throws Exception {
+        SEID2CertificateValidatorBuilder builder = spy(new SEID2CertificateValidatorBuilder(Environment.TEST));
+        AsyncCrlCache crlCache = mock(AsyncCrlCache.class);
+        SEID2CertificateValidator SEID2CertificateValidator = builder.withCrlCache(crlCache).withPersistentCrlCache(cacheDir).build();
+        verify(builder).createValidator(eq(Environment.TEST), eq(CertificateAuthoritiesProperties.testProperties()), isA(PersistentCrlCache.class));
+        verify(crlCache).start();
+        assertNotNull(SEID2CertificateValidator);
+    }
+
+    @DisplayName("then pre-loaded CRLs are loaded on build without replacing newer CRLs")
+    @Test
+    void testPreloadedCrlsAreLoadedOnBuild() throws Exception {
+        TestData testData = new TestData();
+        CertificateAuthoritiesProperties properties = CertificateAuthoritiesProperties.testProperties();
+        String newerCrlUrl = "http://crl.test4.buypass.no/crl/BPClass3T4CA3.crl";
+        SimpleCrlCache crlCache = new SimpleCrlCache();
+        SEID2CertificateValidatorBuilder builder = new SEID2CertificateValidatorBuilder(Environment.TEST)
+                .withCrlCache(crlCache)
+                .withPreloadedCrlCache();
+        assertNull(crlCache.get(newerCrlUrl));
+        crlCache.set(newerCrlUrl, testData.crl());
+        X509CRL newerCrl = crlCache.get(newerCrlUrl);
+        builder.build();
+        assertAll(
+                () -> assertSame(newerCrl, crlCache.get(newerCrlUrl)),
+                () -> properties.getCrlDistributionPoints().forEach(url -> assertNotNull(crlCache.get(url)))
+        );
+    }
+
+    @DisplayName("then lazily pre-loaded CRLs are loaded on first use")
+    @Test
+    void testLazyPreloadedCrlsAreLoadedOnFirstUse() throws Exception {
+        String url = "http://crl.test4.buypass.no/crl/BPClass3T4CA3.crl";
+        SimpleCrlCache crlCache = new SimpleCrlCache();
+        SEID2CertificateValidatorBuilder builder = spy(new SEID2CertificateValidatorBuilder(Environment.TEST)
+                .withCrlCache(crlCache)
+                .withLazyPreloadedCrlCache());
+        builder.build();
+        ArgumentCaptor<CrlCache> crlCacheCaptor = ArgumentCaptor.forClass(CrlCache.class);
+        verify(builder).createValidator(eq(Environment.TEST), any(CertificateAuthoritiesProperties.class), crlCacheCaptor.capture());
+        assertNull(crlCache.get(url));
+        X509CRL crl = crlCacheCaptor.getValue().get(url);
+        assertAll(
+                () -> assertEquals(X509CRLUtils.loadCRLFromClasspath(url, Environment.TEST), crl),
+                () -> assertSame(crl, crlCache.get(url)),
+                () -> assertNull(crlCacheCaptor.getValue().get("http://localhost:123/unknown"))
+        );
+    }
+
+    @DisplayName("then lazily pre-loaded CRLs are parsed once per builder and shared between mirrors")
+    @Test
+    void testLazyPreloadedCrlsAreMemoized() throws Exception {
+        SEID2CertificateValidatorBuilder builder = spy(new SEID2CertificateValidatorBuilder(Environment.TEST)
+                .withCrlCache(new SimpleCrlCache())
+                .withLazyPreloadedCrlCache());
+        builder.build();
+        builder.withCrlCache(new SimpleCrlCache()).withLazyPreloadedCrlCache().build();
+        ArgumentCaptor<CrlCache> crlCacheCaptor = ArgumentCaptor.forClass(CrlCache.class);
+        verify(builder, times(2)).createValidator(eq(Environment.TEST), any(CertificateAuthoritiesProperties.class), crlCacheCaptor.capture());
+        CrlCache first = crlCacheCaptor.getAllValues().get(0);
+        CrlCache second = crlCacheCaptor.getAllValues().get(1);
+        assertAll(
+                () -> assertSame(first.get("http://crl.test4.buypass.no/crl/BPClass3T4CA3.crl"), second.get("http://crl.test4.buypass.no/crl/BPClass3T4CA3.crl")),
+                () -> assertSame(first.get("http://crl.test.commfides.com/G3/CommfidesLegalPersonCA-G3-TEST.crl"), first.get("https://crl.test.commfides.com/G3/CommfidesLegalPersonCA-G3-TEST.crl"))
+        );
+    }
+
+    @DisplayName("then identical pre-loaded CRLs for mirrored distribution points share one instance")
+    @Test
+    void testIdenticalPreloadedCrlsAreShared() throws Exception {
+        SimpleCrlCache crlCache = new SimpleCrlCache();
+        new SEID2CertificateValidatorBuilder(Environment.PROD).withCrlCache(crlCache).withPreloadedCrlCache().build();
+        assertAll(
+                () -> assertSame(crlCache.get("http://crl.commfides.com/G3/CommfidesLegalPersonCA-G3.crl"), crlCache.get("https://crl.commfides.com/G3/CommfidesLegalPersonCA-G3.crl")),
+                () -> assertSame(crlCache.get("http://crl1.commfides.com/CommfidesEnterprise-SHA256.crl"), crlCache.get("http://crl2.commfides.com/CommfidesEnterprise-SHA256.crl")),
+                () -> assertNotSame(crlCache.get("http://crl.buypass.no/crl/BPClass3CA3.crl"), crlCache.get("http://crl.buypassca.com/BPCl3CaG2STBS.crl"))
+        );
+    }
+
 }
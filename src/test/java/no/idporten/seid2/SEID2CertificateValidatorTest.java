@@ -5,11 +5,26 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import no.idporten.validator.certificate.Validator;
+import no.idporten.validator.certificate.api.CertificateValidationException;
+import no.idporten.validator.certificate.util.SimpleCrlCache;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.slf4j.event.Level;
 
+import java.nio.ByteBuffer;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.Mockito.*;
 
 @DisplayName("When validating certificates")
 @ExtendWith(MockitoExtension.class)
@@ -36,6 +51,49 @@ public class SEID2CertificateValidatorTest {
         assertTrue(validator.isValid(X509CertificateUtils.pemEncodedCert(certificate)));
     }
 
+    @DisplayName("then certificates are validated from DER bytes, byte buffers and x5c headers")
+    @Test
+    void testValidateEncodedCertificates() throws Exception {
+        SEID2CertificateValidator validator = createTestBusinessCertificateValidator(testData.props());
+        X509Certificate certificate = testData.createCertificate();
+        List<String> x5c = List.of(
+                Base64.getEncoder().encodeToString(certificate.getEncoded()),
+                Base64.getEncoder().encodeToString(testData.intermediateCertificate().getEncoded()));
+        List<String> selfSignedX5c = List.of(Base64.getEncoder().encodeToString(testData.selfSignedCertificate().getEncoded()));
+        assertAll(
+                () -> assertDoesNotThrow(() -> validator.validate(certificate.getEncoded())),
+                () -> assertDoesNotThrow(() -> validator.validate(ByteBuffer.wrap(certificate.getEncoded()))),
+                () -> assertDoesNotThrow(() -> validator.validateX5c(x5c)),
+                () -> assertThrows(CertificateValidationException.class, () -> validator.validateX5c(selfSignedX5c)),
+                () -> assertThrows(CertificateValidationException.class, () -> validator.validateX5c(List.of(x5c.get(1), x5c.get(0)))),
+                () -> assertEquals("encoding", validator.validateToResult(new byte[]{0x30, 0x01}).getFailedRule())
+        );
+    }
+
+    @DisplayName("then oversized inputs and inputs rejected before are rejected without parsing")
+    @Test
+    void testInputLimits() throws Exception {
+        SEID2CertificateValidator validator = new SEID2CertificateValidatorBuilder(Environment.TEST)
+                .withProperties(testData.props())
+                .withInputLimits(4096, 16)
+                .build();
+        ValidationResult first = validator.validateToResult("not a certificate");
+        ValidationResult second = validator.validateToResult("not a certificate");
+        ValidationResult oversized = validator.validateToResult("A".repeat(4097));
+        CertificateValidationException rejectedBefore = assertThrows(CertificateValidationException.class, () -> validator.validate("not a certificate"));
+        CertificateValidationException oversizedString = assertThrows(CertificateValidationException.class, () -> validator.validate("A".repeat(4097)));
+        assertAll(
+                () -> assertTrue(rejectedBefore.getMessage().contains("rejected before")),
+                () -> assertTrue(oversizedString.getMessage().contains("exceeds 4096")),
+                () -> assertEquals("encoding", first.getFailedRule()),
+                () -> assertNotNull(first.getException().getCause()),
+                () -> assertEquals("encoding", second.getFailedRule()),
+                () -> assertTrue(second.getReason().contains("rejected before")),
+                () -> assertTrue(oversized.getReason().contains("exceeds 4096")),
+                () -> assertTrue(validator.isValid(X509CertificateUtils.pemEncodedCert(testData.createCertificate())))
+        );
+    }
+
     @Test
     @DisplayName("then a self-signed certificate is rejected")
     public void testSelfSignedCertificateIsInvalid() throws Exception {
@@ -45,6 +103,261 @@ public class SEID2CertificateValidatorTest {
         assertFalse(validator.isValid(X509CertificateUtils.pemEncodedCert(certificate)));
     }
 
+    @Test
+    @DisplayName("then repeated validations of a valid certificate are served from the validation result cache")
+    void testRepeatedValidationsAreCached() throws Exception {
+        Validator rules = mock(Validator.class);
+        SEID2CertificateValidator validator = new SEID2CertificateValidator(List.of(new NamedRule("rules", NamedRule.Cost.STRUCTURAL, rules::validate)), new ValidationResultCache(10, Duration.ofMinutes(5), null), new ValidatorOptions());
+        X509Certificate certificate = testData.createCertificate();
+        assertTrue(validator.isValid(certificate));
+        assertTrue(validator.isValid(certificate));
+        assertDoesNotThrow(() -> validator.validate(certificate));
+        verify(rules, times(1)).validate(certificate);
+    }
+
+    @Test
+    @DisplayName("then a certificate is validated by the builder configured validation result cache")
+    void testValidateWithValidationResultCache() throws Exception {
+        SEID2CertificateValidator validator = new SEID2CertificateValidatorBuilder(Environment.TEST)
+                .withProperties(testData.props())
+                .withValidationResultCache(100, Duration.ofMinutes(1))
+                .build();
+        X509Certificate certificate = testData.createCertificate();
+        assertTrue(validator.isValid(certificate));
+        assertTrue(validator.isValid(certificate));
+        assertFalse(validator.isValid(testData.selfSignedCertificate()));
+    }
+
+    @Test
+    @DisplayName("then a rejected certificate is reported with failed rule, reason and duration")
+    void testValidateToResult() throws Exception {
+        SEID2CertificateValidator validator = createTestBusinessCertificateValidator(testData.props());
+        ValidationResult valid = validator.validateToResult(testData.createCertificate());
+        ValidationResult expired = validator.validateToResult(testData.expiredCertificate());
+        ValidationResult selfSigned = validator.validateToResult(testData.selfSignedCertificate());
+        ValidationResult garbage = validator.validateToResult("garbage");
+        assertAll(
+                () -> assertTrue(valid.isValid()),
+                () -> assertNull(valid.getFailedRule()),
+                () -> assertNotNull(valid.getDuration()),
+                () -> assertFalse(expired.isValid()),
+                () -> assertEquals("ExpirationRule", expired.getFailedRule()),
+                () -> assertNotNull(expired.getReason()),
+                () -> assertFalse(selfSigned.isValid()),
+                () -> assertNotNull(selfSigned.getFailedRule()),
+                () -> assertFalse(garbage.isValid()),
+                () -> assertEquals("encoding", garbage.getFailedRule()),
+                () -> assertNull(garbage.getCertificate())
+        );
+    }
+
+    @Test
+    @DisplayName("then certificates from unknown issuers are rejected before signatures are verified")
+    void testStructuralRulesRunFirst() throws Exception {
+        SEID2CertificateValidator validator = new SEID2CertificateValidatorBuilder(Environment.TEST)
+                .withProperties(testData.props())
+                .withRuleOrder(RuleOrder.ADAPTIVE)
+                .build();
+        ValidationResult selfSigned = validator.validateToResult(testData.selfSignedCertificate());
+        ValidationResult expired = validator.validateToResult(testData.expiredCertificate());
+        assertAll(
+                () -> assertFalse(selfSigned.isValid()),
+                () -> assertNotEquals("SigningRule", selfSigned.getFailedRule()),
+                () -> assertNotEquals("VerifiedChainRule", selfSigned.getFailedRule()),
+                () -> assertEquals("ExpirationRule", expired.getFailedRule()),
+                () -> assertTrue(validator.isValid(testData.createCertificate()))
+        );
+    }
+
+    @Test
+    @DisplayName("then revocation is checked with OCSP when enabled")
+    void testOcsp() throws Exception {
+        try (TestOcspResponder responder = new TestOcspResponder(testData.intermediateCertificate(), testData.intermediatePrivateKey())) {
+            X509Certificate certificate = testData.createCertificateWithOcsp(responder.url());
+            X509Certificate revoked = testData.createCertificateWithOcsp(responder.url());
+            responder.revoke(revoked.getSerialNumber());
+            SEID2CertificateValidator validator = new SEID2CertificateValidatorBuilder(Environment.TEST)
+                    .withProperties(testData.props())
+                    .withCrlCache(new SimpleCrlCache())
+                    .withOcsp()
+                    .build();
+            assertTrue(validator.validateToResult(certificate, responder.stapledResponse(certificate)).isValid());
+            assertEquals(0, responder.requests());
+            assertEquals("OcspRule", validator.validateToResult(revoked).getFailedRule());
+            assertEquals(1, responder.requests());
+        }
+    }
+
+    @Test
+    @DisplayName("then a revoked certificate is rejected by the revocation rule")
+    void testRevokedCertificateIsInvalid() throws Exception {
+        X509Certificate revoked = testData.createCertificate();
+        SimpleCrlCache crlCache = new SimpleCrlCache();
+        crlCache.set(testData.distributionPointUrl(), testData.crl(revoked.getSerialNumber()));
+        SEID2CertificateValidator validator = new SEID2CertificateValidatorBuilder(Environment.TEST)
+                .withProperties(testData.props())
+                .withCrlCache(crlCache)
+                .build();
+        ValidationResult result = validator.validateToResult(revoked);
+        assertAll(
+                () -> assertFalse(result.isValid()),
+                () -> assertEquals("RevocationIndexRule", result.getFailedRule()),
+                () -> assertTrue(validator.isValid(testData.createCertificate()))
+        );
+    }
+
+    @Test
+    @DisplayName("then listeners are told about rules and CRL cache lookups")
+    void testListener() throws Exception {
+        SimpleCrlCache crlCache = new SimpleCrlCache();
+        crlCache.set(testData.distributionPointUrl(), testData.crl());
+        JmxValidationListener listener = new JmxValidationListener();
+        SEID2CertificateValidator validator = new SEID2CertificateValidatorBuilder(Environment.TEST)
+                .withProperties(testData.props())
+                .withCrlCache(crlCache)
+                .withListener(listener)
+                .build();
+        assertTrue(validator.isValid(testData.createCertificate()));
+        assertFalse(validator.isValid(testData.expiredCertificate()));
+        assertAll(
+                () -> assertEquals(7, listener.getRulePassCounts().size()),
+                () -> assertEquals(1L, listener.getRulePassCounts().get("RevocationIndexRule")),
+                () -> assertEquals(Map.of("ExpirationRule", 1L), listener.getRuleFailCounts()),
+                () -> assertEquals(Map.of(testData.distributionPointUrl(), 1L), listener.getCrlCacheHits())
+        );
+    }
+
+    @Test
+    @DisplayName("then the exception thrown by validate is the exception from the failed rule")
+    void testValidateThrowsRuleException() throws Exception {
+        Validator rules = mock(Validator.class);
+        X509Certificate certificate = testData.createCertificate();
+        CertificateValidationException exception = new CertificateValidationException("Rejected");
+        doThrow(exception).when(rules).validate(certificate);
+        SEID2CertificateValidator validator = new SEID2CertificateValidator(rules);
+        assertSame(exception, assertThrows(CertificateValidationException.class, () -> validator.validate(certificate)));
+        assertFalse(new SEID2CertificateValidatorBuilder(Environment.TEST)
+                .withProperties(testData.props())
+                .withRejectionLogging(Level.DEBUG, 100)
+                .build()
+                .isValid(testData.selfSignedCertificate()));
+    }
+
+    @Test
+    @DisplayName("then a batch of certificates is validated with one result per certificate")
+    void testValidateAll() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            SEID2CertificateValidator validator = new SEID2CertificateValidatorBuilder(Environment.TEST)
+                    .withProperties(testData.props())
+                    .withExecutor(executor)
+                    .build();
+            X509Certificate valid = testData.createCertificate();
+            X509Certificate selfSigned = testData.selfSignedCertificate();
+            List<ValidationResult> results = validator.validateAll(Arrays.asList(valid, selfSigned, null, valid));
+            assertAll(
+                    () -> assertEquals(4, results.size()),
+                    () -> assertTrue(results.get(0).isValid()),
+                    () -> assertSame(valid, results.get(0).getCertificate()),
+                    () -> assertFalse(results.get(1).isValid()),
+                    () -> assertNotNull(results.get(1).getReason()),
+                    () -> assertNotNull(results.get(1).getException()),
+                    () -> assertFalse(results.get(2).isValid()),
+                    () -> assertTrue(results.get(3).isValid())
+            );
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    @DisplayName("then a batch completes when every executor thread is busy, also when called from an executor thread")
+    void testValidateAllOnBusyExecutor() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            SEID2CertificateValidator validator = new SEID2CertificateValidatorBuilder(Environment.TEST)
+                    .withProperties(testData.props())
+                    .withExecutor(executor)
+                    .build();
+            List<X509Certificate> certificates = List.of(testData.createCertificate(), testData.createCertificate(), testData.createCertificate());
+            List<ValidationResult> results = executor.submit(() -> validator.validateAll(certificates)).get(30, TimeUnit.SECONDS);
+            assertAll(
+                    () -> assertEquals(3, results.size()),
+                    () -> assertTrue(results.stream().allMatch(ValidationResult::isValid))
+            );
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    @DisplayName("then an unexpected failure in a batch gives an invalid result for that certificate only")
+    void testValidateAllUnexpectedFailure() throws Exception {
+        Validator rules = mock(Validator.class);
+        X509Certificate failing = testData.createCertificate();
+        X509Certificate valid = testData.createCertificate();
+        doThrow(new IllegalStateException("Unexpected")).when(rules).validate(failing);
+        doNothing().when(rules).validate(valid);
+        SEID2CertificateValidator validator = new SEID2CertificateValidator(rules);
+        List<ValidationResult> results = validator.validateAll(List.of(failing, valid));
+        assertAll(
+                () -> assertFalse(results.get(0).isValid()),
+                () -> assertSame(failing, results.get(0).getCertificate()),
+                () -> assertEquals("error", results.get(0).getFailedRule()),
+                () -> assertTrue(results.get(1).isValid())
+        );
+    }
+
+    @Test
+    @DisplayName("then identical certificates in a batch are validated once")
+    void testValidateAllValidatesIdenticalCertificatesOnce() throws Exception {
+        Validator rules = mock(Validator.class);
+        SEID2CertificateValidator validator = new SEID2CertificateValidator(rules);
+        X509Certificate certificate = testData.createCertificate();
+        List<ValidationResult> results = validator.validateAll(List.of(certificate, certificate, certificate));
+        assertEquals(3, results.size());
+        verify(rules, times(1)).validate(certificate);
+    }
+
+    @Test
+    @DisplayName("then a batch of encoded certificates is validated with one result per certificate")
+    void testValidateAllEncoded() throws Exception {
+        SEID2CertificateValidator validator = createTestBusinessCertificateValidator(testData.props());
+        String valid = X509CertificateUtils.pemEncodedCert(testData.createCertificate());
+        List<ValidationResult> results = validator.validateAllEncoded(Arrays.asList(valid, "garbage", null));
+        assertAll(
+                () -> assertEquals(3, results.size()),
+                () -> assertTrue(results.get(0).isValid()),
+                () -> assertFalse(results.get(1).isValid()),
+                () -> assertNull(results.get(1).getCertificate()),
+                () -> assertFalse(results.get(2).isValid())
+        );
+    }
+
+    @Test
+    @DisplayName("then certificates can be validated asynchronously")
+    void testValidateAsync() throws Exception {
+        SEID2CertificateValidator validator = createTestBusinessCertificateValidator(testData.props());
+        X509Certificate certificate = testData.createCertificate();
+        assertAll(
+                () -> assertTrue(validator.validateAsync(certificate).toCompletableFuture().get().isValid()),
+                () -> assertTrue(validator.validateAsync(X509CertificateUtils.pemEncodedCert(certificate)).toCompletableFuture().get().isValid()),
+                () -> assertFalse(validator.validateAsync(testData.selfSignedCertificate()).toCompletableFuture().get().isValid()),
+                () -> assertFalse(validator.validateAsync("garbage").toCompletableFuture().get().isValid())
+        );
+    }
+
+    @Test
+    @DisplayName("then certificates can be validated asynchronously on virtual threads")
+    void testValidateAsyncOnVirtualThreads() throws Exception {
+        assumeTrue(Runtime.version().feature() >= 21);
+        SEID2CertificateValidator validator = new SEID2CertificateValidatorBuilder(Environment.TEST)
+                .withProperties(testData.props())
+                .withVirtualThreadExecutor()
+                .build();
+        assertTrue(validator.validateAsync(testData.createCertificate()).toCompletableFuture().get().isValid());
+    }
+
     @Test
     @DisplayName("then Digdirs new Commfides certificate is valid")
     void testCommfidesDigdir() throws Exception {
@@ -9,7 +9,9 @@ import org.bouncycastle.asn1.x500.style.RFC4519Style;
 import org.bouncycastle.asn1.x509.Extension;
 import org.bouncycastle.asn1.x509.*;
 import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
 import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
 import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
@@ -17,7 +19,10 @@ import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.security.KeyPairGenerator;
 import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.security.cert.*;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
@@ -25,6 +30,7 @@ import java.time.ZoneOffset;
 import java.util.Date;
 import java.util.Random;
 import java.util.Set;
+import javax.security.auth.x500.X500Principal;
 
 import static no.idporten.seid2.X509CertificateUtils.pemEncodedCert;
 
@@ -52,16 +58,88 @@ public class TestData {
         ).getCertificate();
     }
 
+    X509Certificate rootCertificate() {
+        java.security.cert.Certificate[] chain = intermediate.getCertificateChain();
+        return (X509Certificate) chain[chain.length - 1];
+    }
+
+    X509Certificate intermediateCertificate() {
+        return (X509Certificate) intermediate.getCertificate();
+    }
+
+    PrivateKey intermediatePrivateKey() {
+        return intermediate.getPrivateKey();
+    }
+
+    /**
+     * Creates a certificate issued by the intermediate, with an OCSP responder in the authority information access
+     * extension and the test CRL distribution point.
+     */
+    X509Certificate createCertificateWithOcsp(String ocspUrl) throws Exception {
+        return issuedCertificate(LocalDateTime.now().minusDays(1), LocalDateTime.now().plusYears(1), ocspUrl, "SHA256WithRSAEncryption", null);
+    }
+
+    /**
+     * Creates a certificate issued by the intermediate, signed with the given signature algorithm.
+     */
+    X509Certificate createCertificateSignedWith(String signatureAlgorithm) throws Exception {
+        return issuedCertificate(LocalDateTime.now().minusDays(1), LocalDateTime.now().plusYears(1), null, signatureAlgorithm, null);
+    }
+
+    /**
+     * Creates a certificate issued by the intermediate, for the intermediate's own public key.
+     */
+    X509Certificate createCertificateWithIssuerKey() throws Exception {
+        return issuedCertificate(LocalDateTime.now().minusDays(1), LocalDateTime.now().plusYears(1), null, "SHA256WithRSAEncryption", intermediateCertificate().getPublicKey());
+    }
+
+    /**
+     * Creates a certificate issued by the intermediate, with the test CRL distribution point and optionally an OCSP
+     * responder, for the given public key or a new one.
+     */
+    private X509Certificate issuedCertificate(LocalDateTime notBefore, LocalDateTime notAfter, String ocspUrl, String signatureAlgorithm, PublicKey publicKey) throws Exception {
+        X509Certificate issuer = intermediateCertificate();
+        if (publicKey == null) {
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+            keyPairGenerator.initialize(2048);
+            publicKey = keyPairGenerator.generateKeyPair().getPublic();
+        }
+        JcaX509ExtensionUtils extensionUtils = new JcaX509ExtensionUtils();
+        JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(
+                issuer,
+                new BigInteger(63, new Random()),
+                Date.from(notBefore.toInstant(ZoneOffset.UTC)),
+                Date.from(notAfter.toInstant(ZoneOffset.UTC)),
+                new X500Principal("CN=DIFI test virksomhetssertifiat OCSP, SERIALNUMBER=987464291"),
+                publicKey);
+        builder.addExtension(Extension.authorityKeyIdentifier, false, extensionUtils.createAuthorityKeyIdentifier(issuer));
+        builder.addExtension(Extension.subjectKeyIdentifier, false, extensionUtils.createSubjectKeyIdentifier(publicKey));
+        builder.addExtension(Extension.basicConstraints, false, new BasicConstraints(false));
+        builder.addExtension(Extension.certificatePolicies, false, new CertificatePolicies(new PolicyInformation(new ASN1ObjectIdentifier("2.16.578.1.1.1.1.100"))));
+        builder.addExtension(Extension.keyUsage, true, new KeyUsage(176));
+        if (ocspUrl != null) {
+            builder.addExtension(Extension.authorityInfoAccess, false, new AuthorityInformationAccess(AccessDescription.id_ad_ocsp, new GeneralName(GeneralName.uniformResourceIdentifier, ocspUrl)));
+        }
+        builder.addExtension(Extension.cRLDistributionPoints, false, new CRLDistPoint(new DistributionPoint[]{
+                new DistributionPoint(new DistributionPointName(new GeneralNames(new GeneralName(GeneralName.uniformResourceIdentifier, distributionPointUrl()))), null, null)}));
+        ContentSigner signer = new JcaContentSignerBuilder(signatureAlgorithm).build(intermediate.getPrivateKey());
+        return new JcaX509CertificateConverter().getCertificate(builder.build(signer));
+    }
+
     public String distributionPointUrl() {
         return "http://localhost:123/crl";
     }
 
-    private X509CRL crl(BigInteger... serialNumbersOfRevokedCertificates) throws OperatorCreationException, CertificateException, CRLException, IOException {
+    X509CRL crl(BigInteger... serialNumbersOfRevokedCertificates) throws OperatorCreationException, CertificateException, CRLException, IOException {
         return crl(LocalDateTime.now().plusDays(1), serialNumbersOfRevokedCertificates);
     }
 
-    private X509CRL crl(LocalDateTime nextUpdate, BigInteger... serialNumbersOfRevokedCertificates) throws IOException, OperatorCreationException, CertificateException, CRLException {
-        X509v2CRLBuilder builder = crlBuilder();
+    X509CRL crl(LocalDateTime nextUpdate, BigInteger... serialNumbersOfRevokedCertificates) throws IOException, OperatorCreationException, CertificateException, CRLException {
+        return crl(LocalDateTime.now(), nextUpdate, serialNumbersOfRevokedCertificates);
+    }
+
+    X509CRL crl(LocalDateTime thisUpdate, LocalDateTime nextUpdate, BigInteger... serialNumbersOfRevokedCertificates) throws IOException, OperatorCreationException, CertificateException, CRLException {
+        X509v2CRLBuilder builder = crlBuilder(Date.from(thisUpdate.atZone(ZoneId.systemDefault()).toInstant()));
         for (BigInteger serialNumber : serialNumbersOfRevokedCertificates)
             builder.addCRLEntry(serialNumber, new Date(), 1);
         if (nextUpdate != null)
@@ -72,13 +150,13 @@ public class TestData {
         ));
     }
 
-    private X509v2CRLBuilder crlBuilder() {
+    private X509v2CRLBuilder crlBuilder(Date thisUpdate) {
         return new X509v2CRLBuilder(
                 new X500Name(
                         RFC4519Style.INSTANCE,
                         ((X509Certificate) intermediate.getCertificate()).getSubjectX500Principal().getName()
                 ),
-                new Date()
+                thisUpdate
         );
     }
 
@@ -94,6 +172,17 @@ public class TestData {
 
 
     public X509Certificate selfSignedCertificate() throws Exception {
+        return selfSignedCertificate(LocalDateTime.now().minusYears(1), LocalDateTime.now().plusYears(2));
+    }
+
+    /**
+     * Creates a certificate issued by the intermediate that expired yesterday.
+     */
+    public X509Certificate expiredCertificate() throws Exception {
+        return issuedCertificate(LocalDateTime.now().minusYears(3), LocalDateTime.now().minusDays(1), null, "SHA256WithRSAEncryption", null);
+    }
+
+    private X509Certificate selfSignedCertificate(LocalDateTime notBefore, LocalDateTime notAfter) throws Exception {
         CustomCertBuilder custom = (certGen, keyPair) -> {
             certGen.addExtension(org.bouncycastle.asn1.x509.Extension.subjectKeyIdentifier, false, (new JcaX509ExtensionUtils()).createSubjectKeyIdentifier(keyPair.getPublic()));
             certGen.addExtension(org.bouncycastle.asn1.x509.Extension.basicConstraints, false, new BasicConstraints(false));
@@ -105,8 +194,8 @@ public class TestData {
         return (X509Certificate) generator.generateSelfSignedGenerisk(
                         "CN=DIFI test virksomhetssertifiat, SERIALNUMBER=987464291",
                         custom,
-                        Date.from(LocalDateTime.now().minusYears(1).toInstant(ZoneOffset.UTC)),
-                        Date.from(LocalDateTime.now().plusYears(2).toInstant(ZoneOffset.UTC)))
+                        Date.from(notBefore.toInstant(ZoneOffset.UTC)),
+                        Date.from(notAfter.toInstant(ZoneOffset.UTC)))
                 .getCertificate();
     }
 
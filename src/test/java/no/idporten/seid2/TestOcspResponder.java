@@ -0,0 +1,159 @@
+package no.idporten.seid2;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.Req;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.jcajce.JcaBasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.jcajce.JcaCertificateID;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process OCSP responder for tests, answering over HTTP for certificates issued by one issuer.
+ */
+class TestOcspResponder implements AutoCloseable {
+
+    private final HttpServer server;
+    private final X509Certificate issuer;
+    private final PrivateKey signingKey;
+    private final Map<BigInteger, Date> revoked = new ConcurrentHashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile int httpStatus = 200;
+    private volatile byte[] nonceOverride;
+    private volatile boolean nonceOmitted;
+    private volatile Duration thisUpdateAge = Duration.ZERO;
+    private volatile Duration validity = Duration.ofHours(1);
+    private volatile boolean lastRequestHadNonce;
+
+    TestOcspResponder(X509Certificate issuer, PrivateKey signingKey) throws IOException {
+        this.issuer = issuer;
+        this.signingKey = signingKey;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.createContext("/", this::handle);
+        this.server.start();
+    }
+
+    String url() {
+        return "http://" + server.getAddress().getAddress().getHostAddress() + ":" + server.getAddress().getPort() + "/ocsp";
+    }
+
+    void revoke(BigInteger serialNumber) {
+        revoked.put(serialNumber, new Date());
+    }
+
+    void reinstate(BigInteger serialNumber) {
+        revoked.remove(serialNumber);
+    }
+
+    void setHttpStatus(int httpStatus) {
+        this.httpStatus = httpStatus;
+    }
+
+    void setNonceOverride(byte[] nonceOverride) {
+        this.nonceOverride = nonceOverride;
+    }
+
+    void setNonceOmitted(boolean nonceOmitted) {
+        this.nonceOmitted = nonceOmitted;
+    }
+
+    /**
+     * Sets how long ago the answers were produced, and how long after that they are valid.  Null validity leaves
+     * nextUpdate out.
+     */
+    void setUpdates(Duration thisUpdateAge, Duration validity) {
+        this.thisUpdateAge = thisUpdateAge;
+        this.validity = validity;
+    }
+
+    int requests() {
+        return requests.get();
+    }
+
+    boolean lastRequestHadNonce() {
+        return lastRequestHadNonce;
+    }
+
+    /**
+     * Creates a response for a certificate the way a TLS server would staple it.
+     */
+    byte[] stapledResponse(X509Certificate certificate) throws Exception {
+        CertificateID id = new JcaCertificateID(new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1), issuer, certificate.getSerialNumber());
+        return respond(new CertificateID[]{id}, null);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            OCSPReq request = new OCSPReq(exchange.getRequestBody().readAllBytes());
+            Extension nonce = request.getExtension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce);
+            lastRequestHadNonce = nonce != null;
+            if (nonce != null && nonceOverride != null) {
+                nonce = new Extension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce, false, new DEROctetString(new DEROctetString(nonceOverride).getEncoded()));
+            }
+            Req[] requestList = request.getRequestList();
+            CertificateID[] ids = new CertificateID[requestList.length];
+            for (int i = 0; i < requestList.length; i++) {
+                ids[i] = requestList[i].getCertID();
+            }
+            byte[] response = respond(ids, nonceOmitted ? null : nonce);
+            exchange.getResponseHeaders().add("Content-Type", "application/ocsp-response");
+            exchange.sendResponseHeaders(httpStatus, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        } catch (Exception e) {
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private byte[] respond(CertificateID[] ids, Extension nonce) throws Exception {
+        BasicOCSPRespBuilder builder = new JcaBasicOCSPRespBuilder(issuer.getPublicKey(), new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1));
+        Date now = new Date();
+        Date thisUpdate = new Date(now.getTime() - thisUpdateAge.toMillis());
+        Date nextUpdate = validity == null ? null : new Date(thisUpdate.getTime() + validity.toMillis());
+        for (CertificateID id : ids) {
+            Date revocationDate = revoked.get(id.getSerialNumber());
+            CertificateStatus status = revocationDate == null ? CertificateStatus.GOOD : new RevokedStatus(revocationDate, CRLReason.keyCompromise);
+            builder.addResponse(id, status, thisUpdate, nextUpdate);
+        }
+        if (nonce != null) {
+            builder.setResponseExtensions(new Extensions(nonce));
+        }
+        return new OCSPRespBuilder()
+                .build(OCSPRespBuilder.SUCCESSFUL, builder.build(new JcaContentSignerBuilder("SHA256WithRSAEncryption").build(signingKey), null, now))
+                .getEncoded();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+}
@@ -0,0 +1,87 @@
+package no.idporten.seid2;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("When indexing trust anchors and intermediates")
+public class TrustStoreTest {
+
+    private static TestData testData;
+
+    @BeforeAll
+    public static void setUp() {
+        testData = new TestData();
+    }
+
+    @DisplayName("then the issuer of a certificate is found and intermediates are verified up front")
+    @Test
+    void testIssuerIsFound() throws Exception {
+        X509Certificate root = testData.rootCertificate();
+        X509Certificate intermediate = testData.intermediateCertificate();
+        TrustStore trustStore = new TrustStore(List.of(root), List.of(intermediate));
+        assertAll(
+                () -> assertEquals(List.of(intermediate), trustStore.findIssuers(testData.createCertificate())),
+                () -> assertEquals(List.of(root), trustStore.findIssuers(intermediate)),
+                () -> assertSame(root, trustStore.getVerifiedIssuer(intermediate)),
+                () -> assertNull(trustStore.getVerifiedIssuer(root)),
+                () -> assertTrue(trustStore.isRoot(root)),
+                () -> assertFalse(trustStore.isRoot(intermediate)),
+                () -> assertTrue(trustStore.findIssuers(testData.selfSignedCertificate()).isEmpty())
+        );
+    }
+
+    @DisplayName("then the issuers of the certificate being validated are looked up once per validation")
+    @Test
+    void testIssuerLookupIsSharedByValidation() throws Exception {
+        TrustStore trustStore = new TrustStore(List.of(testData.rootCertificate()), List.of(testData.intermediateCertificate()));
+        X509Certificate certificate = testData.createCertificate();
+        ValidationContext context = new ValidationContext(certificate);
+        List<X509Certificate> issuers = context.issuers(trustStore);
+        assertAll(
+                () -> assertSame(issuers, context.issuers(trustStore)),
+                () -> assertEquals(List.of(testData.intermediateCertificate()), issuers),
+                () -> assertEquals(List.of(testData.rootCertificate()), new ValidationContext(testData.intermediateCertificate()).issuers(trustStore))
+        );
+    }
+
+    @DisplayName("then verified paths from intermediates to roots are kept")
+    @Test
+    void testVerifiedPaths() throws Exception {
+        X509Certificate root = testData.rootCertificate();
+        X509Certificate intermediate = testData.intermediateCertificate();
+        TrustStore trustStore = new TrustStore(List.of(root), List.of(intermediate));
+        assertAll(
+                () -> assertEquals(List.of(intermediate, root), trustStore.getVerifiedPath(intermediate).getCertificates()),
+                () -> assertTrue(trustStore.getVerifiedPath(intermediate).isValidAt(System.currentTimeMillis())),
+                () -> assertFalse(trustStore.getVerifiedPath(intermediate).isValidAt(intermediate.getNotAfter().getTime() + 1)),
+                () -> assertEquals(List.of(root), trustStore.getVerifiedPath(root).getCertificates()),
+                () -> assertNull(new TrustStore(List.of(new TestData().rootCertificate()), List.of(intermediate)).getVerifiedPath(intermediate))
+        );
+    }
+
+    @DisplayName("then an intermediate not signed by any root is not verified")
+    @Test
+    void testUnverifiedIntermediate() throws Exception {
+        X509Certificate intermediate = testData.intermediateCertificate();
+        TrustStore trustStore = new TrustStore(List.of(new TestData().rootCertificate()), List.of(intermediate));
+        assertNull(trustStore.getVerifiedIssuer(intermediate));
+    }
+
+    @DisplayName("then the default trust stores verify all intermediates")
+    @Test
+    void testDefaultTrustStores() throws Exception {
+        for (Environment environment : Environment.values()) {
+            TrustStore trustStore = SEID2CertificateValidatorFactory.createTrustStore(CertificateAuthoritiesProperties.defaultProperties(environment));
+            for (X509Certificate intermediate : trustStore.getIntermediates()) {
+                assertNotNull(trustStore.getVerifiedIssuer(intermediate), intermediate.getSubjectX500Principal().getName());
+            }
+        }
+    }
+
+}
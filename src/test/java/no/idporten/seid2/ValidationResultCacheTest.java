@@ -0,0 +1,98 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.util.SimpleCrlCache;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("When caching validation results")
+public class ValidationResultCacheTest {
+
+    private static TestData testData;
+
+    @BeforeAll
+    public static void setUp() {
+        testData = new TestData();
+    }
+
+    @DisplayName("then a cached certificate is found by its digest")
+    @Test
+    void testCachedCertificateIsFound() throws Exception {
+        ValidationResultCache cache = new ValidationResultCache(10, Duration.ofMinutes(5), new SimpleCrlCache());
+        X509Certificate certificate = testData.createCertificate();
+        ByteBuffer key = cache.key(certificate);
+        assertFalse(cache.contains(key));
+        cache.put(key, new ValidationContext(certificate));
+        assertAll(
+                () -> assertTrue(cache.contains(key)),
+                () -> assertTrue(cache.contains(cache.key(certificate))),
+                () -> assertFalse(cache.contains(cache.key(testData.createCertificate())))
+        );
+    }
+
+    @DisplayName("then the cache is bounded by size and keeps the certificate added last")
+    @Test
+    void testCacheIsBounded() throws Exception {
+        ValidationResultCache cache = new ValidationResultCache(2, Duration.ofMinutes(5), null);
+        X509Certificate last = null;
+        for (int i = 0; i < 3; i++) {
+            last = testData.createCertificate();
+            cache.put(cache.key(last), new ValidationContext(last));
+        }
+        X509Certificate added = last;
+        assertAll(
+                () -> assertEquals(2, cache.size()),
+                () -> assertTrue(cache.contains(cache.key(added)))
+        );
+    }
+
+    @DisplayName("then entries are not kept beyond the nextUpdate of the certificate's OCSP answer")
+    @Test
+    void testEntryExpiresWithOcspAnswer() throws Exception {
+        TrustStore trustStore = new TrustStore(List.of(testData.rootCertificate()), List.of(testData.intermediateCertificate()));
+        try (TestOcspResponder responder = new TestOcspResponder(testData.intermediateCertificate(), testData.intermediatePrivateKey())) {
+            OcspRule ocspRule = new OcspRule(trustStore, certificate -> {
+            }, OcspRule.http(HttpCrlFetcher.sharedHttpClient(), Duration.ofSeconds(5)), true, Duration.ofHours(1), 100);
+            ValidationResultCache cache = new ValidationResultCache(10, Duration.ofHours(5), null, ocspRule);
+            X509Certificate certificate = testData.createCertificateWithOcsp(responder.url());
+            cache.put(cache.key(certificate), new ValidationContext(certificate));
+            assertFalse(cache.contains(cache.key(certificate)));
+            assertTrue(ocspRule.accept(new ValidationContext(certificate), responder.stapledResponse(certificate)));
+            cache.put(cache.key(certificate), new ValidationContext(certificate));
+            assertAll(
+                    () -> assertTrue(cache.contains(cache.key(certificate))),
+                    () -> assertTrue(ocspRule.nextUpdate(new ValidationContext(certificate)) <= System.currentTimeMillis() + Duration.ofHours(1).toMillis()),
+                    () -> assertEquals(Long.MAX_VALUE, ocspRule.nextUpdate(new ValidationContext(testData.createCertificate())))
+            );
+        }
+    }
+
+    @DisplayName("then entries are not kept beyond the nextUpdate of the certificate's CRL")
+    @Test
+    void testEntryExpiresWithCrl() throws Exception {
+        SimpleCrlCache crlCache = new SimpleCrlCache();
+        crlCache.set(testData.distributionPointUrl(), testData.crl(LocalDateTime.now().minusMinutes(1)));
+        ValidationResultCache cache = new ValidationResultCache(10, Duration.ofMinutes(5), crlCache);
+        X509Certificate certificate = testData.createCertificate();
+        cache.put(cache.key(certificate), new ValidationContext(certificate));
+        assertFalse(cache.contains(cache.key(certificate)));
+    }
+
+    @DisplayName("then entries are not kept beyond the time to live")
+    @Test
+    void testEntryExpiresWithTimeToLive() throws Exception {
+        ValidationResultCache cache = new ValidationResultCache(10, Duration.ZERO, null);
+        X509Certificate certificate = testData.createCertificate();
+        cache.put(cache.key(certificate), new ValidationContext(certificate));
+        assertFalse(cache.contains(cache.key(certificate)));
+    }
+
+}
@@ -0,0 +1,61 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.api.FailedValidationException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("When validating certificate chains against verified paths")
+public class VerifiedChainRuleTest {
+
+    private static TestData testData;
+    private static VerifiedChainRule chainRule;
+
+    @BeforeAll
+    public static void setUp() {
+        testData = new TestData();
+        chainRule = new VerifiedChainRule(new TrustStore(List.of(testData.rootCertificate()), List.of(testData.intermediateCertificate())));
+    }
+
+    @DisplayName("then a certificate signed by a trusted intermediate is valid")
+    @Test
+    void testTrustedCertificate() {
+        assertDoesNotThrow(() -> chainRule.validate(new ValidationContext(testData.createCertificate())));
+    }
+
+    @DisplayName("then a certificate from an unknown issuer is rejected")
+    @Test
+    void testUnknownIssuer() {
+        assertThrows(FailedValidationException.class, () -> chainRule.validate(new ValidationContext(testData.selfSignedCertificate())));
+    }
+
+    @DisplayName("then a certificate signed by another key with the same issuer name is rejected")
+    @Test
+    void testForgedIssuer() {
+        assertThrows(FailedValidationException.class, () -> chainRule.validate(new ValidationContext(new TestData().createCertificate())));
+    }
+
+    @DisplayName("then a certificate signed with a disabled algorithm is rejected")
+    @Test
+    void testDisabledSignatureAlgorithm() {
+        assertThrows(FailedValidationException.class, () -> chainRule.validate(new ValidationContext(testData.createCertificateSignedWith("MD5WithRSAEncryption"))));
+    }
+
+    @DisplayName("then a certificate with the key of its issuer is rejected")
+    @Test
+    void testIssuerKey() {
+        assertThrows(FailedValidationException.class, () -> chainRule.validate(new ValidationContext(testData.createCertificateWithIssuerKey())));
+    }
+
+    @DisplayName("then an intermediate without a verified path to a root is not trusted")
+    @Test
+    void testUnverifiedIntermediate() {
+        VerifiedChainRule untrusted = new VerifiedChainRule(new TrustStore(List.of(new TestData().rootCertificate()), List.of(testData.intermediateCertificate())));
+        assertThrows(FailedValidationException.class, () -> untrusted.validate(new ValidationContext(testData.createCertificate())));
+    }
+
+}
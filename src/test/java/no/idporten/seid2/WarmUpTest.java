@@ -0,0 +1,76 @@
+package no.idporten.seid2;
+
+import no.idporten.validator.certificate.util.SimpleCrlCache;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("When warming up validators")
+public class WarmUpTest {
+
+    @DisplayName("then every configured CRL is loaded without reporting validations to listeners")
+    @Test
+    void testWarmUpLoadsCrls() throws Exception {
+        SimpleCrlCache crlCache = new SimpleCrlCache();
+        AtomicInteger rules = new AtomicInteger();
+        CertificateAuthoritiesProperties properties = CertificateAuthoritiesProperties.testProperties();
+        try (SEID2CertificateValidator validator = new SEID2CertificateValidatorBuilder(Environment.TEST)
+                .withCrlCache(crlCache)
+                .withLazyPreloadedCrlCache()
+                .withListener(new ValidationListener() {
+                    @Override
+                    public void ruleCompleted(String rule, boolean passed, long durationNanos) {
+                        rules.incrementAndGet();
+                    }
+                })
+                .build()) {
+            properties.getCrlDistributionPoints().forEach(url -> assertNull(crlCache.get(url)));
+            WarmUpResult result = validator.warmUp(2);
+            assertAll(
+                    () -> assertFalse(result.getDuration().isNegative()),
+                    () -> assertNull(result.getFailure()),
+                    () -> properties.getCrlDistributionPoints().forEach(url -> assertNotNull(crlCache.get(url), url)),
+                    () -> assertEquals(0, rules.get())
+            );
+        }
+    }
+
+    @DisplayName("then the builder can warm up validators when they are built")
+    @Test
+    void testBuilderWarmUp() throws Exception {
+        SimpleCrlCache crlCache = new SimpleCrlCache();
+        try (SEID2CertificateValidator validator = new SEID2CertificateValidatorBuilder(Environment.TEST)
+                .withCrlCache(crlCache)
+                .withLazyPreloadedCrlCache()
+                .withWarmUp()
+                .build()) {
+            CertificateAuthoritiesProperties.testProperties().getCrlDistributionPoints().forEach(url -> assertNotNull(crlCache.get(url), url));
+            assertThrows(IllegalArgumentException.class, () -> validator.warmUp(0));
+        }
+    }
+
+    @DisplayName("then CRLs that cannot be loaded are reported")
+    @Test
+    void testUnavailableCrlsAreReported() throws Exception {
+        TestData testData = new TestData();
+        CertificateAuthoritiesProperties properties = testData.props();
+        properties.setCrlDistributionPoints(Set.of(testData.distributionPointUrl()));
+        try (SEID2CertificateValidator validator = new SEID2CertificateValidatorBuilder(Environment.TEST)
+                .withProperties(properties)
+                .withCrlCache(new SimpleCrlCache())
+                .build()) {
+            WarmUpResult result = validator.warmUp(1);
+            assertAll(
+                    () -> assertFalse(result.isComplete()),
+                    () -> assertNull(result.getFailure()),
+                    () -> assertEquals(Set.of(testData.distributionPointUrl()), result.getUnavailableCrls()),
+                    () -> assertEquals(Set.of(testData.distributionPointUrl()), validator.loadCrls())
+            );
+        }
+    }
+
+}
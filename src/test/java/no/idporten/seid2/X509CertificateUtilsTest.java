@@ -3,7 +3,13 @@ package no.idporten.seid2;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
+import no.idporten.validator.certificate.api.CertificateValidationException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -23,4 +29,78 @@ class X509CertificateUtilsTest {
                 X509CertificateUtils.END_CERT.length() + 2  ); // +2 for newlines);
     }
 
-}
\ No newline at end of file
+    @DisplayName("When reading certificates they can be PEM encoded with or without header and footer")
+    @Test
+    void testReadPemEncodedCert() throws Exception {
+        X509Certificate certificate = new TestData().createCertificate();
+        String base64 = Base64.getEncoder().encodeToString(certificate.getEncoded());
+        String mimeBase64 = Base64.getMimeEncoder().encodeToString(certificate.getEncoded());
+        assertAll(
+                () -> assertEquals(certificate, X509CertificateUtils.readX509Certificate(X509CertificateUtils.pemEncodedCert(certificate))),
+                () -> assertEquals(certificate, X509CertificateUtils.readX509Certificate(X509CertificateUtils.pemEncodedCert(certificate) + "\n")),
+                () -> assertEquals(certificate, X509CertificateUtils.readX509Certificate(base64)),
+                () -> assertEquals(certificate, X509CertificateUtils.readX509Certificate(mimeBase64)),
+                () -> assertEquals(certificate, X509CertificateUtils.readX509Certificate(X509CertificateUtils.BEGIN_CERT + "\n" + mimeBase64))
+        );
+    }
+
+    @DisplayName("When reading certificates from bytes they can be DER, base64 or PEM encoded")
+    @Test
+    void testReadCertFromBytes() throws Exception {
+        X509Certificate certificate = new TestData().createCertificate();
+        byte[] base64 = Base64.getEncoder().encode(certificate.getEncoded());
+        byte[] pem = X509CertificateUtils.pemEncodedCert(certificate).getBytes(StandardCharsets.US_ASCII);
+        assertAll(
+                () -> assertEquals(certificate, X509CertificateUtils.readX509Certificate(certificate.getEncoded())),
+                () -> assertEquals(certificate, X509CertificateUtils.readX509Certificate(base64)),
+                () -> assertEquals(certificate, X509CertificateUtils.readX509Certificate(pem))
+        );
+    }
+
+    @DisplayName("When reading certificates from byte buffers they are parsed from heap and direct buffers without moving the position")
+    @Test
+    void testReadCertFromByteBuffer() throws Exception {
+        X509Certificate certificate = new TestData().createCertificate();
+        byte[] der = certificate.getEncoded();
+        ByteBuffer heap = ByteBuffer.allocate(der.length + 4);
+        heap.putShort((short) 0).put(der).putShort((short) 0).position(2).limit(2 + der.length);
+        ByteBuffer direct = ByteBuffer.allocateDirect(der.length).put(der).flip();
+        assertAll(
+                () -> assertEquals(certificate, X509CertificateUtils.readX509Certificate(heap.slice())),
+                () -> assertEquals(certificate, X509CertificateUtils.readX509Certificate(heap)),
+                () -> assertEquals(2, heap.position()),
+                () -> assertEquals(certificate, X509CertificateUtils.readX509Certificate(direct)),
+                () -> assertEquals(0, direct.position())
+        );
+    }
+
+    @DisplayName("When reading x5c chains each certificate must certify the one preceding it")
+    @Test
+    void testReadX5c() throws Exception {
+        TestData testData = new TestData();
+        X509Certificate certificate = testData.createCertificate();
+        X509Certificate intermediate = testData.intermediateCertificate();
+        String leaf = Base64.getEncoder().encodeToString(certificate.getEncoded());
+        String issuer = Base64.getEncoder().encodeToString(intermediate.getEncoded());
+        String other = Base64.getEncoder().encodeToString(testData.selfSignedCertificate().getEncoded());
+        assertAll(
+                () -> assertEquals(List.of(certificate, intermediate), X509CertificateUtils.readX5c(List.of(leaf, issuer))),
+                () -> assertEquals(List.of(certificate), X509CertificateUtils.readX5c(List.of(leaf))),
+                () -> assertThrows(CertificateValidationException.class, () -> X509CertificateUtils.readX5c(List.of(leaf, other))),
+                () -> assertThrows(CertificateValidationException.class, () -> X509CertificateUtils.readX5c(List.of()))
+        );
+    }
+
+    @DisplayName("When reading malformed certificates an exception is thrown")
+    @Test
+    void testReadMalformedCert() {
+        assertAll(
+                () -> assertThrows(CertificateValidationException.class, () -> X509CertificateUtils.readX509Certificate("")),
+                () -> assertThrows(CertificateValidationException.class, () -> X509CertificateUtils.readX509Certificate("not a certificate")),
+                () -> assertThrows(CertificateValidationException.class, () -> X509CertificateUtils.readX509Certificate("MIIB")),
+                () -> assertThrows(CertificateValidationException.class, () -> X509CertificateUtils.readX509Certificate((String) null)),
+                () -> assertThrows(CertificateValidationException.class, () -> X509CertificateUtils.readX509Certificate(new byte[]{0x30, 0x01}))
+        );
+    }
+
+}